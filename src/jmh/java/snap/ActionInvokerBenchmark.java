@@ -0,0 +1,153 @@
+package snap;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import snap.http.HttpMethod;
+import snap.http.RequestContext;
+import snap.http.RequestResult;
+
+/**
+ * Calls an action with a String and a Long url parameter the way ActionRoute
+ * used to, with reflection on every request, and through the ActionInvoker.
+ * The five parameter action measures the invoker path that spreads an array.
+ * The build runs it with the gc profiler, which shows the allocations per call:
+ *
+ * <pre>
+ * gradle jmh -PjmhInclude=ActionInvokerBenchmark
+ * </pre>
+ *
+ * @author Jaap Geurts
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActionInvokerBenchmark
+{
+  public static class UserController
+  {
+    public RequestResult show(RequestContext context, String name, Long id)
+    {
+      return RESULT;
+    }
+
+    public RequestResult compare(RequestContext context, String name, Long id, String other, Long otherId)
+    {
+      return RESULT;
+    }
+  }
+
+  private static final RequestResult RESULT = context -> {
+  };
+
+  @Setup
+  public void setup() throws NoSuchMethodException
+  {
+    mShow = UserController.class.getMethod("show", RequestContext.class, String.class, Long.class);
+    mCompare = UserController.class.getMethod("compare", RequestContext.class, String.class, Long.class,
+        String.class, Long.class);
+    if (!mShow.getParameters()[1].isNamePresent())
+      throw new IllegalStateException("Compile the benchmarks with -parameters");
+
+    mShowInvoker = new ActionInvoker(mShow);
+    mCompareInvoker = new ActionInvoker(mCompare);
+
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put("name", "jaap");
+    parameters.put("id", "42");
+    parameters.put("other", "snap");
+    parameters.put("otherId", "7");
+    mContext = new RequestContext(HttpMethod.GET, Requests.request(new HashMap<>()), Requests.response());
+    mContext.setRouteMatch(new RouteMatch(null, parameters));
+  }
+
+  @Benchmark
+  public Object reflective() throws Throwable
+  {
+    return invokeReflective(mShow, mController, mContext);
+  }
+
+  @Benchmark
+  public Object invoker() throws Throwable
+  {
+    return mShowInvoker.invoke(mController, mContext);
+  }
+
+  @Benchmark
+  public Object reflectiveFiveParameters() throws Throwable
+  {
+    return invokeReflective(mCompare, mController, mContext);
+  }
+
+  @Benchmark
+  public Object invokerFiveParameters() throws Throwable
+  {
+    return mCompareInvoker.invoke(mController, mContext);
+  }
+
+  /**
+   * The argument binding and invocation of ActionRoute before ActionInvoker
+   */
+  private static Object invokeReflective(Method actionMethod, Object controller, RequestContext context)
+      throws Throwable
+  {
+    Parameter[] parameters = actionMethod.getParameters();
+    if (parameters.length < 1)
+      throw new SnapException("Controller method must have at least on parameter: RequestContext");
+    if (parameters[0].getType() != RequestContext.class)
+      throw new SnapException("First parameter must be a RequestContext");
+
+    Object arguments[] = new Object[parameters.length];
+    arguments[0] = context;
+    if (parameters[0].isNamePresent())
+    {
+      for (int i = 1; i < parameters.length; i++)
+      {
+        Parameter param = parameters[i];
+        String value = context.getParamUrl(param.getName());
+        if (value == null)
+          continue;
+        if (param.getType() == String.class)
+          arguments[i] = value;
+        else if (param.getType() == Integer.class)
+          arguments[i] = Integer.valueOf(value);
+        else if (param.getType() == Long.class)
+          arguments[i] = Long.valueOf(value);
+      }
+    }
+    try
+    {
+      return actionMethod.invoke(controller, arguments);
+    }
+    catch (InvocationTargetException e)
+    {
+      throw e.getCause();
+    }
+  }
+
+  private final UserController mController = new UserController();
+  private Method mShow;
+  private Method mCompare;
+  private ActionInvoker mShowInvoker;
+  private ActionInvoker mCompareInvoker;
+  private RequestContext mContext;
+}
@@ -0,0 +1,162 @@
+package snap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import snap.annotations.RouteOptions;
+import snap.http.HttpMethod;
+import snap.http.RequestContext;
+import snap.http.RequestResult;
+import snap.views.NullView;
+
+/**
+ * Requests per second through the Dispatcher when every action blocks, for
+ * example on a database call. The container is a pool of platform threads of
+ * the usual size. With 'platform' the action blocks a container thread, with
+ * 'virtual' the Dispatcher runs it on a virtual thread
+ * (snap.dispatcher.virtualthreads). The virtual mode needs Java 21. On older
+ * JVMs it falls back to the container threads and measures the same as
+ * 'platform'. Run it on a newer JVM than the build with:
+ *
+ * <pre>
+ * gradle jmh -PjmhInclude=DispatcherBenchmark -Pjdk21=/path/to/jdk-21
+ * </pre>
+ *
+ * @author Jaap Geurts
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatcherBenchmark
+{
+  // requests sent at once
+  private static final int REQUESTS = 2000;
+  // threads of the servlet container. Tomcat's default
+  private static final int CONTAINER_THREADS = 200;
+  // how long an action blocks
+  private static final int BLOCKING_MILLIS = 10;
+
+  public static class BlockingController
+  {
+    @RouteOptions(methods = HttpMethod.GET)
+    public RequestResult load(RequestContext context) throws InterruptedException
+    {
+      Thread.sleep(BLOCKING_MILLIS);
+      return NullView.INSTANCE;
+    }
+  }
+
+  public static class BenchmarkApplication extends WebApplication
+  {
+    @Override
+    public void init(ServletConfig config)
+    {
+      // no templates needed
+    }
+  }
+
+  @Param({ "platform", "virtual" })
+  public String threads;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    Settings.routesFile = "snap/dispatcher-routes.conf";
+    Settings.webAppClass = BenchmarkApplication.class.getName();
+    Settings.virtualThreads = "virtual".equals(threads);
+
+    Map<String, Object> context = new HashMap<>();
+    context.put("getContextPath", "");
+    Map<String, Object> config = new HashMap<>();
+    config.put("getServletContext", Requests.proxy(ServletContext.class, context));
+
+    mDispatcher = new Dispatcher();
+    mDispatcher.init(Requests.proxy(ServletConfig.class, config));
+    mContainer = Executors.newFixedThreadPool(CONTAINER_THREADS);
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    mContainer.shutdownNow();
+    mDispatcher.destroy();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(REQUESTS)
+  public void blockingRequests() throws InterruptedException
+  {
+    CountDownLatch done = new CountDownLatch(REQUESTS);
+    for (int i = 0; i < REQUESTS; i++)
+      mContainer.execute(() -> service(done));
+    done.await();
+  }
+
+  /**
+   * Sends a request like the container does. A request is done when service()
+   * returns or, when it was made asynchronous, when it completes.
+   */
+  private void service(CountDownLatch done)
+  {
+    boolean[] started = new boolean[1];
+    Map<String, Object> async = new HashMap<>();
+    async.put("complete", (Requests.Answer)args -> {
+      done.countDown();
+      return null;
+    });
+    AsyncContext asyncContext = Requests.proxy(AsyncContext.class, async);
+
+    Map<String, Object> answers = new HashMap<>();
+    answers.put("getMethod", "GET");
+    answers.put("getRequestURI", "/load");
+    answers.put("getCharacterEncoding", "UTF-8");
+    answers.put("isAsyncSupported", true);
+    answers.put("startAsync", (Requests.Answer)args -> {
+      started[0] = true;
+      return asyncContext;
+    });
+
+    try
+    {
+      mDispatcher.service(Requests.request(answers), Requests.response());
+    }
+    catch (Exception e)
+    {
+      throw new IllegalStateException(e);
+    }
+    finally
+    {
+      if (!started[0])
+        done.countDown();
+    }
+  }
+
+  private Dispatcher mDispatcher;
+  private ExecutorService mContainer;
+}
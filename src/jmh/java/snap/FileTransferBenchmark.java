@@ -0,0 +1,355 @@
+package snap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of sending a 2 GB file, whole and as a multipart body of four
+ * 128 MB ranges, in megabytes per second. 'copyLoop' is the loop StaticRoute
+ * used before: RandomAccessFile.read into a new 10 KB array and write it to
+ * the output stream. 'transferTo' is MultiPartFile.transfer() and writeTo().
+ * 'stalledTransferTo' sends to a channel that accepts nothing for the first
+ * writes, so transfer() gives up on transferTo() and copies through a buffer.
+ *
+ * With the 'stream' sink the file goes to an OutputStream, like the
+ * ServletOutputStream StaticRoute writes to. With 'socket' it goes to a
+ * loopback connection, where transferTo() can use sendfile. Every iteration
+ * checks that exactly the bytes of the body arrived. The file is created in
+ * the temp directory and is read from the page cache after the first
+ * iteration. The build runs it with the gc profiler:
+ *
+ * <pre>
+ * gradle jmh -PjmhInclude=FileTransferBenchmark
+ * </pre>
+ *
+ * @author Jaap Geurts
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class FileTransferBenchmark
+{
+  private static final int MEGABYTE = 1024 * 1024;
+  private static final int FILE_MEGABYTES = 2048;
+  private static final int RANGES = 4;
+  private static final int RANGE_MEGABYTES = 128;
+  // the buffer of the old copy loop (StaticRoute.TRANSFER_BUFFER_SIZE)
+  private static final int COPY_BUFFER_SIZE = 10240;
+  // writes refused before MultiPartFile.transfer() falls back to a copy
+  private static final int STALLS = 8;
+
+  /**
+   * Discards what is written and counts the bytes
+   */
+  static class CountingOutputStream extends OutputStream
+  {
+    @Override
+    public void write(int b)
+    {
+      mCount++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+      mCount += len;
+    }
+
+    private long mCount;
+  }
+
+  /**
+   * A channel that accepts nothing for the first writes, like a client that
+   * stopped reading. Remembers whether transfer() copied through its own heap
+   * buffer afterwards instead of calling transferTo() again.
+   */
+  static class StallingChannel implements WritableByteChannel
+  {
+    StallingChannel(WritableByteChannel out)
+    {
+      mOut = out;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+      if (mStalls < STALLS)
+      {
+        mStalls++;
+        return 0;
+      }
+      // transferTo() writes from a direct buffer of the JDK, copy() from a
+      // heap buffer
+      if (!src.isDirect())
+        mCopied = true;
+      return mOut.write(src);
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+      return mOut.isOpen();
+    }
+
+    @Override
+    public void close()
+    {
+      // the sink stays open
+    }
+
+    private final WritableByteChannel mOut;
+    private int mStalls;
+    private boolean mCopied;
+  }
+
+  @Param({ "stream", "socket" })
+  public String sink;
+
+  @Setup
+  public void setup() throws IOException
+  {
+    mFile = File.createTempFile("snap-transfer", ".bin");
+    mFile.deleteOnExit();
+    byte[] block = new byte[MEGABYTE];
+    new Random(42).nextBytes(block);
+    try (OutputStream out = Files.newOutputStream(mFile.toPath()))
+    {
+      for (int i = 0; i < FILE_MEGABYTES; i++)
+        out.write(block);
+    }
+    mFileLength = mFile.length();
+
+    // unaligned ranges spread over the file
+    List<Pair<Long, Long>> ranges = new ArrayList<>();
+    for (int i = 0; i < RANGES; i++)
+    {
+      long first = i * (mFileLength / RANGES) + 4099 * i + 17;
+      ranges.add(new Pair<>(first, first + RANGE_MEGABYTES * (long)MEGABYTE - 1));
+    }
+    mMultiPart = new MultiPartFile(mFile, ranges, "application/octet-stream");
+
+    if ("socket".equals(sink))
+    {
+      mServer = ServerSocketChannel.open();
+      mServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      mClient = SocketChannel.open(mServer.getLocalAddress());
+      SocketChannel accepted = mServer.accept();
+      mDrainer = new Thread(() -> drain(accepted), "drainer");
+      mDrainer.setDaemon(true);
+      mDrainer.start();
+      mOut = mClient.socket().getOutputStream();
+      mChannel = mClient;
+    }
+    else
+    {
+      mCounter = new CountingOutputStream();
+      mOut = mCounter;
+      mChannel = Channels.newChannel(mCounter);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException, InterruptedException
+  {
+    if (mClient != null)
+    {
+      mClient.close();
+      mDrainer.join();
+      mServer.close();
+    }
+    Files.deleteIfExists(mFile.toPath());
+  }
+
+  /**
+   * Waits for the client side to read everything and checks that it got
+   * exactly the bytes that were sent.
+   */
+  @TearDown(Level.Iteration)
+  public void checkSent() throws InterruptedException
+  {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (getReceived() < mExpected && System.nanoTime() - deadline < 0)
+      Thread.sleep(1);
+    if (getReceived() != mExpected)
+      throw new IllegalStateException("Received " + getReceived() + " bytes, expected " + mExpected);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FILE_MEGABYTES)
+  public void copyLoop() throws IOException
+  {
+    try (RandomAccessFile file = new RandomAccessFile(mFile, "r"))
+    {
+      copyLoop(file, mOut, 0, mFileLength);
+    }
+    mExpected += mFileLength;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FILE_MEGABYTES)
+  public void transferTo() throws IOException
+  {
+    try (FileChannel file = FileChannel.open(mFile.toPath(), StandardOpenOption.READ))
+    {
+      MultiPartFile.transfer(file, mChannel, 0, mFileLength);
+    }
+    mExpected += mFileLength;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FILE_MEGABYTES)
+  public void stalledTransferTo() throws IOException
+  {
+    StallingChannel channel = new StallingChannel(mChannel);
+    try (FileChannel file = FileChannel.open(mFile.toPath(), StandardOpenOption.READ))
+    {
+      MultiPartFile.transfer(file, channel, 0, mFileLength);
+    }
+    if (!channel.mCopied)
+      throw new IllegalStateException("transfer() didn't fall back to a copy");
+    mExpected += mFileLength;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RANGES * RANGE_MEGABYTES)
+  public void copyLoopRanges() throws IOException
+  {
+    try (RandomAccessFile file = new RandomAccessFile(mFile, "r"))
+    {
+      for (int i = 0; i < RANGES; i++)
+      {
+        mOut.write(mMultiPart.getPartHeader(i));
+        copyLoop(file, mOut, mMultiPart.getRanges().get(i).getFirst(), mMultiPart.getRangeLength(i));
+      }
+      mOut.write(mMultiPart.getTrailer());
+    }
+    mExpected += mMultiPart.getContentLength();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RANGES * RANGE_MEGABYTES)
+  public void transferToRanges() throws IOException
+  {
+    try (FileChannel file = FileChannel.open(mFile.toPath(), StandardOpenOption.READ))
+    {
+      mMultiPart.writeTo(mChannel, file);
+    }
+    mExpected += mMultiPart.getContentLength();
+  }
+
+  /**
+   * The transferData() of StaticRoute before MultiPartFile.transfer()
+   */
+  private static void copyLoop(RandomAccessFile file, OutputStream out, long start, long length)
+      throws IOException
+  {
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    int len;
+    if (length == file.length()) // send the whole file
+    {
+      while ((len = file.read(buffer)) > 0)
+        out.write(buffer, 0, len);
+    }
+    else
+    {
+      file.seek(start);
+      while ((len = file.read(buffer)) > 0)
+      {
+        length -= len;
+        if (length < 0)
+        { // we read more than we should have
+          out.write(buffer, 0, len + (int)length);
+          break;
+        }
+        else
+        {
+          out.write(buffer, 0, len);
+        }
+      }
+    }
+  }
+
+  private void drain(SocketChannel channel)
+  {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(MEGABYTE);
+    try
+    {
+      int read;
+      while ((read = channel.read(buffer)) >= 0)
+      {
+        mReceived.addAndGet(read);
+        buffer.clear();
+      }
+    }
+    catch (IOException e)
+    {
+      // closed
+    }
+    finally
+    {
+      try
+      {
+        channel.close();
+      }
+      catch (IOException e)
+      {
+        // ignore
+      }
+    }
+  }
+
+  private long getReceived()
+  {
+    return mCounter != null ? mCounter.mCount : mReceived.get();
+  }
+
+  private File mFile;
+  private long mFileLength;
+  private MultiPartFile mMultiPart;
+
+  private OutputStream mOut;
+  private WritableByteChannel mChannel;
+  private CountingOutputStream mCounter;
+  private ServerSocketChannel mServer;
+  private SocketChannel mClient;
+  private Thread mDrainer;
+  private final AtomicLong mReceived = new AtomicLong();
+  // bytes sent since the start of the trial
+  private long mExpected;
+}
@@ -0,0 +1,269 @@
+package snap;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.IllformedLocaleException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import snap.http.HttpMethod;
+import snap.http.RequestContext;
+
+/**
+ * Time and allocation of the RequestContext lookups one request makes: the
+ * path three times (routing, the action and a log line), the query once, a
+ * cookie and the locale twice and the authenticated user id once. 'lazy' is
+ * the RequestContext, 'eager' repeats what it did before it kept the values:
+ * the session lookup in the constructor, decoding on every call, a scan of the
+ * cookies and a new Locale on every call. The 'PathOnly' variants are a
+ * request that only needs the path, like one for a static file. 'construct'
+ * is the RequestContext alone. 'loggedIn' adds a session with a user. The
+ * build runs it with the gc profiler:
+ *
+ * <pre>
+ * gradle jmh -PjmhInclude=RequestContextBenchmark
+ * </pre>
+ *
+ * @author Jaap Geurts
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestContextBenchmark
+{
+  /**
+   * A request with a path, a query, cookies and optionally a session. It
+   * answers these itself, so the lookups allocate nothing in the request.
+   */
+  static class Request extends HttpServletRequestWrapper
+  {
+    Request(String uri, String query, Cookie[] cookies, HttpSession session)
+    {
+      super(Requests.request(new HashMap<>()));
+      mUri = uri;
+      mQuery = query;
+      mCookies = cookies;
+      mSession = session;
+    }
+
+    @Override
+    public String getRequestURI()
+    {
+      return mUri;
+    }
+
+    @Override
+    public String getQueryString()
+    {
+      return mQuery;
+    }
+
+    @Override
+    public Cookie[] getCookies()
+    {
+      return mCookies;
+    }
+
+    @Override
+    public HttpSession getSession(boolean create)
+    {
+      return mSession;
+    }
+
+    @Override
+    public HttpSession getSession()
+    {
+      return mSession;
+    }
+
+    private final String mUri;
+    private final String mQuery;
+    private final Cookie[] mCookies;
+    private final HttpSession mSession;
+  }
+
+  /**
+   * The lookups of RequestContext before it kept the values
+   */
+  static class EagerContext
+  {
+    EagerContext(HttpServletRequest request)
+    {
+      mRequest = request;
+      mSession = request.getSession(false);
+      if (mSession != null)
+        mAuthenticatedUser = (Long)mSession.getAttribute(USER_ATTRIBUTE);
+    }
+
+    String getPath()
+    {
+      return decode(mRequest.getRequestURI());
+    }
+
+    String getQuery()
+    {
+      String query = mRequest.getQueryString();
+      return query != null ? decode(query) : null;
+    }
+
+    Cookie getCookie(String name)
+    {
+      Cookie[] cookies = mRequest.getCookies();
+      if (cookies == null)
+        return null;
+      for (Cookie c : cookies)
+      {
+        if (c.getName().equals(name))
+          return c;
+      }
+      return null;
+    }
+
+    Locale getLocale()
+    {
+      if (mLanguage == null)
+      {
+        Cookie cookie = getCookie(RequestContext.SNAP_USER_LANGUAGE);
+        if (cookie != null)
+          mLanguage = cookie.getValue();
+      }
+      if (mLanguage == null)
+        return null;
+      try
+      {
+        return new Locale.Builder().setLanguageTag(mLanguage).build();
+      }
+      catch (IllformedLocaleException ile)
+      {
+        return null;
+      }
+    }
+
+    Long getAuthenticatedUserId()
+    {
+      return mAuthenticatedUser;
+    }
+
+    private static String decode(String s)
+    {
+      try
+      {
+        return URLDecoder.decode(s, "UTF-8");
+      }
+      catch (UnsupportedEncodingException e)
+      {
+        return s;
+      }
+    }
+
+    private final HttpServletRequest mRequest;
+    private final HttpSession mSession;
+    private Long mAuthenticatedUser;
+    private String mLanguage;
+  }
+
+  // the session attribute of RequestContext that holds the user id
+  private static final String USER_ATTRIBUTE = "Snap.AuthenticatedUser";
+  private static final Long USER_ID = 1000L;
+
+  @Param({ "false", "true" })
+  public boolean loggedIn;
+
+  @Setup
+  public void setup()
+  {
+    Settings.localeMode = Settings.LocaleMode.COOKIE;
+
+    HttpSession session = null;
+    if (loggedIn)
+    {
+      Map<String, Object> answers = new HashMap<>();
+      answers.put("getAttribute", (Requests.Answer)args -> USER_ATTRIBUTE.equals(args[0]) ? USER_ID : null);
+      session = Requests.proxy(HttpSession.class, answers);
+    }
+    Cookie[] cookies = new Cookie[] { new Cookie("JSESSIONID", "node0a1b2c3d4e5f"),
+        new Cookie("theme", "dark"), new Cookie(RequestContext.SNAP_USER_LANGUAGE, "en-US") };
+    mRequest = new Request("/users/42/profile", "tab=settings&page=2", cookies, session);
+    mResponse = Requests.response();
+  }
+
+  @Benchmark
+  public void lazy(Blackhole blackhole)
+  {
+    RequestContext context = new RequestContext(HttpMethod.GET, mRequest, mResponse);
+    blackhole.consume(context.getPath());
+    blackhole.consume(context.getPath());
+    blackhole.consume(context.getQuery());
+    blackhole.consume(context.getCookie("theme"));
+    blackhole.consume(context.getLocale());
+    blackhole.consume(context.getPath());
+    blackhole.consume(context.getLocale());
+    blackhole.consume(context.getAuthenticatedUserId());
+  }
+
+  @Benchmark
+  public void lazyPathOnly(Blackhole blackhole)
+  {
+    RequestContext context = new RequestContext(HttpMethod.GET, mRequest, mResponse);
+    blackhole.consume(context.getPath());
+    blackhole.consume(context.getPath());
+    blackhole.consume(context.getPath());
+  }
+
+  @Benchmark
+  public void eager(Blackhole blackhole)
+  {
+    EagerContext context = new EagerContext(mRequest);
+    blackhole.consume(context.getPath());
+    blackhole.consume(context.getPath());
+    blackhole.consume(context.getQuery());
+    blackhole.consume(context.getCookie("theme"));
+    blackhole.consume(context.getLocale());
+    blackhole.consume(context.getPath());
+    blackhole.consume(context.getLocale());
+    blackhole.consume(context.getAuthenticatedUserId());
+  }
+
+  @Benchmark
+  public void eagerPathOnly(Blackhole blackhole)
+  {
+    EagerContext context = new EagerContext(mRequest);
+    blackhole.consume(context.getPath());
+    blackhole.consume(context.getPath());
+    blackhole.consume(context.getPath());
+  }
+
+  @Benchmark
+  public Object construct()
+  {
+    return new RequestContext(HttpMethod.GET, mRequest, mResponse);
+  }
+
+  private HttpServletRequest mRequest;
+  private HttpServletResponse mResponse;
+}
@@ -0,0 +1,61 @@
+package snap;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet requests, responses and other servlet objects for the benchmarks.
+ * They answer the methods they are given by name with a value or an Answer and
+ * return null (or false and 0) for the rest.
+ *
+ * @author Jaap Geurts
+ *
+ */
+final class Requests
+{
+  /**
+   * Computes the result of a call
+   */
+  interface Answer
+  {
+    Object answer(Object[] args);
+  }
+
+  private Requests()
+  {
+  }
+
+  static HttpServletRequest request(Map<String, Object> answers)
+  {
+    return proxy(HttpServletRequest.class, answers);
+  }
+
+  static HttpServletResponse response()
+  {
+    return proxy(HttpServletResponse.class, new HashMap<>());
+  }
+
+  static <T> T proxy(Class<T> type, Map<String, Object> answers)
+  {
+    Object proxy = Proxy.newProxyInstance(Requests.class.getClassLoader(), new Class<?>[] { type },
+        (self, method, args) -> {
+          Object answer = answers.get(method.getName());
+          if (answer instanceof Answer)
+            return ((Answer)answer).answer(args);
+          if (answer != null || !method.getReturnType().isPrimitive())
+            return answer;
+          if (method.getReturnType() == boolean.class)
+            return false;
+          if (method.getReturnType() == void.class)
+            return null;
+          if (method.getReturnType() == long.class)
+            return 0L;
+          return 0;
+        });
+    return type.cast(proxy);
+  }
+}
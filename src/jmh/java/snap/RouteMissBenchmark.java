@@ -0,0 +1,122 @@
+package snap;
+
+import java.io.FileNotFoundException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import snap.annotations.RouteOptions;
+import snap.http.HttpMethod;
+import snap.http.RequestContext;
+import snap.http.RequestResult;
+import snap.views.NullView;
+
+/**
+ * Time and allocation per routing miss: a 404 (no route for the path) and a
+ * 405 (a route for the path, but not for the method). The misses are found
+ * with findRouteMatchForPath(), which throws, and with lookupRouteMatch(),
+ * which the Dispatcher uses and which doesn't. 'debug' is snap.site.debug,
+ * which decides whether the exceptions record a stack trace. The build runs it
+ * with the gc profiler:
+ *
+ * <pre>
+ * gradle jmh -PjmhInclude=RouteMissBenchmark
+ * </pre>
+ *
+ * @author Jaap Geurts
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteMissBenchmark
+{
+  private static final String MISSING_PATH = "/wp-login.php";
+  private static final String USER_PATH = "/users/42";
+
+  public static class PageController
+  {
+    @RouteOptions(methods = HttpMethod.GET)
+    public RequestResult home(RequestContext context)
+    {
+      return NullView.INSTANCE;
+    }
+
+    @RouteOptions(methods = HttpMethod.GET)
+    public RequestResult user(RequestContext context, Long id)
+    {
+      return NullView.INSTANCE;
+    }
+
+    @RouteOptions(methods = HttpMethod.GET)
+    public RequestResult about(RequestContext context)
+    {
+      return NullView.INSTANCE;
+    }
+  }
+
+  @Param({ "false", "true" })
+  public boolean debug;
+
+  @Setup
+  public void setup() throws FileNotFoundException
+  {
+    Settings.debug = debug;
+    Settings.routesFile = "snap/miss-routes.conf";
+    mRouter = Router.getInstance();
+    mRouter.init("");
+  }
+
+  @Benchmark
+  public Object notFoundThrowing()
+  {
+    try
+    {
+      return mRouter.findRouteMatchForPath(HttpMethod.GET, MISSING_PATH);
+    }
+    catch (RouteNotFoundException e)
+    {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object notFoundLookup()
+  {
+    return mRouter.lookupRouteMatch(HttpMethod.GET, MISSING_PATH);
+  }
+
+  @Benchmark
+  public Object methodNotAllowedThrowing()
+  {
+    try
+    {
+      return mRouter.findRouteMatchForPath(HttpMethod.POST, USER_PATH);
+    }
+    catch (HttpMethodException e)
+    {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object methodNotAllowedLookup()
+  {
+    return mRouter.lookupRouteMatch(HttpMethod.POST, USER_PATH);
+  }
+
+  private Router mRouter;
+}
@@ -0,0 +1,267 @@
+package snap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import snap.annotations.Body;
+import snap.annotations.CookieParam;
+import snap.annotations.HeaderParam;
+import snap.annotations.QueryParam;
+import snap.annotations.UrlParam;
+import snap.http.JsonBody;
+import snap.http.RequestContext;
+
+/**
+ * Calls a controller action method. The method handle and the way each
+ * argument is obtained from the request are prepared once when the route is
+ * initialized, so a request doesn't use reflection. Arguments are bound from
+ * url groups (the default), query parameters, headers or cookies and converted
+ * with the converter found for their type, or deserialized from the JSON body.
+ *
+ * @author Jaap Geurts
+ *
+ */
+final class ActionInvoker
+{
+  final static Logger log = LoggerFactory.getLogger(ActionInvoker.class);
+
+  // actions with up to this many parameters are invoked without an array
+  private static final int MAX_EXACT_ARGUMENTS = 4;
+
+  /**
+   * Gets the value of one action argument from the request.
+   */
+  interface ArgumentBinder
+  {
+    Object bind(RequestContext context) throws IOException;
+  }
+
+  /**
+   * Prepare the invoker for an action method.
+   *
+   * @param actionMethod
+   *          The controller method. The first parameter must be a
+   *          RequestContext.
+   * @throws SnapException
+   *           When the method signature is not supported or the method is not
+   *           accessible
+   */
+  ActionInvoker(Method actionMethod)
+  {
+    String name = actionMethod.getDeclaringClass().getName() + "::" + actionMethod.getName();
+
+    Parameter[] parameters = actionMethod.getParameters();
+    if (parameters.length < 1)
+      throw new SnapException("Controller method must have at least on parameter: RequestContext");
+    if (parameters[0].getType() != RequestContext.class)
+      throw new SnapException("First parameter must be a RequestContext");
+
+    WebApplication application = WebApplication.getInstance();
+    Map<Class<?>, ParamConverter<?>> converters = application != null ? application.getConverters() : null;
+
+    mBinders = new ArgumentBinder[parameters.length];
+    mBinders[0] = context -> context;
+    for (int i = 1; i < parameters.length; i++)
+      mBinders[i] = createBinder(name, parameters[i], converters);
+
+    try
+    {
+      MethodHandle handle = MethodHandles.lookup().unreflect(actionMethod);
+      if (parameters.length <= MAX_EXACT_ARGUMENTS)
+        // (Controller, RequestContext, ...)R -> (Object, Object, ...)Object
+        mHandle = handle.asType(MethodType.genericMethodType(parameters.length + 1));
+      else
+        // (Controller, RequestContext, ...)R -> (Object, Object[])Object
+        mHandle = handle.asSpreader(Object[].class, parameters.length)
+            .asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+    }
+    catch (IllegalAccessException e)
+    {
+      String message = "Snap has no invokation access to the controller.";
+      log.error(message, e);
+      throw new SnapException(message, e);
+    }
+  }
+
+  /**
+   * Call the action.
+   *
+   * @param controller
+   *          The controller instance
+   * @param context
+   *          The context of the current request
+   * @return What the action returned
+   * @throws Throwable
+   *           Anything the action throws, unwrapped
+   */
+  Object invoke(Object controller, RequestContext context) throws Throwable
+  {
+    // the common arities are called directly so no argument array is needed
+    switch (mBinders.length)
+    {
+      case 1:
+        return (Object)mHandle.invokeExact(controller, (Object)context);
+      case 2:
+        return (Object)mHandle.invokeExact(controller, (Object)context, mBinders[1].bind(context));
+      case 3:
+        return (Object)mHandle.invokeExact(controller, (Object)context, mBinders[1].bind(context),
+            mBinders[2].bind(context));
+      case 4:
+        return (Object)mHandle.invokeExact(controller, (Object)context, mBinders[1].bind(context),
+            mBinders[2].bind(context), mBinders[3].bind(context));
+      default:
+        Object[] arguments = new Object[mBinders.length];
+        for (int i = 0; i < arguments.length; i++)
+          arguments[i] = mBinders[i].bind(context);
+        return (Object)mHandle.invokeExact(controller, arguments);
+    }
+  }
+
+  private static ArgumentBinder createBinder(String action, Parameter param,
+      Map<Class<?>, ParamConverter<?>> converters)
+  {
+    if (param.isAnnotationPresent(Body.class))
+      return createBodyBinder(action, param);
+
+    // where the value comes from. Arguments without annotation are url groups
+    String name = "";
+    boolean required = false;
+    Source source = Source.URL;
+    if (param.isAnnotationPresent(UrlParam.class))
+    {
+      name = param.getAnnotation(UrlParam.class).value();
+      required = param.getAnnotation(UrlParam.class).required();
+    }
+    else if (param.isAnnotationPresent(QueryParam.class))
+    {
+      source = Source.QUERY;
+      name = param.getAnnotation(QueryParam.class).value();
+      required = param.getAnnotation(QueryParam.class).required();
+    }
+    else if (param.isAnnotationPresent(HeaderParam.class))
+    {
+      source = Source.HEADER;
+      name = param.getAnnotation(HeaderParam.class).value();
+      required = param.getAnnotation(HeaderParam.class).required();
+    }
+    else if (param.isAnnotationPresent(CookieParam.class))
+    {
+      source = Source.COOKIE;
+      name = param.getAnnotation(CookieParam.class).value();
+      required = param.getAnnotation(CookieParam.class).required();
+    }
+
+    if (name.isEmpty())
+    {
+      if (!param.isNamePresent())
+        throw new SnapException("Argument " + param.getName() + " of " + action
+            + " has no name. Name it in its annotation or compile with -parameters");
+      name = param.getName();
+    }
+
+    Class<?> type = param.getType();
+    ParamConverter<?> converter = ParamConverters.find(type, converters);
+    if (converter == null)
+      throw new SnapException("Argument '" + name + "' of " + action + ": no converter for type "
+          + type.getName() + ". Register one with WebApplication.registerConverter()");
+
+    String paramName = name;
+    Source from = source;
+    boolean mustExist = required || type.isPrimitive();
+    return context -> {
+      String value = from.get(context, paramName);
+      if (value == null)
+      {
+        if (mustExist)
+          throw new ParameterBindingException(
+              "Required " + from.description + " '" + paramName + "' is missing");
+        if (from == Source.URL)
+          log.error("Argument: '" + paramName + "' not found in URL param list");
+        return null;
+      }
+      try
+      {
+        return converter.convert(value);
+      }
+      catch (RuntimeException e)
+      {
+        throw new ParameterBindingException(
+            "Invalid value for " + from.description + " '" + paramName + "': " + e.getMessage(), e);
+      }
+    };
+  }
+
+  private static ArgumentBinder createBodyBinder(String action, Parameter param)
+  {
+    WebApplication application = WebApplication.getInstance();
+    if (application == null)
+      throw new SnapException("Argument " + param.getName() + " of " + action
+          + ": @Body requires a WebApplication");
+
+    // one reader per argument type, derived from the shared reader
+    JavaType type = application.getJsonMapper().getTypeFactory().constructType(param.getParameterizedType());
+    ObjectReader reader = application.getJsonReader().forType(type);
+    boolean required = param.getAnnotation(Body.class).required();
+
+    return context -> {
+      InputStream in = JsonBody.open(context);
+      if (in == null)
+      {
+        if (required)
+          throw new ParameterBindingException("Required request body is missing");
+        return null;
+      }
+      try
+      {
+        return reader.readValue(in);
+      }
+      catch (JsonProcessingException e)
+      {
+        throw JsonBody.invalidBody(e);
+      }
+    };
+  }
+
+  private enum Source {
+    URL("url parameter"), QUERY("parameter"), HEADER("header"), COOKIE("cookie");
+
+    Source(String description)
+    {
+      this.description = description;
+    }
+
+    String get(RequestContext context, String name)
+    {
+      switch (this)
+      {
+        case QUERY:
+          return context.getParamPostGet(name);
+        case HEADER:
+          return context.getHeader(name);
+        case COOKIE:
+          return context.getCookieValue(name);
+        default:
+          return context.getParamUrl(name);
+      }
+    }
+
+    final String description;
+  }
+
+  private final MethodHandle mHandle;
+  // how to get each argument. The first one returns the context
+  private final ArgumentBinder[] mBinders;
+}
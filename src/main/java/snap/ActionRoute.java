@@ -1,13 +1,16 @@
 package snap;
 
 import java.lang.annotation.Annotation;
-import java.lang.ref.SoftReference;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
-import java.lang.reflect.Parameter;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.stream.Collectors;
 
 import javax.servlet.http.Cookie;
@@ -15,10 +18,12 @@ import javax.servlet.http.Cookie;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import snap.Settings.ControllerMode;
 import snap.annotations.AnnotationHandler;
 import snap.annotations.LoginRedirect;
 import snap.annotations.RouteOptions;
 import snap.forms.MissingCsrfTokenException;
+import snap.http.AsyncResult;
 import snap.http.HttpMethod;
 import snap.http.RequestContext;
 import snap.http.RequestResult;
@@ -61,21 +66,49 @@ public class ActionRoute implements Route
       mIsControllerInterface = true;
     }
 
-    // fetch allowed methods from annotations
+    // Load the controller once. The method and instances don't change while
+    // the route lives
+    try
+    {
+      mControllerClass = Class.forName(mController);
+      mConstructor = MethodHandles.lookup().findConstructor(mControllerClass, MethodType.methodType(void.class))
+          .asType(MethodType.methodType(Object.class));
+    }
+    catch (ClassNotFoundException e)
+    {
+      throw new SnapException("Controller class not found for route " + mAlias + ": " + mController, e);
+    }
+    catch (NoSuchMethodException | IllegalAccessException e)
+    {
+      throw new SnapException("Controller " + mController + " must have a public no argument constructor", e);
+    }
+
+    Method m = findMethod();
 
-    Method m = getMethod();
-    if (m != null)
+    // fetch allowed methods from annotations
+    RouteOptions annotation = m.getAnnotation(RouteOptions.class);
+    if (annotation != null)
     {
-      RouteOptions annotation = m.getAnnotation(RouteOptions.class);
-      if (annotation != null)
-      {
-        mHttpMethods = annotation.methods();
-        if (mHttpMethods.length == 0)
-          throw new SnapException("You must specify at least 1 HttpMethod in the route options");
-      }
-      else
-        throw new SnapException("RouteOptions annotation not present on controller action");
+      mHttpMethods = annotation.methods();
+      if (mHttpMethods.length == 0)
+        throw new SnapException("You must specify at least 1 HttpMethod in the route options");
     }
+    else
+      throw new SnapException("RouteOptions annotation not present on controller action");
+
+    if (!mIsControllerInterface)
+      mInvoker = new ActionInvoker(m);
+
+    mControllerMode = Settings.controllerMode;
+    if (mControllerMode == ControllerMode.SINGLETON)
+      mSingleton = newController();
+    else if (mControllerMode == ControllerMode.POOLED)
+      mPool = new ControllerPool(mConstructor, Settings.controllerPoolSize);
+
+    mMethod = m;
+
+    if (WebApplication.getInstance() != null)
+      getAnnotationChain(mControllerClass, m);
   }
 
   /**
@@ -96,7 +129,6 @@ public class ActionRoute implements Route
     RequestResult result = null;
     if (actionMethod != null)
     {
-      Class<?> controllerClass = getController().getClass();
       if (mRouteListener != null)
       {
         RequestResult r = mRouteListener.onBeforeRoute(context);
@@ -111,37 +143,21 @@ public class ActionRoute implements Route
         validateCsrfToken(context);
       }
 
-      // Check any defined annotations on the controller and execute
-      Annotation[] assignedAnnotations = controllerClass.getAnnotations();
-      Map<Class<? extends Annotation>, AnnotationHandler> registeredAnnotations = WebApplication.getInstance()
-          .getAnnotations();
-      for (Annotation annotation : assignedAnnotations)
-      {
-        AnnotationHandler handler = registeredAnnotations.get(annotation.annotationType());
-        if (handler != null)
-          handler.execute(getController(), actionMethod, annotation, context);
-      }
-
-      // Check any defined annotations on the action method and execute
-      assignedAnnotations = actionMethod.getAnnotations();
-      for (Annotation annotation : assignedAnnotations)
-      {
-        AnnotationHandler handler = registeredAnnotations.get(annotation.annotationType());
-        if (handler != null)
-          handler.execute(getController(), actionMethod, annotation, context);
-      }
-
-      // Execute the actual controller action here.
+      Object controller = acquireController();
+      boolean async = false;
       try
       {
-        Object controller = getController();
+        // Execute the annotation handlers that guard this action
+        getAnnotationChain(mControllerClass, actionMethod).execute(controller, actionMethod, context);
+
+        // Execute the actual controller action here.
+        Object returned;
         if (mIsControllerInterface)
         {
           if (controller instanceof Controller)
-          {
-            Controller control = (Controller)controller;
-            result = control.handleRequest(context);
-          }
+            returned = ((Controller)controller).handleRequest(context);
+          else if (controller instanceof AsyncController)
+            returned = ((AsyncController)controller).handleRequest(context);
           else
           {
             String message = "ActionRoute specifies controller class but doesn't implement the Controller interface";
@@ -150,81 +166,21 @@ public class ActionRoute implements Route
           }
         }
         else
+          returned = mInvoker.invoke(controller, context);
+
+        if (returned instanceof CompletionStage)
         {
-          // check if the method has parameters and try to assign
-          Parameter[] parameters = actionMethod.getParameters();
-          if (parameters.length < 1) // at least two
-            throw new SnapException("Controller method must have at least on parameter: RequestContext");
-          if (parameters[0].getType() != RequestContext.class)
-            throw new SnapException("First parameter must be a RequestContext");
-
-          // Attempt to assign value to the method arguments
-          Object arguments[] = new Object[parameters.length];
-          arguments[0] = context;
-          if (parameters[0].isNamePresent())
-          {
-            // Parameter names are supported so check each argument:
-            for (int i = 1; i < parameters.length; i++)
-            {
-              // search all arguments with the same name
-              Parameter param = parameters[i];
-              String value = context.getParamUrl(param.getName());
-              if (value == null)
-              {
-                log.error("Argument: '" + param.getName() + "' not found in URL param list");
-                continue;
-              }
-              if (param.getType() == String.class)
-                arguments[i] = value;
-              else if (param.getType() == Integer.class)
-                arguments[i] = Integer.valueOf(value);
-              else if (param.getType() == Long.class)
-                arguments[i] = Long.valueOf(value);
-              else
-              {
-                log.info("You can only assign String, Integer and Long values to controller arguments");
-              }
-            }
-          }
-          else
-          {
-            log.debug("Java 8 is required to support parameter assignments");
-          }
-          result = (RequestResult)actionMethod.invoke(controller, arguments);
+          // the controller and the route listener are done when the action
+          // completes
+          async = true;
+          return completeAsync(context, controller, (CompletionStage<?>)returned);
         }
-        // controllers should not return NULL
-        if (result == null)
-          throw new SnapException(
-              "Controller " + mController + "::" + mMethodName + " returned null. Expected RequestResult");
-
-      }
-      catch (InvocationTargetException e)
-      {
-        Throwable t = e;
-        // unwrap the exception and get the exception thrown by the app
-        if (t instanceof InvocationTargetException)
-          t = t.getCause();
-
-        throw t;
-      }
-      catch (IllegalAccessException e)
-      {
-        String message = "Snap has no invokation access to the controller.";
-        log.error(message, e);
-        throw new SnapException(message, e);
+        result = checkResult(returned);
       }
-      catch (IllegalArgumentException e)
+      finally
       {
-        String message = "The method signature of the controller action is not correct.";
-        throw new SnapException(message, e);
-      }
-      catch (ClassCastException e)
-      {
-        String className = "<null>";
-        if (result != null)
-          className = result.getClass().getCanonicalName();
-        String message = "Instance of RequestResult expected. Found: " + className;
-        throw new SnapException(message, e);
+        if (!async)
+          releaseController(controller);
       }
 
       if (mRouteListener != null)
@@ -243,6 +199,58 @@ public class ActionRoute implements Route
     }
   }
 
+  private RequestResult checkResult(Object returned)
+  {
+    // controllers should not return NULL
+    if (returned == null)
+      throw new SnapException(
+          "Controller " + mController + "::" + mMethodName + " returned null. Expected RequestResult");
+
+    if (!(returned instanceof RequestResult))
+    {
+      String message = "Instance of RequestResult expected. Found: " + returned.getClass().getCanonicalName();
+      throw new SnapException(message);
+    }
+    return (RequestResult)returned;
+  }
+
+  private AsyncResult completeAsync(RequestContext context, Object controller, CompletionStage<?> stage)
+  {
+    CompletableFuture<RequestResult> future = new CompletableFuture<>();
+    stage.whenComplete((value, error) -> {
+      releaseController(controller);
+      if (error != null)
+      {
+        future.completeExceptionally(error);
+        return;
+      }
+
+      // the stage may complete on any thread
+      WebApplication application = WebApplication.getInstance();
+      RequestContext current = application.getRequestContext();
+      application.setRequestContext(context);
+      try
+      {
+        RequestResult result = checkResult(value);
+        if (mRouteListener != null)
+          mRouteListener.onAfterRoute(context);
+        future.complete(result);
+      }
+      catch (Throwable t)
+      {
+        future.completeExceptionally(t);
+      }
+      finally
+      {
+        if (current == null)
+          application.removeRequestContext();
+        else
+          application.setRequestContext(current);
+      }
+    });
+    return new AsyncResult(future);
+  }
+
   /**
    * If enabled and authentication fails this route will redirect to the
    * redirect url. see settings:
@@ -271,41 +279,89 @@ public class ActionRoute implements Route
 
   }
 
-  Object getController()
+  /**
+   * Get the controller instance for a request. Call releaseController() when
+   * the request is done with it.
+   *
+   * @return the controller
+   */
+  Object acquireController()
   {
-    // If the app is threadsafe then create a new instance
-
-    if (Settings.threadSafeController)
+    switch (mControllerMode)
     {
-      try
-      {
-        return Class.forName(mController).newInstance();
-      }
-      catch (InstantiationException | IllegalAccessException | ClassNotFoundException e)
-      {
-        log.error("Can't instantiate controller", e);
-        return null;
-      }
+      case SINGLETON:
+        return mSingleton;
+      case POOLED:
+        return mPool.acquire();
+      default:
+        return newController();
     }
+  }
 
-    // Thread safety is off, don't create new controller instances
-    // This means that controllers shouldn't keep state
+  void releaseController(Object controller)
+  {
+    if (mPool != null)
+      mPool.release(controller);
+  }
 
-    if (mControllerRef == null || mControllerRef.get() == null)
+  private Object newController()
+  {
+    try
     {
-      try
-      {
-        Object mControllerInstance = Class.forName(mController).newInstance();
-        mControllerRef = new SoftReference<Object>(mControllerInstance);
-      }
-      catch (InstantiationException | ClassNotFoundException | IllegalAccessException e)
-      {
-        log.error("Can't instantiate controller", e);
-        return null;
-      }
+      return (Object)mConstructor.invokeExact();
     }
-    return mControllerRef.get();
+    catch (Throwable t)
+    {
+      throw new SnapException("Can't instantiate controller " + mController, t);
+    }
+  }
 
+  /**
+   * Returns how the controller of this route is instantiated.
+   *
+   * @return the controller mode
+   */
+  public ControllerMode getControllerMode()
+  {
+    return mControllerMode;
+  }
+
+  /**
+   * Returns the controller pool of this route with its usage counters.
+   *
+   * @return the pool or null when the controller mode is not pooled
+   */
+  public ControllerPool getControllerPool()
+  {
+    return mPool;
+  }
+
+  /**
+   * Returns the annotation handlers that execute before the action, in order,
+   * together with the annotation each one handles.
+   *
+   * @return a read only list of handler/annotation pairs. Empty when the
+   *         action can't be found
+   */
+  public List<Pair<AnnotationHandler, Annotation>> getAnnotationHandlers()
+  {
+    if (mMethod == null)
+      return Collections.emptyList();
+    return getAnnotationChain(mControllerClass, mMethod).getEntries();
+  }
+
+  private AnnotationChain getAnnotationChain(Class<?> controllerClass, Method actionMethod)
+  {
+    WebApplication application = WebApplication.getInstance();
+    int version = application.getAnnotationsVersion();
+    AnnotationChain chain = mAnnotationChain;
+    if (chain == null || chain.getVersion() != version)
+    {
+      chain = new AnnotationChain(controllerClass, actionMethod, application.getAnnotations(), version);
+      mAnnotationChain = chain;
+      log.debug("Route " + mAlias + " annotation handlers: " + chain);
+    }
+    return chain;
   }
 
   private boolean validateCsrfToken(RequestContext context)
@@ -347,47 +403,38 @@ public class ActionRoute implements Route
 
   protected Method getMethod()
   {
-    if (mMethodRef == null || mMethodRef.get() == null)
-    {
-      Method m;
-      Object controller = getController();
-      if (controller == null)
-        return null;
+    return mMethod;
+  }
 
-      try
+  private Method findMethod()
+  {
+    try
+    {
+      Method[] methods = mControllerClass.getMethods();
+      List<Method> methodList = Arrays.stream(methods).filter(x -> x.getName().equals(mMethodName))
+          .collect(Collectors.toList());
+      if (methodList.size() == 0)
       {
-        Method[] methods = controller.getClass().getMethods();
-        List<Method> methodList = Arrays.stream(methods).filter(x -> x.getName().equals(mMethodName))
-            .collect(Collectors.toList());
-        if (methodList.size() == 0)
-        {
-          String message = "ActionRoute " + mAlias + " has no method '" + mMethodName + "()' in controller "
-              + mController;
-          log.error(message);
-          return null;
-        }
-        else if (methodList.size() > 1)
-        {
-          String message = "More than one method '" + mMethodName + "' found for route " + mAlias;
-          log.error(message);
-          return null;
-        }
-        else
-        {
-          m = methodList.get(0);
-          mMethodRef = new SoftReference<Method>(m);
-        }
+        String message = "ActionRoute " + mAlias + " has no method '" + mMethodName + "()' in controller "
+            + mController;
+        log.error(message);
+        throw new SnapException(message);
       }
-      catch (SecurityException e)
+      else if (methodList.size() > 1)
       {
-
-        log.error("ActionRoute " + mAlias + ". Error accessing method " + mMethodName + " in controller "
-            + mController, e);
-
-        return null;
+        String message = "More than one method '" + mMethodName + "' found for route " + mAlias;
+        log.error(message);
+        throw new SnapException(message);
       }
+      return methodList.get(0);
+    }
+    catch (SecurityException e)
+    {
+      String message = "ActionRoute " + mAlias + ". Error accessing method " + mMethodName + " in controller "
+          + mController;
+      log.error(message, e);
+      throw new SnapException(message, e);
     }
-    return mMethodRef.get();
   }
 
   @Override
@@ -428,10 +475,21 @@ public class ActionRoute implements Route
   private String mAlias;
 
   private boolean mIsControllerInterface;
-  // Cached version of the controller
-  private SoftReference<Object> mControllerRef = null;
   private HttpMethod[] mHttpMethods;
 
-  SoftReference<Method> mMethodRef = null;
+  private Class<?> mControllerClass;
+  private Method mMethod;
+  // ()Object handle of the no argument constructor
+  private MethodHandle mConstructor;
+  private ControllerMode mControllerMode;
+  // the instance in singleton mode
+  private Object mSingleton;
+  // the instances in pooled mode
+  private ControllerPool mPool;
+
+  // prepared call of the action method. null for Controller interface routes
+  private ActionInvoker mInvoker;
+  // handlers of the annotations on the controller and action
+  private volatile AnnotationChain mAnnotationChain;
 
 }
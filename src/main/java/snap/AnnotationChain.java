@@ -0,0 +1,127 @@
+package snap;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import snap.annotations.AnnotationHandler;
+import snap.annotations.IgnoreLoginRequired;
+import snap.annotations.LoginRequired;
+import snap.http.RequestContext;
+
+/**
+ * The annotation handlers that guard a controller action, in the order they
+ * execute: first the handlers for the annotations on the controller class,
+ * then those on the action method. Built once per route and rebuilt when an
+ * annotation is registered. Each handler is prepared for its annotation when
+ * the chain is built.
+ *
+ * @author Jaap Geurts
+ *
+ */
+final class AnnotationChain
+{
+  /**
+   * Resolve the handlers for a controller action.
+   *
+   * @param controllerClass
+   *          The class of the controller
+   * @param actionMethod
+   *          The action method
+   * @param registered
+   *          The registered handlers by annotation type
+   * @param version
+   *          The version of the registered handlers
+   */
+  AnnotationChain(Class<?> controllerClass, Method actionMethod,
+      Map<Class<? extends Annotation>, AnnotationHandler> registered, int version)
+  {
+    List<AnnotationHandler> handlers = new ArrayList<>();
+    List<Annotation> annotations = new ArrayList<>();
+
+    for (Annotation annotation : controllerClass.getAnnotations())
+    {
+      // A method can opt out of the login required by its controller. When the
+      // method has its own @LoginRequired only that one runs.
+      if (annotation.annotationType() == LoginRequired.class
+          && (actionMethod.isAnnotationPresent(IgnoreLoginRequired.class)
+              || actionMethod.isAnnotationPresent(LoginRequired.class)))
+        continue;
+      add(registered, actionMethod, annotation, handlers, annotations);
+    }
+    for (Annotation annotation : actionMethod.getAnnotations())
+      add(registered, actionMethod, annotation, handlers, annotations);
+
+    mHandlers = handlers.toArray(new AnnotationHandler[handlers.size()]);
+    mAnnotations = annotations.toArray(new Annotation[annotations.size()]);
+    mVersion = version;
+  }
+
+  private static void add(Map<Class<? extends Annotation>, AnnotationHandler> registered,
+      Method actionMethod, Annotation annotation, List<AnnotationHandler> handlers,
+      List<Annotation> annotations)
+  {
+    AnnotationHandler handler = registered.get(annotation.annotationType());
+    if (handler != null)
+    {
+      handlers.add(handler.prepare(actionMethod, annotation));
+      annotations.add(annotation);
+    }
+  }
+
+  /**
+   * Execute all handlers in order.
+   *
+   * @param controller
+   *          The controller instance
+   * @param actionMethod
+   *          The action method
+   * @param context
+   *          The context of the current request
+   */
+  void execute(Object controller, Method actionMethod, RequestContext context)
+  {
+    for (int i = 0; i < mHandlers.length; i++)
+      mHandlers[i].execute(controller, actionMethod, mAnnotations[i], context);
+  }
+
+  /**
+   * Returns the handlers and the annotation each handles, in execution order.
+   *
+   * @return a read only list of handler/annotation pairs
+   */
+  List<Pair<AnnotationHandler, Annotation>> getEntries()
+  {
+    List<Pair<AnnotationHandler, Annotation>> entries = new ArrayList<>(mHandlers.length);
+    for (int i = 0; i < mHandlers.length; i++)
+      entries.add(new Pair<>(mHandlers[i], mAnnotations[i]));
+    return Collections.unmodifiableList(entries);
+  }
+
+  int getVersion()
+  {
+    return mVersion;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder builder = new StringBuilder("[");
+    for (int i = 0; i < mHandlers.length; i++)
+    {
+      if (i > 0)
+        builder.append(", ");
+      builder.append('@').append(mAnnotations[i].annotationType().getSimpleName()).append(" -> ")
+          .append(mHandlers[i].getClass().getSimpleName());
+    }
+    return builder.append(']').toString();
+  }
+
+  private final AnnotationHandler[] mHandlers;
+  private final Annotation[] mAnnotations;
+  // version of the registered handlers this chain was built from
+  private final int mVersion;
+}
@@ -0,0 +1,359 @@
+package snap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The content hashes of all files under the directory of a static route. Used
+ * to link to fingerprinted file names (app.3f9c2a1b0d.js instead of app.js).
+ * The fingerprinted name of a file changes with its content, so it can be
+ * cached forever by browsers and shared caches.
+ *
+ * The hashes are computed in the background when the routes are loaded and
+ * updated when files change through a FileWatcher on each directory. Files
+ * that aren't hashed yet are linked without a fingerprint. Enable it in
+ * snap.properties with:
+ *
+ * <pre>
+ * snap.static.fingerprint = true
+ * </pre>
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class AssetManifest
+{
+  final static Logger log = LoggerFactory.getLogger(AssetManifest.class);
+
+  // hex characters of the hash in a fingerprinted name
+  private static final int FINGERPRINT_LENGTH = 10;
+  // hex characters of the hash, used for ETags
+  private static final int HASH_LENGTH = 16;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  // name.fingerprint.extension or name.fingerprint
+  private static final Pattern FINGERPRINTED = Pattern
+      .compile("^(.*)\\.([0-9a-f]{" + FINGERPRINT_LENGTH + "})(\\.[^./]*)?$");
+
+  private static class Entry
+  {
+    Entry(String hash, long lastModified, long length)
+    {
+      this.hash = hash;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+
+    final String hash;
+    final long lastModified;
+    final long length;
+  }
+
+  private AssetManifest(Path root)
+  {
+    mRoot = root;
+  }
+
+  /**
+   * Returns the manifest of a directory. Static routes that serve the same
+   * directory share the manifest, also after the routes are reloaded.
+   *
+   * @param directory
+   *          The directory of the static route
+   * @return the manifest
+   */
+  static AssetManifest forDirectory(Path directory)
+  {
+    Path root = directory.toAbsolutePath().normalize();
+    AssetManifest manifest = mManifests.get(root);
+    if (manifest != null)
+      return manifest;
+
+    AssetManifest created = new AssetManifest(root);
+    manifest = mManifests.putIfAbsent(root, created);
+    if (manifest != null)
+      return manifest;
+
+    // hashing a large directory takes a while. Don't hold up the startup:
+    // until a file is hashed its links are not fingerprinted
+    Thread thread = new Thread(() -> {
+      created.scan(root);
+      log.info("Fingerprinted " + created.mEntries.size() + " static files in " + root);
+    }, "snap-manifest-scan");
+    thread.setDaemon(true);
+    thread.start();
+    return created;
+  }
+
+  /**
+   * Stops watching all directories. Called when the router is destroyed.
+   */
+  static synchronized void closeAll()
+  {
+    if (mWatcher != null)
+      mWatcher.close();
+    mWatcher = null;
+    mWatcherFailed = false;
+    mManifests.clear();
+  }
+
+  /**
+   * Returns the content hash of a file.
+   *
+   * @param fileName
+   *          The name of the file relative to the directory
+   * @return the hash or null if the file is not in the manifest
+   */
+  public String getHash(String fileName)
+  {
+    Entry entry = mEntries.get(normalize(fileName));
+    return entry != null ? entry.hash : null;
+  }
+
+  /**
+   * Returns the content hash of a file if it was computed for this version of
+   * the file.
+   *
+   * @param fileName
+   *          The name of the file relative to the directory
+   * @param lastModified
+   *          The modification time of the file in milliseconds
+   * @param length
+   *          The size of the file
+   * @return the hash or null
+   */
+  String getHash(String fileName, long lastModified, long length)
+  {
+    Entry entry = mEntries.get(normalize(fileName));
+    if (entry == null || entry.lastModified != lastModified || entry.length != length)
+      return null;
+    return entry.hash;
+  }
+
+  /**
+   * Returns the fingerprinted name of a file: 'js/app.js' becomes
+   * 'js/app.3f9c2a1b0d.js'.
+   *
+   * @param fileName
+   *          The name of the file relative to the directory
+   * @return the fingerprinted name or the name itself if the file is not in
+   *         the manifest
+   */
+  public String getFingerprintedName(String fileName)
+  {
+    String hash = getHash(fileName);
+    if (hash == null)
+      return fileName;
+
+    String fingerprint = hash.substring(0, FINGERPRINT_LENGTH);
+    int slash = fileName.lastIndexOf('/');
+    int dot = fileName.lastIndexOf('.');
+    if (dot <= slash + 1)
+      return fileName + '.' + fingerprint;
+    return fileName.substring(0, dot) + '.' + fingerprint + fileName.substring(dot);
+  }
+
+  /**
+   * Returns the name of the file a fingerprinted name refers to. Only names
+   * with the fingerprint of the current version of the file are resolved.
+   *
+   * @param fileName
+   *          The requested file name
+   * @return the name of the file or null if the name is not a current
+   *         fingerprinted name
+   */
+  public String resolve(String fileName)
+  {
+    String name = normalize(fileName);
+    if (mEntries.containsKey(name))
+      return null;
+
+    Matcher matcher = FINGERPRINTED.matcher(name);
+    if (!matcher.matches())
+      return null;
+
+    String original = matcher.group(1) + (matcher.group(3) != null ? matcher.group(3) : "");
+    Entry entry = mEntries.get(original);
+    if (entry == null || !entry.hash.startsWith(matcher.group(2)))
+      return null;
+    return original;
+  }
+
+  /**
+   * Returns the content hash of data as hex.
+   *
+   * @param content
+   *          The data
+   * @return the hash
+   */
+  static String hash(byte[] content)
+  {
+    MessageDigest digest = newDigest();
+    return toHex(digest.digest(content));
+  }
+
+  private static String hash(Path file) throws IOException
+  {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[8192];
+    try (InputStream in = Files.newInputStream(file))
+    {
+      int read;
+      while ((read = in.read(buffer)) != -1)
+        digest.update(buffer, 0, read);
+    }
+    return toHex(digest.digest());
+  }
+
+  private static MessageDigest newDigest()
+  {
+    try
+    {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new SnapException("JVM Doesn't support SHA-256", e);
+    }
+  }
+
+  private static String toHex(byte[] bytes)
+  {
+    char[] chars = new char[HASH_LENGTH];
+    for (int i = 0; i < HASH_LENGTH / 2; i++)
+    {
+      chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+      chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Hashes all files in and below a directory and watches the directories.
+   */
+  private void scan(Path directory)
+  {
+    try (Stream<Path> paths = Files.walk(directory))
+    {
+      paths.forEach(path -> {
+        if (Files.isDirectory(path))
+          watch(path);
+        else if (Files.isRegularFile(path))
+          update(path);
+      });
+    }
+    catch (IOException | RuntimeException e)
+    {
+      log.warn("Can't scan static files in " + directory, e);
+    }
+  }
+
+  private void watch(Path directory)
+  {
+    FileWatcher watcher = getWatcher();
+    if (watcher == null)
+      return;
+
+    try
+    {
+      watcher.watch(directory, this::changed);
+    }
+    catch (IOException e)
+    {
+      log.warn("Can't watch directory: " + directory, e);
+    }
+  }
+
+  private void changed(Path path)
+  {
+    if (Files.isDirectory(path))
+    {
+      // a new directory or, when events were lost, the whole directory
+      scan(path);
+      removeDeleted(path);
+    }
+    else if (Files.isRegularFile(path))
+      update(path);
+    else
+      mEntries.remove(nameOf(path));
+  }
+
+  private void update(Path file)
+  {
+    String name = nameOf(file);
+    try
+    {
+      // stat before reading. A change while reading is seen as a new event
+      long lastModified = Files.getLastModifiedTime(file).toMillis();
+      long length = Files.size(file);
+      mEntries.put(name, new Entry(hash(file), lastModified, length));
+    }
+    catch (IOException e)
+    {
+      // deleted or not readable
+      mEntries.remove(name);
+    }
+  }
+
+  private void removeDeleted(Path directory)
+  {
+    String prefix = nameOf(directory);
+    if (!prefix.isEmpty())
+      prefix += '/';
+    for (String name : mEntries.keySet())
+    {
+      if (name.startsWith(prefix) && !Files.isRegularFile(mRoot.resolve(name)))
+        mEntries.remove(name);
+    }
+  }
+
+  private String nameOf(Path path)
+  {
+    return mRoot.relativize(path.toAbsolutePath().normalize()).toString().replace('\\', '/');
+  }
+
+  private static String normalize(String fileName)
+  {
+    int start = 0;
+    while (start < fileName.length() && fileName.charAt(start) == '/')
+      start++;
+    return fileName.substring(start);
+  }
+
+  private static synchronized FileWatcher getWatcher()
+  {
+    if (mWatcher == null && !mWatcherFailed)
+    {
+      try
+      {
+        mWatcher = new FileWatcher("snap-manifest-watcher");
+      }
+      catch (IOException | UnsupportedOperationException e)
+      {
+        log.warn("Can't watch static files for changes. Fingerprints won't be updated", e);
+        mWatcherFailed = true;
+      }
+    }
+    return mWatcher;
+  }
+
+  private static final Map<Path, AssetManifest> mManifests = new ConcurrentHashMap<>();
+  private static FileWatcher mWatcher;
+  private static boolean mWatcherFailed;
+
+  private final Path mRoot;
+  // content hash by file name relative to the root, separated by '/'
+  private final Map<String, Entry> mEntries = new ConcurrentHashMap<>();
+}
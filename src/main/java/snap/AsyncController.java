@@ -0,0 +1,24 @@
+package snap;
+
+import java.util.concurrent.CompletionStage;
+
+import snap.http.RequestContext;
+import snap.http.RequestResult;
+
+/**
+ * A controller that completes its request asynchronously. The container thread
+ * is released when handleRequest returns; the response is written when the
+ * returned stage completes. Action methods can do the same by returning a
+ * CompletionStage&lt;RequestResult&gt;.
+ *
+ * The Dispatcher servlet must be declared with
+ * &lt;async-supported&gt;true&lt;/async-supported&gt;. Otherwise the request
+ * thread waits for the stage to complete.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public interface AsyncController
+{
+  CompletionStage<RequestResult> handleRequest(RequestContext context);
+}
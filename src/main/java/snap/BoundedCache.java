@@ -0,0 +1,346 @@
+package snap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+import snap.Settings.EvictionPolicy;
+
+/**
+ * A concurrent cache that holds at most a fixed number of entries. Reads are
+ * lock free. When the cache is full the oldest entry is evicted (fifo) or the
+ * oldest entry that wasn't read since it was queued (lru, a second chance
+ * approximation).
+ *
+ * Optionally a weigher gives each entry a weight, for example its size in
+ * bytes. The cache is then also full when the total weight exceeds the
+ * maximum weight.
+ *
+ * @author Jaap Geurts
+ *
+ * @param <K>
+ *          The key type
+ * @param <V>
+ *          The value type
+ */
+public class BoundedCache<K, V>
+{
+  /**
+   * Returns the weight of an entry. Called once when the entry is put.
+   *
+   * @param <K>
+   *          The key type
+   * @param <V>
+   *          The value type
+   */
+  @FunctionalInterface
+  public interface Weigher<K, V>
+  {
+    long weigh(K key, V value);
+  }
+
+  private static class Entry<K, V>
+  {
+    Entry(K key, V value, long weight)
+    {
+      this.key = key;
+      this.value = value;
+      this.weight = weight;
+    }
+
+    final K key;
+    final V value;
+    final long weight;
+    volatile boolean referenced;
+  }
+
+  /**
+   * Construct a cache
+   *
+   * @param maxSize
+   *          The maximum number of entries
+   * @param policy
+   *          How to choose the entry to evict
+   */
+  public BoundedCache(int maxSize, EvictionPolicy policy)
+  {
+    this(maxSize, Long.MAX_VALUE, null, policy);
+  }
+
+  /**
+   * Construct a cache that is also bounded by the total weight of the entries
+   *
+   * @param maxSize
+   *          The maximum number of entries
+   * @param maxWeight
+   *          The maximum total weight of the entries
+   * @param weigher
+   *          Weighs the entries. null weighs all entries 0
+   * @param policy
+   *          How to choose the entry to evict
+   */
+  public BoundedCache(int maxSize, long maxWeight, Weigher<? super K, ? super V> weigher, EvictionPolicy policy)
+  {
+    if (maxSize < 1)
+      throw new IllegalArgumentException("Cache size must be at least 1");
+    if (maxWeight < 0)
+      throw new IllegalArgumentException("Cache weight can't be negative");
+    mMaxSize = maxSize;
+    mMaxWeight = maxWeight;
+    mWeigher = weigher;
+    mPolicy = policy;
+  }
+
+  /**
+   * Get the value for the key
+   *
+   * @param key
+   *          The key to look up
+   * @return The value or null if the key is not in the cache
+   */
+  public V get(K key)
+  {
+    Entry<K, V> entry = mEntries.get(key);
+    if (entry == null)
+    {
+      mMisses.increment();
+      return null;
+    }
+    mHits.increment();
+    if (!entry.referenced)
+      entry.referenced = true;
+    return entry.value;
+  }
+
+  /**
+   * Store a value in the cache. Replaces any existing value for the key.
+   *
+   * @param key
+   *          The key
+   * @param value
+   *          The value. Can't be null
+   */
+  public void put(K key, V value)
+  {
+    Entry<K, V> entry = new Entry<>(key, value, mWeigher != null ? mWeigher.weigh(key, value) : 0);
+    Entry<K, V> old = mEntries.put(key, entry);
+    if (old == null)
+      mSize.incrementAndGet();
+    else
+      mWeight.add(-old.weight);
+    mWeight.add(entry.weight);
+
+    mQueue.offer(entry);
+    mQueued.incrementAndGet();
+    if (isFull() || mQueued.get() > 2 * mMaxSize)
+      evict();
+  }
+
+  /**
+   * Removes the key from the cache
+   *
+   * @param key
+   *          The key to remove
+   * @return The value that was removed or null if the key wasn't cached
+   */
+  public V remove(K key)
+  {
+    Entry<K, V> entry = mEntries.remove(key);
+    if (entry == null)
+      return null;
+    removed(entry);
+    return entry.value;
+  }
+
+  /**
+   * Removes the key from the cache if it still has this value
+   *
+   * @param key
+   *          The key to remove
+   * @param value
+   *          The value it must have. Compared by identity
+   * @return true when it was removed
+   */
+  public boolean remove(K key, V value)
+  {
+    Entry<K, V> entry = mEntries.get(key);
+    if (entry == null || entry.value != value)
+      return false;
+    return removeEntry(entry);
+  }
+
+  /**
+   * Removes the entries that match a filter
+   *
+   * @param filter
+   *          Returns true for the entries to remove
+   * @return the number of entries removed
+   */
+  public int removeIf(BiPredicate<? super K, ? super V> filter)
+  {
+    int count = 0;
+    for (Entry<K, V> entry : mEntries.values())
+    {
+      if (filter.test(entry.key, entry.value) && removeEntry(entry))
+        count++;
+    }
+    return count;
+  }
+
+  /**
+   * Removes all entries from the cache. The counters are not reset.
+   */
+  public void clear()
+  {
+    for (Entry<K, V> entry : mEntries.values())
+      removeEntry(entry);
+    // entries can be queued concurrently. count each one that is taken out
+    while (mQueue.poll() != null)
+      mQueued.decrementAndGet();
+  }
+
+  private void evict()
+  {
+    while (true)
+    {
+      // Replaced and removed entries stay in the queue until they are polled.
+      // Also purge them when they start to outnumber the live entries.
+      boolean full = isFull();
+      if (!full && mQueued.get() <= 2 * mMaxSize)
+        break;
+
+      Entry<K, V> entry = mQueue.poll();
+      if (entry == null)
+        break;
+      mQueued.decrementAndGet();
+
+      if (mEntries.get(entry.key) != entry)
+        continue;
+
+      if (!full || (mPolicy == EvictionPolicy.LRU && entry.referenced))
+      {
+        // keep it. when full give it a second chance
+        if (full)
+          entry.referenced = false;
+        mQueue.offer(entry);
+        mQueued.incrementAndGet();
+        continue;
+      }
+      if (removeEntry(entry))
+        mEvictions.increment();
+    }
+  }
+
+  private boolean isFull()
+  {
+    return mSize.get() > mMaxSize || mWeight.sum() > mMaxWeight;
+  }
+
+  private boolean removeEntry(Entry<K, V> entry)
+  {
+    if (!mEntries.remove(entry.key, entry))
+      return false;
+    removed(entry);
+    return true;
+  }
+
+  private void removed(Entry<K, V> entry)
+  {
+    mSize.decrementAndGet();
+    mWeight.add(-entry.weight);
+  }
+
+  /**
+   * Returns the number of lookups that were found in the cache.
+   *
+   * @return the count
+   */
+  public long getHits()
+  {
+    return mHits.sum();
+  }
+
+  /**
+   * Returns the number of lookups that were not found in the cache.
+   *
+   * @return the count
+   */
+  public long getMisses()
+  {
+    return mMisses.sum();
+  }
+
+  /**
+   * Returns the number of entries removed to keep the cache within its size.
+   *
+   * @return the count
+   */
+  public long getEvictions()
+  {
+    return mEvictions.sum();
+  }
+
+  /**
+   * Returns the number of entries in the cache.
+   *
+   * @return the count
+   */
+  public int size()
+  {
+    return mSize.get();
+  }
+
+  /**
+   * Returns the maximum number of entries in the cache.
+   *
+   * @return the count
+   */
+  public int getMaxSize()
+  {
+    return mMaxSize;
+  }
+
+  /**
+   * Returns the total weight of the entries in the cache.
+   *
+   * @return the weight
+   */
+  public long getWeight()
+  {
+    return mWeight.sum();
+  }
+
+  /**
+   * Returns the maximum total weight of the entries in the cache.
+   *
+   * @return the weight. Long.MAX_VALUE when the cache has no weigher
+   */
+  public long getMaxWeight()
+  {
+    return mMaxWeight;
+  }
+
+  @Override
+  public String toString()
+  {
+    return getClass().getSimpleName() + " size: " + size() + "/" + mMaxSize
+        + (mWeigher != null ? ", weight: " + getWeight() + "/" + mMaxWeight : "") + ", hits: " + getHits()
+        + ", misses: " + getMisses() + ", evictions: " + getEvictions();
+  }
+
+  private final int mMaxSize;
+  private final long mMaxWeight;
+  private final Weigher<? super K, ? super V> mWeigher;
+  private final EvictionPolicy mPolicy;
+  private final ConcurrentHashMap<K, Entry<K, V>> mEntries = new ConcurrentHashMap<>();
+  private final ConcurrentLinkedQueue<Entry<K, V>> mQueue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger mQueued = new AtomicInteger();
+  private final AtomicInteger mSize = new AtomicInteger();
+  private final LongAdder mWeight = new LongAdder();
+
+  private final LongAdder mHits = new LongAdder();
+  private final LongAdder mMisses = new LongAdder();
+  private final LongAdder mEvictions = new LongAdder();
+}
@@ -0,0 +1,168 @@
+package snap;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of controller instances for one route. A request takes an
+ * idle instance or creates a new one when none is idle; it never waits. After
+ * the request the instance is reset and returned to the pool, or discarded
+ * when the pool is full.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class ControllerPool
+{
+  final static Logger log = LoggerFactory.getLogger(ControllerPool.class);
+
+  /**
+   * Construct a pool
+   *
+   * @param constructor
+   *          Handle of type ()Object that creates a controller
+   * @param maxIdle
+   *          The maximum number of idle instances kept
+   */
+  ControllerPool(MethodHandle constructor, int maxIdle)
+  {
+    if (maxIdle < 1)
+      throw new IllegalArgumentException("Pool size must be at least 1");
+    mConstructor = constructor;
+    mMaxIdle = maxIdle;
+    mIdle = new ArrayBlockingQueue<>(maxIdle);
+  }
+
+  /**
+   * Take an instance from the pool or create one.
+   *
+   * @return the controller
+   */
+  Object acquire()
+  {
+    mAcquired.increment();
+    Object controller = mIdle.poll();
+    if (controller != null)
+    {
+      mReused.increment();
+      return controller;
+    }
+
+    try
+    {
+      controller = (Object)mConstructor.invokeExact();
+    }
+    catch (Throwable t)
+    {
+      throw new SnapException("Can't instantiate controller", t);
+    }
+    mCreated.increment();
+    return controller;
+  }
+
+  /**
+   * Reset the instance and return it to the pool.
+   *
+   * @param controller
+   *          The controller that was acquired
+   */
+  void release(Object controller)
+  {
+    if (controller instanceof ResettableController)
+    {
+      try
+      {
+        ((ResettableController)controller).reset();
+      }
+      catch (RuntimeException e)
+      {
+        log.warn("Controller reset failed. Discarding the instance", e);
+        mDiscarded.increment();
+        return;
+      }
+    }
+    if (!mIdle.offer(controller))
+      mDiscarded.increment();
+  }
+
+  /**
+   * Returns the number of times a controller was taken from the pool.
+   *
+   * @return the count
+   */
+  public long getAcquired()
+  {
+    return mAcquired.sum();
+  }
+
+  /**
+   * Returns the number of times an idle instance was reused.
+   *
+   * @return the count
+   */
+  public long getReused()
+  {
+    return mReused.sum();
+  }
+
+  /**
+   * Returns the number of instances created.
+   *
+   * @return the count
+   */
+  public long getCreated()
+  {
+    return mCreated.sum();
+  }
+
+  /**
+   * Returns the number of instances not returned to the pool because it was
+   * full or the reset failed.
+   *
+   * @return the count
+   */
+  public long getDiscarded()
+  {
+    return mDiscarded.sum();
+  }
+
+  /**
+   * Returns the number of idle instances in the pool.
+   *
+   * @return the count
+   */
+  public int getIdle()
+  {
+    return mIdle.size();
+  }
+
+  /**
+   * Returns the maximum number of idle instances.
+   *
+   * @return the count
+   */
+  public int getMaxIdle()
+  {
+    return mMaxIdle;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "ControllerPool idle: " + getIdle() + "/" + mMaxIdle + ", acquired: " + getAcquired()
+        + ", reused: " + getReused() + ", created: " + getCreated() + ", discarded: " + getDiscarded();
+  }
+
+  private final MethodHandle mConstructor;
+  private final int mMaxIdle;
+  private final ArrayBlockingQueue<Object> mIdle;
+
+  private final LongAdder mAcquired = new LongAdder();
+  private final LongAdder mReused = new LongAdder();
+  private final LongAdder mCreated = new LongAdder();
+  private final LongAdder mDiscarded = new LongAdder();
+}
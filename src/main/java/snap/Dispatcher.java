@@ -2,6 +2,8 @@ package snap;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
@@ -10,8 +12,16 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -24,11 +34,14 @@ import org.slf4j.LoggerFactory;
 import io.mikael.urlbuilder.UrlBuilder;
 import snap.Settings.LocaleMode;
 import snap.forms.MissingCsrfTokenException;
+import snap.http.AsyncResult;
 import snap.http.HttpError;
 import snap.http.HttpMethod;
 import snap.http.HttpRedirect;
+import snap.http.PrerenderedError;
 import snap.http.RequestContext;
 import snap.http.RequestResult;
+import snap.views.NullView;
 
 public class Dispatcher extends HttpServlet
 {
@@ -79,6 +92,34 @@ public class Dispatcher extends HttpServlet
 
     // cache the field here so we don't have to do a lookup each time
     mRequestListener = mWebApplication.getRequestListener();
+
+    if (Settings.virtualThreads)
+      mExecutor = newVirtualThreadExecutor();
+  }
+
+  /**
+   * Creates an executor that starts a virtual thread for each request. Virtual
+   * threads are looked up at runtime so snap still runs on Java 8.
+   *
+   * @return the executor or null if the JVM has no virtual threads
+   */
+  private ExecutorService newVirtualThreadExecutor()
+  {
+    try
+    {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      log.info("Requests are handled on virtual threads");
+      return (ExecutorService)factory.invoke(null);
+    }
+    catch (NoSuchMethodException e)
+    {
+      log.warn("'snap.dispatcher.virtualthreads' requires Java 21 or newer. Using container threads");
+    }
+    catch (IllegalAccessException | InvocationTargetException e)
+    {
+      log.warn("Can't create the virtual thread executor. Using container threads", e);
+    }
+    return null;
   }
 
   /* forward all requests to a single point of entry */
@@ -86,64 +127,130 @@ public class Dispatcher extends HttpServlet
   protected void doHead(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException
   {
-    handleRequest(new RequestContext(HttpMethod.HEAD, request, response));
+    dispatch(new RequestContext(HttpMethod.HEAD, request, response));
   }
 
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException
   {
-    handleRequest(new RequestContext(HttpMethod.GET, request, response));
+    dispatch(new RequestContext(HttpMethod.GET, request, response));
   }
 
   @Override
   protected void doPost(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException
   {
-    handleRequest(new RequestContext(HttpMethod.POST, request, response));
+    dispatch(new RequestContext(HttpMethod.POST, request, response));
   }
 
   @Override
   protected void doPut(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException
   {
-    handleRequest(new RequestContext(HttpMethod.PUT, request, response));
+    dispatch(new RequestContext(HttpMethod.PUT, request, response));
   }
 
   @Override
   protected void doDelete(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException
   {
-    handleRequest(new RequestContext(HttpMethod.DELETE, request, response));
+    dispatch(new RequestContext(HttpMethod.DELETE, request, response));
   }
 
   @Override
   protected void doOptions(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException
   {
-    handleRequest(new RequestContext(HttpMethod.OPTIONS, request, response));
+    dispatch(new RequestContext(HttpMethod.OPTIONS, request, response));
   }
 
   @Override
   protected void doTrace(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException
   {
-    handleRequest(new RequestContext(HttpMethod.TRACE, request, response));
+    dispatch(new RequestContext(HttpMethod.TRACE, request, response));
   }
 
-  private void handleRequest(RequestContext context) throws ServletException, IOException
+  /**
+   * Run the request on the container thread, or on a virtual thread when
+   * snap.dispatcher.virtualthreads is enabled and the servlet supports async.
+   */
+  private void dispatch(RequestContext context) throws ServletException, IOException
+  {
+    ExecutorService executor = mExecutor;
+    HttpServletRequest request = context.getRequest();
+    if (executor == null || !request.isAsyncSupported())
+    {
+      handleRequest(context, true);
+      return;
+    }
+
+    AsyncContext asyncContext = request.startAsync();
+    // like a request on a container thread it runs until it's done. Waiting
+    // for an AsyncResult is limited by snap.async.timeout in handleRequest()
+    asyncContext.setTimeout(0);
+    try
+    {
+      executor.execute(() -> {
+        try
+        {
+          handleRequest(context, false);
+        }
+        catch (ServletException | IOException | RuntimeException e)
+        {
+          log.error("Request failed", e);
+          HttpServletResponse response = context.getResponse();
+          try
+          {
+            if (!response.isCommitted())
+              response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+          }
+          catch (IOException ioe)
+          {
+            log.debug("Can't send error", ioe);
+          }
+        }
+        finally
+        {
+          asyncContext.complete();
+        }
+      });
+    }
+    catch (RejectedExecutionException ree)
+    {
+      // the executor shuts down with the servlet
+      try
+      {
+        handleRequest(context, false);
+      }
+      finally
+      {
+        asyncContext.complete();
+      }
+    }
+  }
+
+  /**
+   * Handle the request.
+   *
+   * @param context
+   *          The context of the request
+   * @param allowAsync
+   *          If true an asynchronous result releases the current thread. If
+   *          false the current thread waits for it
+   */
+  private void handleRequest(RequestContext context, boolean allowAsync) throws ServletException, IOException
   {
 
     context.setRouter(mRouter);
     HttpServletRequest request = context.getRequest();
-    HttpServletResponse response = context.getResponse();
 
     if (request.getCharacterEncoding() == null)
       request.setCharacterEncoding("UTF-8");
 
     WebApplication.getInstance().setRequestContext(context);
 
-    RequestResult requestResult = null;
     RequestResult errorResult = null;
 
     // match the path here and find a route
@@ -181,83 +288,288 @@ public class Dispatcher extends HttpServlet
       if (mRequestListener != null)
         mRequestListener.onBeforeRequest(context);
 
-      RouteMatcher routeMatcher = mRouter.findRouteMatcherForPath(method, path);
-      context.setRouteMatcher(routeMatcher);
+      RouteMatch routeMatch = mRouter.lookupRouteMatch(method, path);
+      if (!routeMatch.isFound())
+      {
+        // routing misses are common (scanners, bots) and are answered without
+        // throwing
+        errorResult = getMissResult(context, routeMatch);
+        return;
+      }
+      context.setRouteMatch(routeMatch);
 
       // Ask the controller to process the request
-      requestResult = routeMatcher.handleRoute(context);
-
-      // If the user changed the language during the request and the language
-      // should be in the subdomain and the user wanted to switch domains, then
-      // redirect to the new domain
-      String newLanguage = context.getLanguage();
-      if (Settings.localeMode == LocaleMode.SUBDOMAIN && !Objects.equals(newLanguage, oldLanguage)
-          && context.isPersistLanguage())
+      RequestResult requestResult = routeMatch.getMatcher().handleRoute(context);
+
+      if (requestResult instanceof AsyncResult)
+      {
+        AsyncResult asyncResult = (AsyncResult)requestResult;
+        if (allowAsync && request.isAsyncSupported())
+        {
+          // release this thread. The response is finished when the controller
+          // completes
+          completeAsync(context, oldLanguage, asyncResult);
+          return;
+        }
+        try
+        {
+          requestResult = asyncResult.await();
+        }
+        catch (TimeoutException e)
+        {
+          log.warn("Asynchronous request timed out: " + context.getPath());
+          errorResult = new HttpError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Request timed out");
+          return;
+        }
+      }
+
+      finishRequest(context, oldLanguage, requestResult);
+    }
+    catch (Throwable t)
+    {
+      errorResult = getErrorResult(context, t);
+    }
+    finally
+    {
+      WebApplication.getInstance().removeRequestContext();
+      renderError(context, errorResult);
+    }
+  }
+
+  /**
+   * Process the result of the controller and notify the request listener
+   */
+  private void finishRequest(RequestContext context, String oldLanguage, RequestResult requestResult)
+      throws IOException
+  {
+    // If the user changed the language during the request and the language
+    // should be in the subdomain and the user wanted to switch domains, then
+    // redirect to the new domain
+    String newLanguage = context.getLanguage();
+    if (Settings.localeMode == LocaleMode.SUBDOMAIN && !Objects.equals(newLanguage, oldLanguage)
+        && context.isPersistLanguage())
+    {
+      // the user wants the language string in the subdomain, then handle
+      // it here
+
+      if (!(requestResult instanceof HttpRedirect))
       {
-        // the user wants the language string in the subdomain, then handle
-        // it here
+        log.error("When you change the language using RequestContext.setLanguage() you must return a HttpRedirect result.");
+        throw new IllegalStateException("Invalid controller result "
+            + requestResult.getClass().getSimpleName() + ". Expected HttpRedirect");
+      }
+      HttpRedirect redirect = (HttpRedirect)requestResult;
+      URI redirectUri = redirect.getURI();
+      UrlBuilder ub1 = UrlBuilder.fromUri(Settings.siteRootUri);
+      String lang = context.getLanguage();
+      String hostname = ub1.hostName;
+      if (lang != null && !lang.isEmpty())
+        hostname = lang + "." + ub1.hostName;
+      String uriPath = redirectUri.getPath();
+      if (uriPath.charAt(0) != '/')
+        uriPath = "/" + uriPath;
+      ub1 = ub1.withHost(hostname).withPath(uriPath).withQuery(redirectUri.getQuery());
+      requestResult = new HttpRedirect(ub1.toUrl(), redirect.getRedirectType());
+    }
+
+    // Process the returned result of the controller.
+    context.saveSession();
+    requestResult.handleResult(context);
+
+    if (mRequestListener != null)
+      mRequestListener.onAfterRequest(context);
+  }
 
-        if (!(requestResult instanceof HttpRedirect))
+  /**
+   * Finish the request when the asynchronous result completes. The request
+   * listener and the error handling run as they would for a synchronous
+   * request, with the RequestContext set on the completing thread.
+   */
+  private void completeAsync(RequestContext context, String oldLanguage, AsyncResult asyncResult)
+  {
+    AsyncContext asyncContext = context.getRequest().startAsync();
+    asyncContext.setTimeout(Settings.asyncTimeout);
+    AtomicBoolean finished = new AtomicBoolean();
+
+    asyncContext.addListener(new AsyncListener()
+    {
+      @Override
+      public void onTimeout(AsyncEvent event) throws IOException
+      {
+        if (!finished.compareAndSet(false, true))
+          return;
+        log.warn("Asynchronous request timed out: " + context.getPath());
+        renderError(context, new HttpError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Request timed out"));
+        asyncContext.complete();
+      }
+
+      @Override
+      public void onError(AsyncEvent event) throws IOException
+      {
+        finished.set(true);
+        log.warn("Asynchronous request failed: " + context.getPath(), event.getThrowable());
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event) throws IOException
+      {
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) throws IOException
+      {
+      }
+    });
+
+    asyncResult.getStage().whenComplete((requestResult, error) -> {
+      // the response was already finished by the timeout
+      if (!finished.compareAndSet(false, true))
+        return;
+
+      WebApplication application = WebApplication.getInstance();
+      application.setRequestContext(context);
+      RequestResult errorResult = null;
+      try
+      {
+        if (error != null)
+          errorResult = getErrorResult(context, AsyncResult.unwrap(error));
+        else
+          finishRequest(context, oldLanguage, requestResult);
+      }
+      catch (Throwable t)
+      {
+        try
         {
-          log.error("When you change the language using RequestContext.setLanguage() you must return a HttpRedirect result.");
-          throw new IllegalStateException("Invalid controller result "
-              + requestResult.getClass().getSimpleName() + ". Expected HttpRedirect");
+          errorResult = getErrorResult(context, t);
         }
-        HttpRedirect redirect = (HttpRedirect)requestResult;
-        URI redirectUri = redirect.getURI();
-        UrlBuilder ub1 = UrlBuilder.fromUri(Settings.siteRootUri);
-        String lang = context.getLanguage();
-        String hostname = ub1.hostName;
-        if (lang != null && !lang.isEmpty())
-          hostname = lang + "." + ub1.hostName;
-        String uriPath = redirectUri.getPath();
-        if (uriPath.charAt(0) != '/')
-          uriPath = "/" + uriPath;
-        ub1 = ub1.withHost(hostname).withPath(uriPath).withQuery(redirectUri.getQuery());
-        requestResult = new HttpRedirect(ub1.toUrl(), redirect.getRedirectType());
+        catch (Throwable t2)
+        {
+          log.error("Asynchronous request failed", t2);
+        }
+      }
+      finally
+      {
+        application.removeRequestContext();
       }
 
-      // Process the returned result of the controller.
-      requestResult.handleResult(context);
+      try
+      {
+        renderError(context, errorResult);
+      }
+      finally
+      {
+        asyncContext.complete();
+      }
+    });
+  }
 
-      if (mRequestListener != null)
-        mRequestListener.onAfterRequest(context);
+  /**
+   * Returns the result for a path that no route matches or a method that the
+   * matching routes don't accept.
+   *
+   * @return the result to send
+   */
+  private RequestResult getMissResult(RequestContext context, RouteMatch miss)
+  {
+    HttpServletResponse response = context.getResponse();
+    int status;
+    String message;
+    if (miss.getAllow() != null)
+    {
+      response.setHeader("Allow", miss.getAllow());
+      if (context.getMethod() == HttpMethod.OPTIONS)
+      {
+        // No route handles OPTIONS for this path. Answer it automatically
+        response.setContentLength(0);
+        return new NullView(HttpServletResponse.SC_OK);
+      }
+      status = HttpServletResponse.SC_METHOD_NOT_ALLOWED;
+      message = "Invalid http method";
+    }
+    else
+    {
+      status = HttpServletResponse.SC_NOT_FOUND;
+      message = "Route not found";
+    }
+
+    if (Settings.prerenderedErrors && !Settings.debug)
+      return PrerenderedError.forStatus(status);
+
+    return new HttpError(status, message, Router.missException(miss, context.getMethod(), context.getPath()));
+  }
+
+  /**
+   * Translate an exception into the result that reports it to the client.
+   *
+   * @return the result or null if the response was already sent
+   */
+  private RequestResult getErrorResult(RequestContext context, Throwable exception) throws IOException
+  {
+    HttpServletRequest request = context.getRequest();
+    HttpServletResponse response = context.getResponse();
+    String path = context.getPath();
+    RequestResult errorResult = null;
 
+    if (exception instanceof MissingCsrfTokenException)
+    {
+      errorResult = new HttpError(HttpServletResponse.SC_BAD_REQUEST, "CsrfToken missing", exception);
+    }
+    else if (exception instanceof InvalidCsrfTokenException)
+    {
+      errorResult = new HttpError(HttpServletResponse.SC_BAD_REQUEST, "CsrfToken invalid", exception);
+    }
+    else if (exception instanceof HttpMethodException)
+    {
+      HttpMethodException hme = (HttpMethodException)exception;
+      if (hme.getAllow() != null)
+        response.setHeader("Allow", hme.getAllow());
+
+      if (context.getMethod() == HttpMethod.OPTIONS && hme.getAllow() != null)
+      {
+        // No route handles OPTIONS for this path. Answer it automatically
+        response.setContentLength(0);
+        errorResult = new NullView(HttpServletResponse.SC_OK);
+      }
+      else
+        errorResult = new HttpError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Invalid http method", hme);
     }
-    catch (MissingCsrfTokenException mct)
+    else if (exception instanceof RouteNotFoundException)
     {
-      errorResult = new HttpError(HttpServletResponse.SC_BAD_REQUEST, "CsrfToken missing", mct);
+      errorResult = new HttpError(HttpServletResponse.SC_NOT_FOUND, "Route not found", exception);
     }
-    catch (InvalidCsrfTokenException ict)
+    else if (exception instanceof ResourceNotFoundException)
     {
-      errorResult = new HttpError(HttpServletResponse.SC_BAD_REQUEST, "CsrfToken invalid", ict);
+      errorResult = new HttpError(HttpServletResponse.SC_NOT_FOUND, "Resource not found", exception);
     }
-    catch (HttpMethodException hme)
+    else if (exception instanceof AuthorizationException)
     {
-      errorResult = new HttpError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Invalid http method", hme);
+      errorResult = new HttpError(HttpServletResponse.SC_FORBIDDEN, "User not authorized", exception);
     }
-    catch (RouteNotFoundException rnfe)
+    else if (exception instanceof URISyntaxException)
     {
-      errorResult = new HttpError(HttpServletResponse.SC_NOT_FOUND, "Route not found", rnfe);
+      errorResult = new HttpError(HttpServletResponse.SC_BAD_REQUEST, "This request URI is invalid", exception);
     }
-    catch (ResourceNotFoundException rnfe)
+    else if (exception instanceof ParameterBindingException)
     {
-      errorResult = new HttpError(HttpServletResponse.SC_NOT_FOUND, "Resource not found", rnfe);
+      errorResult = new HttpError(HttpServletResponse.SC_BAD_REQUEST, exception.getMessage(), exception);
     }
-    catch (AuthorizationException ae)
+    else if (exception instanceof RequestEntityTooLargeException)
     {
-      errorResult = new HttpError(HttpServletResponse.SC_FORBIDDEN, "User not authorized", ae);
+      errorResult = new HttpError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, exception.getMessage(),
+          exception);
     }
-    catch (URISyntaxException use)
+    else if (exception instanceof UnsupportedMediaTypeException)
     {
-      errorResult = new HttpError(HttpServletResponse.SC_BAD_REQUEST, "This request URI is invalid", use);
+      errorResult = new HttpError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, exception.getMessage(),
+          exception);
     }
-    catch (UnsupportedRequestException ure)
+    else if (exception instanceof UnsupportedRequestException)
     {
-      errorResult = new HttpError(HttpServletResponse.SC_BAD_REQUEST, "This request is not supported", ure);
+      errorResult = new HttpError(HttpServletResponse.SC_BAD_REQUEST, "This request is not supported", exception);
     }
-    catch (AuthenticationException uae)
+    else if (exception instanceof AuthenticationException)
     {
+      AuthenticationException uae = (AuthenticationException)exception;
       // check if user wants redirects
       if (context.getRoute().isRedirectEnabled())
       {
@@ -284,6 +596,7 @@ public class Dispatcher extends HttpServlet
 
         String next = query != null ? path + "?" + query : path;
         // no need to encode as getQueryString() returns encoded values
+        context.saveSession();
         response.sendRedirect(newPath + "?next=" + URLEncoder.encode(next, "UTF-8") + "&" + redirParams
             .entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining("&")));
       }
@@ -292,29 +605,31 @@ public class Dispatcher extends HttpServlet
         errorResult = new HttpError(HttpServletResponse.SC_UNAUTHORIZED, "You are not authenticated");
       }
     }
-    catch (SnapException se)
+    else if (exception instanceof SnapException)
     {
-      log.error("Snap Framework error", se);
-      errorResult = new HttpError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, se.getMessage(), se);
+      log.error("Snap Framework error", exception);
+      errorResult = new HttpError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, exception.getMessage(), exception);
     }
-    catch (Throwable t)
+    else
     {
-      log.error("Uncaught exception", t);
+      log.error("Uncaught exception", exception);
       // Catch everything and report it in the browser.
       // If we really can't handle it then bail
       // Load error view
-      errorResult = new HttpError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal Server Error", t);
-    }
-    finally
-    {
-      WebApplication.getInstance().removeRequestContext();
+      errorResult = new HttpError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal Server Error",
+          exception);
     }
+    return errorResult;
+  }
 
+  private void renderError(RequestContext context, RequestResult errorResult)
+  {
     // If requestresult != null then an error occurred;
     if (errorResult != null)
     {
       try
       {
+        context.saveSession();
         errorResult.handleResult(context);
       }
       catch (IOException ioe)
@@ -328,6 +643,9 @@ public class Dispatcher extends HttpServlet
   public void destroy()
   {
     super.destroy();
+    if (mExecutor != null)
+      mExecutor.shutdown();
+    mRouter.destroy();
     mWebApplication.destroy();
   }
 
@@ -344,5 +662,7 @@ public class Dispatcher extends HttpServlet
   private Router mRouter;
   private WebApplication mWebApplication;
   private RequestListener mRequestListener;
+  // runs requests on virtual threads. null to use the container threads
+  private ExecutorService mExecutor;
 
 }
@@ -0,0 +1,145 @@
+package snap;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches directories for changes on a background (daemon) thread and calls a
+ * listener with the path of each created, modified or deleted file. When the
+ * file system drops events the listener is called with the directory itself.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class FileWatcher implements Closeable
+{
+  final static Logger log = LoggerFactory.getLogger(FileWatcher.class);
+
+  private static class Registration
+  {
+    Registration(Path directory, Consumer<Path> listener)
+    {
+      this.directory = directory;
+      this.listener = listener;
+    }
+
+    final Path directory;
+    final Consumer<Path> listener;
+  }
+
+  /**
+   * Construct a watcher.
+   *
+   * @param name
+   *          The name of the watcher thread
+   * @throws IOException
+   *           When the file system doesn't support watching
+   */
+  public FileWatcher(String name) throws IOException
+  {
+    mWatchService = FileSystems.getDefault().newWatchService();
+    mThread = new Thread(this::run, name);
+    mThread.setDaemon(true);
+    mThread.start();
+  }
+
+  /**
+   * Watch a directory (not its subdirectories).
+   *
+   * @param directory
+   *          The directory to watch
+   * @param listener
+   *          Called on the watcher thread with the path that changed
+   * @throws IOException
+   *           When the directory can't be watched
+   */
+  public void watch(Path directory, Consumer<Path> listener) throws IOException
+  {
+    // the watcher thread takes the lock before it looks up a key, so it can't
+    // see events of a key that isn't registered yet
+    synchronized (mRegistrations)
+    {
+      WatchKey key = directory.register(mWatchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+      mRegistrations.put(key, new Registration(directory, listener));
+    }
+  }
+
+  /**
+   * Stops watching and ends the watcher thread.
+   */
+  @Override
+  public void close()
+  {
+    try
+    {
+      mWatchService.close();
+    }
+    catch (IOException e)
+    {
+      log.debug("Error closing watch service", e);
+    }
+  }
+
+  private void run()
+  {
+    try
+    {
+      while (true)
+      {
+        WatchKey key = mWatchService.take();
+        Registration registration;
+        synchronized (mRegistrations)
+        {
+          registration = mRegistrations.get(key);
+        }
+        if (registration != null)
+        {
+          for (WatchEvent<?> event : key.pollEvents())
+          {
+            Path changed;
+            if (event.kind() == OVERFLOW)
+              changed = registration.directory;
+            else
+              changed = registration.directory.resolve((Path)event.context());
+
+            try
+            {
+              registration.listener.accept(changed);
+            }
+            catch (RuntimeException e)
+            {
+              log.error("File change listener failed for: " + changed, e);
+            }
+          }
+        }
+        if (!key.reset())
+          mRegistrations.remove(key);
+      }
+    }
+    catch (InterruptedException | ClosedWatchServiceException e)
+    {
+      log.debug("File watcher stopped");
+    }
+  }
+
+  private final WatchService mWatchService;
+  private final Thread mThread;
+  private final Map<WatchKey, Registration> mRegistrations = new ConcurrentHashMap<>();
+}
@@ -0,0 +1,93 @@
+package snap;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives each role or permission name a fixed bit index. Sets of names become
+ * bit sets, so checking whether a user has one of the required roles is a
+ * single intersection instead of a string lookup per role.
+ *
+ * The application has one registry for roles and one for permissions. See
+ * WebApplication.getRoleRegistry() and WebApplication.getPermissionRegistry().
+ * Names get their index the first time they are seen. Register them at startup
+ * to fix the order.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public final class GrantRegistry
+{
+  /**
+   * Returns the bit index of a name. Assigns the next free index to names that
+   * were not seen before.
+   *
+   * @param name
+   *          The name of the role or permission
+   * @return the index
+   */
+  public int indexOf(String name)
+  {
+    Integer index = mIndexes.get(name);
+    if (index != null)
+      return index;
+
+    synchronized (this)
+    {
+      return mIndexes.computeIfAbsent(name, n -> mIndexes.size());
+    }
+  }
+
+  /**
+   * Register names. Same as calling indexOf() for each name.
+   *
+   * @param names
+   *          The names of the roles or permissions
+   */
+  public void register(String... names)
+  {
+    for (String name : names)
+      indexOf(name);
+  }
+
+  /**
+   * Returns the bits of the names
+   *
+   * @param names
+   *          The names of the roles or permissions
+   * @return the bit set with the index of each name set
+   */
+  public BitSet bitsOf(String... names)
+  {
+    BitSet bits = new BitSet(mIndexes.size() + names.length);
+    for (String name : names)
+      bits.set(indexOf(name));
+    return bits;
+  }
+
+  /**
+   * Returns the bits of the names
+   *
+   * @param names
+   *          The names of the roles or permissions
+   * @return the bit set with the index of each name set
+   */
+  public BitSet bitsOf(Collection<String> names)
+  {
+    return bitsOf(names.toArray(new String[names.size()]));
+  }
+
+  /**
+   * Returns the number of names in the registry
+   *
+   * @return the count
+   */
+  public int size()
+  {
+    return mIndexes.size();
+  }
+
+  private final Map<String, Integer> mIndexes = new ConcurrentHashMap<>();
+}
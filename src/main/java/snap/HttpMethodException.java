@@ -11,4 +11,33 @@ public class HttpMethodException extends SnapException
   {
     super(message, cause);
   }
+
+  /**
+   * Constructs an exception for a path that exists but doesn't accept the
+   * requested method. The stack trace is only recorded when snap.site.debug is
+   * on.
+   *
+   * @param message
+   *          The message
+   * @param allow
+   *          The value for the Allow header. The methods that are accepted for
+   *          the path
+   */
+  public HttpMethodException(String message, String allow)
+  {
+    super(message, null, Settings.debug);
+    mAllow = allow;
+  }
+
+  /**
+   * Returns the methods the requested path does accept.
+   *
+   * @return The value for the Allow header or null if not known
+   */
+  public String getAllow()
+  {
+    return mAllow;
+  }
+
+  private String mAllow;
 }
@@ -1,49 +1,215 @@
 package snap;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.UUID;
 
+/**
+ * A multipart/byteranges body with several ranges of a file. The part headers
+ * are built once, so the exact content length is known before anything is
+ * sent. Ranges are inclusive: the first and the last byte of each range.
+ *
+ * The body is written with writeTo() or read with a MultiPartFileInputStream.
+ */
 public class MultiPartFile
 {
 
-  private static final int BOUNDARY_INOUT_LEN = 2; // "--"
-  private static final int NEWLINE_LEN = 1;
-  private static final int CONTENT_TYPE_LEN = 14; // "Content-Type: "
-  private static final int CONTENT_RANGE_LEN = 21; // "Content-Range: bytes "
+  private static final String NEWLINE = "\r\n";
+  private static final String BOUNDARY_INOUT = "--";
+  private static final String CONTENT_TYPE = "Content-Type: ";
+  private static final String CONTENT_RANGE = "Content-Range: bytes ";
+  // transferTo() calls without progress before falling back to a copy
+  private static final int MAX_TRANSFER_STALLS = 8;
+  private static final int COPY_BUFFER_SIZE = 8192;
 
   private List<Pair<Long, Long>> ranges;
   private File file;
+  private long fileLength;
   private String boundaryToken;
   private String contentType;
 
+  private byte[][] partHeaders;
+  private byte[] trailer;
   private long contentLength;
 
   public MultiPartFile(File file, List<Pair<Long, Long>> ranges, String contentType)
+  {
+    this(file, file.length(), ranges, contentType);
+  }
+
+  /**
+   * Construct a multipart body
+   *
+   * @param file
+   *          The file. Not used when the content is written from memory
+   * @param fileLength
+   *          The length of the file (or the content) for the Content-Range
+   *          headers
+   * @param ranges
+   *          The ranges to send. First and last byte, inclusive
+   * @param contentType
+   *          The content type of the file
+   */
+  public MultiPartFile(File file, long fileLength, List<Pair<Long, Long>> ranges, String contentType)
   {
     this.ranges = ranges;
     this.file = file;
+    this.fileLength = fileLength;
     this.boundaryToken = UUID.randomUUID().toString();
     this.contentType = contentType;
 
-    final int FILE_LEN = Long.toString(file.length()).length();
+    partHeaders = new byte[ranges.size()][];
     contentLength = 0;
-    for (Pair<Long, Long> range : ranges)
+    for (int i = 0; i < ranges.size(); i++)
     {
-      contentLength += BOUNDARY_INOUT_LEN + boundaryToken.length() + NEWLINE_LEN + CONTENT_TYPE_LEN
-          + contentType.length() + NEWLINE_LEN + CONTENT_RANGE_LEN + range.getFirst().toString().length() + 1
-          + range.getSecond().toString().length() + 1 + FILE_LEN + NEWLINE_LEN + NEWLINE_LEN;
-      contentLength += range.getSecond() - range.getFirst();
+      Pair<Long, Long> range = ranges.get(i);
+      String header = NEWLINE + BOUNDARY_INOUT + boundaryToken + NEWLINE + CONTENT_TYPE + contentType + NEWLINE
+          + CONTENT_RANGE + range.getFirst() + "-" + range.getSecond() + "/" + fileLength + NEWLINE + NEWLINE;
+      partHeaders[i] = header.getBytes(StandardCharsets.US_ASCII);
+      contentLength += partHeaders[i].length + getRangeLength(i);
     }
-    contentLength += NEWLINE_LEN + BOUNDARY_INOUT_LEN + boundaryToken.length() + BOUNDARY_INOUT_LEN;
+    trailer = (NEWLINE + BOUNDARY_INOUT + boundaryToken + BOUNDARY_INOUT + NEWLINE)
+        .getBytes(StandardCharsets.US_ASCII);
+    contentLength += trailer.length;
+  }
 
+  /**
+   * Writes the body. The ranges are copied from the file with transferTo(),
+   * which uses the zero copy path of the platform where it can.
+   *
+   * @param out
+   *          The channel to write to
+   * @param source
+   *          The open file
+   * @throws IOException
+   *           When the file can't be read or the client disconnected
+   */
+  public void writeTo(WritableByteChannel out, FileChannel source) throws IOException
+  {
+    for (int i = 0; i < ranges.size(); i++)
+    {
+      write(out, partHeaders[i]);
+      transfer(source, out, ranges.get(i).getFirst(), getRangeLength(i));
+    }
+    write(out, trailer);
   }
 
+  /**
+   * Writes the body with the ranges taken from the content in memory.
+   *
+   * @param out
+   *          The stream to write to
+   * @param content
+   *          The content of the file
+   * @throws IOException
+   *           When the client disconnected
+   */
+  public void writeTo(OutputStream out, byte[] content) throws IOException
+  {
+    for (int i = 0; i < ranges.size(); i++)
+    {
+      out.write(partHeaders[i]);
+      out.write(content, (int)(long)ranges.get(i).getFirst(), (int)getRangeLength(i));
+    }
+    out.write(trailer);
+  }
+
+  /**
+   * Copies part of a file to a channel. transferTo() uses the zero copy path
+   * of the platform where it can and otherwise copies through a cached direct
+   * buffer, so no buffer is allocated per request.
+   *
+   * @param file
+   *          The open file
+   * @param out
+   *          The channel to write to
+   * @param start
+   *          The position of the first byte
+   * @param length
+   *          The number of bytes
+   * @throws IOException
+   *           When the file can't be read, got shorter or the client
+   *           disconnected
+   */
+  static void transfer(FileChannel file, WritableByteChannel out, long start, long length) throws IOException
+  {
+    long position = start;
+    long end = start + length;
+    int stalls = 0;
+    while (position < end)
+    {
+      // the file got shorter than the range
+      if (end > file.size())
+        throw new IOException("File truncated while sending: " + (end - file.size()) + " bytes missing");
+
+      long sent = file.transferTo(position, end - position, out);
+      if (sent > 0)
+      {
+        position += sent;
+        stalls = 0;
+      }
+      else if (++stalls >= MAX_TRANSFER_STALLS)
+      {
+        // transferTo() makes no progress. copy through a buffer instead
+        copy(file, out, position, end - position);
+        return;
+      }
+    }
+  }
+
+  private static void copy(FileChannel file, WritableByteChannel out, long start, long length)
+      throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(COPY_BUFFER_SIZE, length));
+    long position = start;
+    long end = start + length;
+    while (position < end)
+    {
+      buffer.clear();
+      buffer.limit((int)Math.min(buffer.capacity(), end - position));
+      int read = file.read(buffer, position);
+      if (read < 0)
+        throw new IOException("File truncated while sending: " + (end - position) + " bytes missing");
+      position += read;
+      buffer.flip();
+      while (buffer.hasRemaining())
+        out.write(buffer);
+    }
+  }
+
+  private static void write(WritableByteChannel out, byte[] bytes) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining())
+      out.write(buffer);
+  }
+
+  /**
+   * Returns the exact number of bytes of the body
+   *
+   * @return the content length
+   */
   public long getContentLength()
   {
     return contentLength;
   }
 
+  /**
+   * Returns the Content-Type header of the whole body
+   *
+   * @return multipart/byteranges with the boundary
+   */
+  public String getMultiPartContentType()
+  {
+    return "multipart/byteranges; boundary=" + boundaryToken;
+  }
+
   public List<Pair<Long, Long>> getRanges()
   {
     return ranges;
@@ -54,6 +220,11 @@ public class MultiPartFile
     return file;
   }
 
+  public long getFileLength()
+  {
+    return fileLength;
+  }
+
   public String getBoundaryToken()
   {
     return boundaryToken;
@@ -64,4 +235,20 @@ public class MultiPartFile
     return contentType;
   }
 
+  long getRangeLength(int index)
+  {
+    Pair<Long, Long> range = ranges.get(index);
+    return range.getSecond() - range.getFirst() + 1;
+  }
+
+  byte[] getPartHeader(int index)
+  {
+    return partHeaders[index];
+  }
+
+  byte[] getTrailer()
+  {
+    return trailer;
+  }
+
 }
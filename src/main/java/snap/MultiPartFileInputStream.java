@@ -1,51 +1,56 @@
 package snap;
 
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.nio.charset.StandardCharsets;
-import java.util.List;
 
+/**
+ * Reads the multipart/byteranges body of a MultiPartFile. The body is a
+ * sequence of segments: the header of each part followed by its range of the
+ * file and finally the closing boundary. Ranges are read from the file in
+ * bulk.
+ */
 public class MultiPartFileInputStream extends InputStream
 {
-  private static final String NEWLINE = "\r\n";
-  private static final String CONTENT_TYPE = "Content-Type: ";
-  private static final String CONTENT_RANGE = "Content-Range: bytes ";
-  private static final int BLOCK = 1;
-  private static final int DATA = 2;
-
   private MultiPartFile multiPartFile;
   private RandomAccessFile fileHandle;
-  private byte[] multiPartBlock;
-  List<Pair<Long, Long>> ranges;
 
-  private int rangeIndex = 0;
-  private long byteOffset = 0;
-  private int dataOrBlock = BLOCK;
+  // even segments are part headers, odd segments file ranges. The last
+  // segment is the trailer
+  private int segment = 0;
+  private long segmentOffset = 0;
+  private int segmentCount;
 
   public MultiPartFileInputStream(MultiPartFile multiPartFile) throws FileNotFoundException
   {
     this.multiPartFile = multiPartFile;
-    ranges = multiPartFile.getRanges();
     fileHandle = new RandomAccessFile(multiPartFile.getFile(), "r");
-    createNextBlock();
+    segmentCount = multiPartFile.getRanges().size() * 2 + 1;
   }
 
+  /**
+   * Start reading from the beginning of the body again
+   */
   @Override
   public void reset()
   {
-    rangeIndex = 0;
-    byteOffset = 0l;
-    dataOrBlock = BLOCK;
+    segment = 0;
+    segmentOffset = 0;
   }
 
   @Override
-
   public long skip(long n)
   {
-    throw new UnsupportedOperationException("Not yet implemented");
-    // return 0l;
+    long skipped = 0;
+    while (skipped < n && nextSegment())
+    {
+      long step = Math.min(n - skipped, segmentLength(segment) - segmentOffset);
+      segmentOffset += step;
+      skipped += step;
+    }
+    return skipped;
   }
 
   @Override
@@ -57,38 +62,42 @@ public class MultiPartFileInputStream extends InputStream
   @Override
   public int available()
   {
-    if (rangeIndex > ranges.size())
+    if (!nextSegment())
       return 0;
-
-    if (rangeIndex == ranges.size())
-      return multiPartBlock.length - (int)byteOffset;
-
-    return 1;
+    return (int)Math.min(Integer.MAX_VALUE, segmentLength(segment) - segmentOffset);
   }
 
   @Override
   public int read() throws IOException
   {
-    int result;
-    if (dataOrBlock == BLOCK)
+    byte[] b = new byte[1];
+    int read = read(b, 0, 1);
+    return read == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException
+  {
+    if (len == 0)
+      return 0;
+    if (!nextSegment())
+      return -1;
+
+    int count = (int)Math.min(len, segmentLength(segment) - segmentOffset);
+    if (segment % 2 == 0)
     {
-      result = (int)multiPartBlock[(int)byteOffset];
+      System.arraycopy(block(segment), (int)segmentOffset, b, off, count);
     }
     else
     {
-      // DATA
-      if (!isPointerValid())
-        return -1;
-
-      Pair<Long, Long> pair = ranges.get(rangeIndex);
-
-      fileHandle.seek(pair.getFirst() + byteOffset);
-      result = fileHandle.read();
-
+      Pair<Long, Long> range = multiPartFile.getRanges().get(segment / 2);
+      fileHandle.seek(range.getFirst() + segmentOffset);
+      count = fileHandle.read(b, off, count);
+      if (count == -1)
+        throw new EOFException("File truncated: " + multiPartFile.getFile());
     }
-    advancePointer();
-    return result;
-
+    segmentOffset += count;
+    return count;
   }
 
   @Override
@@ -99,80 +108,32 @@ public class MultiPartFileInputStream extends InputStream
   }
 
   /**
-   * Advance the byte pointer. The current rangeindex includes the block. when
-   * the data is finished advance the pointer to the next block when the block
-   * is finished switch to the data
+   * Moves past the segments that are finished
+   *
+   * @return false at the end of the body
    */
-  private void advancePointer()
+  private boolean nextSegment()
   {
-    byteOffset++;
-    if (dataOrBlock == BLOCK)
+    while (segment < segmentCount && segmentOffset >= segmentLength(segment))
     {
-      if (byteOffset >= multiPartBlock.length)
-      {
-        dataOrBlock = DATA;
-        byteOffset = 0l;
-      }
-    }
-    else
-    { // data
-      if (byteOffset > ranges.get(rangeIndex).getSecond())
-      {
-        dataOrBlock = BLOCK;
-        byteOffset = 0l;
-        rangeIndex++;
-        createNextBlock();
-      }
+      segment++;
+      segmentOffset = 0;
     }
+    return segment < segmentCount;
   }
 
-  /**
-   * Checks if the data pointer is valid
-   * 
-   * @return
-   * @throws IOException
-   */
-  private boolean isPointerValid() throws IOException
+  private long segmentLength(int index)
   {
-    if (rangeIndex >= ranges.size())
-      return false;
-
-    if (byteOffset > ranges.get(rangeIndex).getSecond())
-      return false;
-
-    if (byteOffset >= fileHandle.length())
-      return false;
-
-    return true;
-
+    if (index % 2 == 0)
+      return block(index).length;
+    return multiPartFile.getRangeLength(index / 2);
   }
 
-  private void createNextBlock()
+  private byte[] block(int index)
   {
-    String multiPartString = "";
-    // No more valid blocks.
-    if (rangeIndex > ranges.size())
-    {
-      multiPartBlock = new byte[0];
-    }
-    else
-
-    if (rangeIndex == ranges.size())
-    {
-      // reached the last block. Set the closure.
-      multiPartString = "\r\n--" + multiPartFile.getBoundaryToken() + "--";
-      multiPartBlock = multiPartString.getBytes(StandardCharsets.UTF_8);
-    }
-    else
-    {
-      Pair<Long, Long> pair = ranges.get(rangeIndex);
-      multiPartString = NEWLINE + "--" + multiPartFile.getBoundaryToken() + NEWLINE;
-      multiPartString += CONTENT_TYPE + multiPartFile.getContentType() + NEWLINE;
-      multiPartString += CONTENT_RANGE + pair.getFirst().toString() + "-" + pair.getSecond().toString() + "/"
-          + multiPartFile.getFile().length() + NEWLINE + NEWLINE;
-    }
-    multiPartBlock = multiPartString.getBytes(StandardCharsets.UTF_8);
-
+    if (index == segmentCount - 1)
+      return multiPartFile.getTrailer();
+    return multiPartFile.getPartHeader(index / 2);
   }
 
 }
@@ -0,0 +1,25 @@
+package snap;
+
+/**
+ * Converts a request value (url group, query parameter, header or cookie) to
+ * the type of a controller action argument. Register converters with
+ * WebApplication.registerConverter(). Any exception thrown fails the request
+ * with 400 Bad Request.
+ *
+ * @author Jaap Geurts
+ *
+ * @param <T>
+ *          The type converted to
+ */
+@FunctionalInterface
+public interface ParamConverter<T>
+{
+  /**
+   * Convert the value
+   *
+   * @param value
+   *          The value as sent by the client. Never null
+   * @return the converted value
+   */
+  T convert(String value);
+}
@@ -0,0 +1,121 @@
+package snap;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The converters snap provides for controller action arguments.
+ *
+ * @author Jaap Geurts
+ *
+ */
+final class ParamConverters
+{
+  private static final Map<Class<?>, ParamConverter<?>> BUILTIN = new HashMap<>();
+
+  static
+  {
+    BUILTIN.put(String.class, value -> value);
+    BUILTIN.put(Integer.class, Integer::valueOf);
+    BUILTIN.put(int.class, Integer::valueOf);
+    BUILTIN.put(Long.class, Long::valueOf);
+    BUILTIN.put(long.class, Long::valueOf);
+    BUILTIN.put(Short.class, Short::valueOf);
+    BUILTIN.put(short.class, Short::valueOf);
+    BUILTIN.put(Byte.class, Byte::valueOf);
+    BUILTIN.put(byte.class, Byte::valueOf);
+    BUILTIN.put(Double.class, Double::valueOf);
+    BUILTIN.put(double.class, Double::valueOf);
+    BUILTIN.put(Float.class, Float::valueOf);
+    BUILTIN.put(float.class, Float::valueOf);
+    BUILTIN.put(Boolean.class, ParamConverters::toBoolean);
+    BUILTIN.put(boolean.class, ParamConverters::toBoolean);
+    BUILTIN.put(Character.class, ParamConverters::toCharacter);
+    BUILTIN.put(char.class, ParamConverters::toCharacter);
+    BUILTIN.put(BigDecimal.class, BigDecimal::new);
+    BUILTIN.put(BigInteger.class, BigInteger::new);
+    BUILTIN.put(UUID.class, UUID::fromString);
+    BUILTIN.put(LocalDate.class, LocalDate::parse);
+    BUILTIN.put(LocalTime.class, LocalTime::parse);
+    BUILTIN.put(LocalDateTime.class, LocalDateTime::parse);
+    BUILTIN.put(OffsetDateTime.class, OffsetDateTime::parse);
+    BUILTIN.put(ZonedDateTime.class, ZonedDateTime::parse);
+    BUILTIN.put(Instant.class, Instant::parse);
+    BUILTIN.put(Duration.class, Duration::parse);
+  }
+
+  private ParamConverters()
+  {
+  }
+
+  /**
+   * Find the converter for a type. Registered converters take precedence over
+   * the ones snap provides.
+   *
+   * @param type
+   *          The argument type
+   * @param registered
+   *          The converters registered by the application
+   * @return the converter or null if the type is not supported
+   */
+  static ParamConverter<?> find(Class<?> type, Map<Class<?>, ParamConverter<?>> registered)
+  {
+    ParamConverter<?> converter = registered != null ? registered.get(type) : null;
+    if (converter != null)
+      return converter;
+
+    converter = BUILTIN.get(type);
+    if (converter != null)
+      return converter;
+
+    if (type.isEnum())
+      return forEnum(type);
+    return null;
+  }
+
+  private static ParamConverter<?> forEnum(Class<?> type)
+  {
+    // exact names first, then case insensitive
+    Map<String, Object> constants = new HashMap<>();
+    for (Object constant : type.getEnumConstants())
+      constants.put(((Enum<?>)constant).name().toUpperCase(Locale.ROOT), constant);
+    for (Object constant : type.getEnumConstants())
+      constants.put(((Enum<?>)constant).name(), constant);
+
+    return value -> {
+      Object constant = constants.get(value);
+      if (constant == null)
+        constant = constants.get(value.toUpperCase(Locale.ROOT));
+      if (constant == null)
+        throw new IllegalArgumentException("No constant " + value + " in " + type.getSimpleName());
+      return constant;
+    };
+  }
+
+  private static Boolean toBoolean(String value)
+  {
+    if ("true".equalsIgnoreCase(value))
+      return Boolean.TRUE;
+    if ("false".equalsIgnoreCase(value))
+      return Boolean.FALSE;
+    throw new IllegalArgumentException("Expected true or false");
+  }
+
+  private static Character toCharacter(String value)
+  {
+    if (value.length() != 1)
+      throw new IllegalArgumentException("Expected a single character");
+    return value.charAt(0);
+  }
+}
@@ -0,0 +1,21 @@
+package snap;
+
+/**
+ * Thrown when a request value can't be bound to a controller action argument.
+ * The client receives 400 Bad Request.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class ParameterBindingException extends SnapException
+{
+  public ParameterBindingException(String message)
+  {
+    super(message);
+  }
+
+  public ParameterBindingException(String message, Throwable cause)
+  {
+    super(message, cause);
+  }
+}
@@ -0,0 +1,21 @@
+package snap;
+
+/**
+ * Thrown when a request body is larger than allowed. The client receives 413
+ * Request Entity Too Large.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class RequestEntityTooLargeException extends SnapException
+{
+  public RequestEntityTooLargeException(String message)
+  {
+    super(message);
+  }
+
+  public RequestEntityTooLargeException(String message, Throwable cause)
+  {
+    super(message, cause);
+  }
+}
@@ -0,0 +1,18 @@
+package snap;
+
+/**
+ * Implement this interface on a controller that is pooled
+ * (snap.controller.mode = pooled) to clear its state before the instance is
+ * used for another request.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public interface ResettableController
+{
+  /**
+   * Called after a request completed, before the controller goes back into the
+   * pool. If this method throws the instance is discarded.
+   */
+  void reset();
+}
@@ -1,5 +1,12 @@
 package snap;
 
+/**
+ * Thrown when a requested resource doesn't exist. The client receives 404 Not
+ * Found.
+ *
+ * @author Jaap Geurts
+ *
+ */
 public class ResourceNotFoundException extends SnapException
 {
   public ResourceNotFoundException(String message)
@@ -11,4 +18,20 @@ public class ResourceNotFoundException extends SnapException
   {
     super(message, cause);
   }
+
+  /**
+   * Constructor for misses that are expected, like a request for a file that
+   * doesn't exist. Snap uses it with stackTrace set to snap.site.debug.
+   *
+   * @param message
+   *          The message
+   * @param cause
+   *          The cause or null
+   * @param stackTrace
+   *          whether to record the stack trace
+   */
+  protected ResourceNotFoundException(String message, Throwable cause, boolean stackTrace)
+  {
+    super(message, cause, stackTrace);
+  }
 }
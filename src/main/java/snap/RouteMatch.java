@@ -0,0 +1,100 @@
+package snap;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The result of matching a request path against the route table. It holds the
+ * route matcher that matched together with the URL parameters that were
+ * captured while matching, so the path doesn't need to be matched a second
+ * time to extract them. When no route matched the match is not found and
+ * holds the methods the path accepts, if any.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class RouteMatch
+{
+  // no route matches the path
+  static final RouteMatch NOT_FOUND = new RouteMatch(null, Collections.emptyMap(), null);
+
+  public RouteMatch(RouteMatcher matcher, Map<String, String> parameters)
+  {
+    this(matcher, parameters, null);
+  }
+
+  private RouteMatch(RouteMatcher matcher, Map<String, String> parameters, String allow)
+  {
+    mMatcher = matcher;
+    mParameters = parameters;
+    mAllow = allow;
+  }
+
+  /**
+   * Returns the result for a path that matches routes, but none that accepts
+   * the requested method.
+   *
+   * @param allow
+   *          the methods that are accepted for the path
+   * @return a match that is not found
+   */
+  static RouteMatch methodNotAllowed(String allow)
+  {
+    return new RouteMatch(null, Collections.emptyMap(), allow);
+  }
+
+  /**
+   * Returns whether a route matched
+   *
+   * @return true if a route matched. false if there is no route for the path or
+   *         the method
+   */
+  public boolean isFound()
+  {
+    return mMatcher != null;
+  }
+
+  /**
+   * Returns the methods that the path accepts when it didn't match because of
+   * the method.
+   *
+   * @return The value for the Allow header or null
+   */
+  public String getAllow()
+  {
+    return mAllow;
+  }
+
+  /**
+   * Get the route matcher that matched the path
+   *
+   * @return the matcher or null if no route matched
+   */
+  public RouteMatcher getMatcher()
+  {
+    return mMatcher;
+  }
+
+  /**
+   * Get the URL parameters (named regex groups) that were captured during the
+   * match.
+   *
+   * @return A map of parameter names and values. Never null.
+   */
+  public Map<String, String> getParameters()
+  {
+    return mParameters;
+  }
+
+  @Override
+  public String toString()
+  {
+    if (mMatcher == null)
+      return mAllow == null ? "Not found" : "Method not allowed. Allow: " + mAllow;
+    return mMatcher.toString() + ", Parameters: " + mParameters;
+  }
+
+  private final RouteMatcher mMatcher;
+  private final Map<String, String> mParameters;
+  private final String mAllow;
+}
@@ -0,0 +1,161 @@
+package snap;
+
+import java.util.Collections;
+
+import snap.Settings.EvictionPolicy;
+import snap.http.HttpMethod;
+
+/**
+ * A concurrent, size bounded cache of resolved routes keyed by HTTP method and
+ * decoded path. Only successful matches are cached. Each cache belongs to one
+ * route table; the router creates a new cache whenever the routes change.
+ *
+ * Configure it in snap.properties with:
+ *
+ * <pre>
+ * snap.router.cache.size = 10000  (0 disables the cache, the default)
+ * snap.router.cache.policy = lru | fifo
+ * </pre>
+ *
+ * The eviction is done by a BoundedCache. The lru policy is an approximation
+ * (second chance): an entry that was read since it was queued is spared once
+ * when it comes up for eviction.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class RouteMatchCache
+{
+  private static class Key
+  {
+    Key(HttpMethod method, String path)
+    {
+      this.method = method;
+      this.path = path;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Key))
+        return false;
+      Key other = (Key)o;
+      return method == other.method && path.equals(other.path);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31 * method.hashCode() + path.hashCode();
+    }
+
+    final HttpMethod method;
+    final String path;
+  }
+
+  RouteMatchCache(int maxSize, EvictionPolicy policy)
+  {
+    mCache = new BoundedCache<>(maxSize, policy);
+  }
+
+  /**
+   * Get the cached match for the method and path
+   *
+   * @param method
+   *          The HTTP method
+   * @param path
+   *          The decoded path
+   * @return the match or null if it's not in the cache
+   */
+  RouteMatch get(HttpMethod method, String path)
+  {
+    return mCache.get(new Key(method, path));
+  }
+
+  /**
+   * Store a match in the cache. The parameters of the stored match are read
+   * only because the match is shared between requests.
+   *
+   * @param method
+   *          The HTTP method
+   * @param path
+   *          The decoded path
+   * @param match
+   *          The match to store
+   * @return the match as stored in the cache
+   */
+  RouteMatch put(HttpMethod method, String path, RouteMatch match)
+  {
+    RouteMatch shared = new RouteMatch(match.getMatcher(),
+                                       Collections.unmodifiableMap(match.getParameters()));
+    mCache.put(new Key(method, path), shared);
+    return shared;
+  }
+
+  /**
+   * Removes all entries from the cache. The counters are not reset.
+   */
+  public void clear()
+  {
+    mCache.clear();
+  }
+
+  /**
+   * Returns the number of lookups that were found in the cache.
+   *
+   * @return the count
+   */
+  public long getHits()
+  {
+    return mCache.getHits();
+  }
+
+  /**
+   * Returns the number of lookups that were not found in the cache.
+   *
+   * @return the count
+   */
+  public long getMisses()
+  {
+    return mCache.getMisses();
+  }
+
+  /**
+   * Returns the number of entries removed to keep the cache within its size.
+   *
+   * @return the count
+   */
+  public long getEvictions()
+  {
+    return mCache.getEvictions();
+  }
+
+  /**
+   * Returns the number of entries in the cache.
+   *
+   * @return the count
+   */
+  public int size()
+  {
+    return mCache.size();
+  }
+
+  /**
+   * Returns the maximum number of entries in the cache.
+   *
+   * @return the count
+   */
+  public int getMaxSize()
+  {
+    return mCache.getMaxSize();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "RouteMatchCache size: " + size() + "/" + getMaxSize() + ", hits: " + getHits() + ", misses: "
+        + getMisses() + ", evictions: " + getEvictions();
+  }
+
+  private final BoundedCache<Key, RouteMatch> mCache;
+}
@@ -1,13 +1,11 @@
 package snap;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import org.jcodings.specific.UTF8Encoding;
 import org.joni.Matcher;
@@ -36,6 +34,10 @@ public class RouteMatcher
 
     byte[] re = mUrlRegEx.getBytes(StandardCharsets.UTF_8);
     mRegex = new Regex(re, 0, re.length, Option.NONE, UTF8Encoding.INSTANCE);
+    mLiteralPrefix = computeLiteralPrefix(mUrlRegEx);
+    mLinkParts = compileLink(contextPath, mUrlRegEx);
+    for (String part : mLinkParts)
+      mLinkLength += part.length();
 
     mRoute = route;
 
@@ -64,12 +66,7 @@ public class RouteMatcher
     if (!found)
       return false;
 
-    boolean success = false;
-    byte[] p = urlPath.getBytes(StandardCharsets.UTF_8);
-    Matcher m = mRegex.matcher(p);
-    success = m.search(0, p.length, Option.DEFAULT) != -1;
-
-    return success;
+    return match(urlPath);
   }
 
   /**
@@ -81,12 +78,57 @@ public class RouteMatcher
    */
   public boolean match(String urlPath)
   {
-    boolean success = false;
-    byte[] p = urlPath.getBytes(StandardCharsets.UTF_8);
-    Matcher m = mRegex.matcher(p);
-    success = m.search(0, p.length, Option.DEFAULT) != -1;
+    return match(urlPath.getBytes(StandardCharsets.UTF_8));
+  }
 
-    return success;
+  /**
+   * Returns true if the UTF-8 encoded path matches this route's rule
+   *
+   * @param path
+   *          The UTF-8 encoded url path
+   * @return true if matched, false otherwise
+   */
+  boolean match(byte[] path)
+  {
+    Matcher m = mRegex.matcher(path);
+    return m.search(0, path.length, Option.DEFAULT) != -1;
+  }
+
+  /**
+   * Matches the UTF-8 encoded path against this route's rule and captures the
+   * named groups in the same pass.
+   *
+   * @param path
+   *          The UTF-8 encoded url path
+   * @return A map of the captured parameters (empty if the rule has no named
+   *         groups) or null if the path doesn't match
+   */
+  Map<String, String> matchParameters(byte[] path)
+  {
+    Matcher m = mRegex.matcher(path);
+    int result = m.search(0, path.length, Option.CAPTURE_GROUP);
+    if (result == -1)
+      return null;
+
+    HashMap<String, String> map = new HashMap<>();
+    // TODO: check the regex group ( if it's of digit class then convert to
+    // Long)
+    if (mRegex.numberOfNames() > 0)
+    {
+      Region region = m.getEagerRegion();
+      Iterator<NameEntry> entries = mRegex.namedBackrefIterator();
+      while (entries.hasNext())
+      {
+        NameEntry entry = entries.next();
+        String name = new String(entry.name, entry.nameP, entry.nameEnd - entry.nameP, StandardCharsets.UTF_8);
+        int number = entry.getBackRefs()[0];
+        int start = region.beg[number];
+        int end = region.end[number];
+        String value = new String(path, start, end - start, StandardCharsets.UTF_8);
+        map.put(name, value);
+      }
+    }
+    return map;
   }
 
   public RequestResult handleRoute(RequestContext context) throws Throwable
@@ -134,73 +176,41 @@ public class RouteMatcher
    */
   public String getLink(Map<String, Object> getParams, Object[] params)
   {
-    StringBuilder builder = new StringBuilder();
-    java.util.regex.Pattern pat = Pattern.compile("\\(.+?\\)");
-    java.util.regex.Matcher m = pat.matcher(mUrlRegEx);
-    int regExLength = mUrlRegEx.length();
-    int start = 0;
-    if (mUrlRegEx.charAt(0) == '^')
-      start++;
-    int i = 0;
-    // TODO: check for missing parameters and report
-    while (m.find(start))
+    boolean hasGetParams = getParams != null && getParams.size() > 0;
+    if (mLinkParts.length == 1 && !hasGetParams)
+      return mRoute.getLink(mLinkParts[0], getParams, params);
+
+    int paramCount = mLinkParts.length - 1;
+    if (paramCount > 0 && (params == null || params.length < paramCount))
     {
-      try
-      {
-        builder.append(mUrlRegEx.substring(start, m.start()));
-        if (i < params.length)
-        {
-          builder.append(URLEncoder.encode(params[i].toString(), "UTF-8"));
-        }
-        else
-        {
-          String message = "Not enough parameters when reversing link: " + mUrlRegEx;
-          log.error(message);
-          throw new SnapException(message);
-        }
-        i++;
-        start = m.end();
-      }
-      catch (UnsupportedEncodingException e)
-      {
-        log.debug("JVM doesn't support UTF-8", e);
-      }
+      String message = "Not enough parameters when reversing link: " + mUrlRegEx;
+      log.error(message);
+      throw new SnapException(message);
     }
-    if (mUrlRegEx.charAt(regExLength - 1) == '$')
+
+    StringBuilder builder = new StringBuilder(mLinkLength + 16 * paramCount);
+    builder.append(mLinkParts[0]);
+    for (int i = 0; i < paramCount; i++)
     {
-      regExLength--;
-      if (start != regExLength)
-      {
-        builder.append(mUrlRegEx.substring(start, regExLength));
-      }
+      builder.append(Helpers.encodeURL(params[i].toString()));
+      builder.append(mLinkParts[i + 1]);
     }
 
     // add get params if available
-    if (getParams != null && getParams.size() > 0)
+    if (hasGetParams)
     {
-      builder.append("?");
-      String queryString = getParams.entrySet().stream().map(e -> {
-        try
-        {
-          return URLEncoder.encode(e.getKey(), "UTF-8") + "="
-              + URLEncoder.encode(e.getValue().toString(), "UTF-8");
-        }
-        catch (UnsupportedEncodingException ex)
-        {
-          log.debug("JVM doesn't support UTF-8", ex);
-          throw new UnsupportedOperationException("JVM doesn't support UTF-8", ex);
-        }
-      }).collect(Collectors.joining("&"));
-      builder.append(queryString);
+      char separator = '?';
+      for (Map.Entry<String, Object> e : getParams.entrySet())
+      {
+        builder.append(separator);
+        builder.append(Helpers.encodeURL(e.getKey()));
+        builder.append('=');
+        builder.append(Helpers.encodeURL(e.getValue().toString()));
+        separator = '&';
+      }
     }
 
-    String finalLink;
-    if (mServletContextPath == null || "".equals(mServletContextPath))
-      finalLink = builder.toString();
-    else
-      finalLink = mServletContextPath + builder.toString();
-
-    return mRoute.getLink(finalLink, getParams, params);
+    return mRoute.getLink(builder.toString(), getParams, params);
   }
 
   public HttpRedirect getRedirect(Object[] params, RedirectType type)
@@ -220,31 +230,7 @@ public class RouteMatcher
     if (path == null || "".equals(path))
       return null;
 
-    HashMap<String, String> map = new HashMap<>();
-    byte[] p = path.getBytes(StandardCharsets.UTF_8);
-    Matcher m = mRegex.matcher(p);
-    int result = m.search(0, p.length, Option.CAPTURE_GROUP);
-    if (result == -1)
-      return null;
-
-    // TODO: check the regex group ( if it's of digit class then convert to
-    // Long)
-    if (result >= 0 && mRegex.numberOfNames() > 0)
-    {
-      Region region = m.getEagerRegion();
-      Iterator<NameEntry> entries = mRegex.namedBackrefIterator();
-      while (entries.hasNext())
-      {
-        NameEntry entry = entries.next();
-        String name = new String(entry.name, entry.nameP, entry.nameEnd - entry.nameP,StandardCharsets.UTF_8);
-        int number = entry.getBackRefs()[0];
-        int start = region.beg[number];
-        int end = region.end[number];
-        String value = new String(p, start, end - start, UTF8Encoding.INSTANCE.getCharset());
-        map.put(name, value);
-      }
-    }
-    return map;
+    return matchParameters(path.getBytes(StandardCharsets.UTF_8));
   }
 
   /**
@@ -267,6 +253,38 @@ public class RouteMatcher
     return mUrlRegEx;
   }
 
+  /**
+   * Returns the literal text every path matching this route starts with. This
+   * is the part of the regex after '^' up to the first regex construct.
+   *
+   * @return the literal prefix or null if the route has no anchored prefix
+   */
+  public String getLiteralPrefix()
+  {
+    return mLiteralPrefix;
+  }
+
+  /**
+   * Returns the position of this route in its route table.
+   *
+   * @return the position or -1 if the route is not part of a route table
+   */
+  public int getIndex()
+  {
+    return mIndex;
+  }
+
+  void setRouteTable(RouteTable table, int index)
+  {
+    mRouteTable = table;
+    mIndex = index;
+  }
+
+  RouteTable getRouteTable()
+  {
+    return mRouteTable;
+  }
+
   /**
    * Returns the context path under which this app is running in the servlet
    * container
@@ -288,6 +306,105 @@ public class RouteMatcher
     return mRoute;
   }
 
+  /**
+   * Splits the regex into the literal parts between the groups. A link is the
+   * parts joined with the params in between. The context path is included in
+   * the first part.
+   */
+  private static String[] compileLink(String contextPath, String regex)
+  {
+    List<String> parts = new ArrayList<>();
+    int start = 0;
+    int end = regex.length();
+    if (end > 0 && regex.charAt(0) == '^')
+      start++;
+    if (end > start && regex.charAt(end - 1) == '$')
+      end--;
+
+    StringBuilder part = new StringBuilder();
+    if (contextPath != null)
+      part.append(contextPath);
+
+    // a group is a '(' followed by at least one char and the first ')'
+    int open = regex.indexOf('(', start);
+    while (open != -1 && open < end)
+    {
+      int close = regex.indexOf(')', open + 2);
+      if (close == -1)
+        break;
+      part.append(regex, start, open);
+      parts.add(part.toString());
+      part.setLength(0);
+      start = close + 1;
+      open = regex.indexOf('(', start);
+    }
+    if (start < end)
+      part.append(regex, start, end);
+    parts.add(part.toString());
+
+    return parts.toArray(new String[parts.size()]);
+  }
+
+  private static String computeLiteralPrefix(String regex)
+  {
+    if (regex.isEmpty() || regex.charAt(0) != '^')
+      return null;
+
+    // a top level alternation means the prefix only applies to one branch
+    int depth = 0;
+    boolean inClass = false;
+    for (int i = 0; i < regex.length(); i++)
+    {
+      char c = regex.charAt(i);
+      if (c == '\\')
+        i++;
+      else if (inClass)
+        inClass = c != ']';
+      else if (c == '[')
+        inClass = true;
+      else if (c == '(')
+        depth++;
+      else if (c == ')')
+        depth--;
+      else if (c == '|' && depth == 0)
+        return null;
+    }
+
+    StringBuilder prefix = new StringBuilder();
+    int i = 1;
+    while (i < regex.length())
+    {
+      char c = regex.charAt(i);
+      int next = i + 1;
+      if (c == '\\')
+      {
+        // only escaped punctuation is a literal. \d, \w etc are classes
+        if (next >= regex.length() || Character.isLetterOrDigit(regex.charAt(next)))
+          break;
+        c = regex.charAt(next);
+        next++;
+      }
+      else if (".[]()*+?{}|^$".indexOf(c) != -1)
+        break;
+
+      if (next < regex.length())
+      {
+        char q = regex.charAt(next);
+        // the character is optional
+        if (q == '*' || q == '?' || q == '{')
+          break;
+        if (q == '+')
+        {
+          prefix.append(c);
+          break;
+        }
+      }
+      prefix.append(c);
+      i = next;
+    }
+    return prefix.toString();
+  }
+
   @Override
   public int hashCode()
   {
@@ -318,6 +435,12 @@ public class RouteMatcher
   private String mUrlRegEx;
   private String mAlias;
   private Regex mRegex;
+  private String mLiteralPrefix;
+  private RouteTable mRouteTable;
+  private int mIndex = -1;
+  // the literal parts of the link between the params
+  private String[] mLinkParts;
+  private int mLinkLength;
 
   private Route mRoute;
 
@@ -1,14 +1,21 @@
 package snap;
 
+/**
+ * Thrown when no route matches the requested path. The stack trace is only
+ * recorded when snap.site.debug is on.
+ *
+ * @author Jaap Geurts
+ *
+ */
 public class RouteNotFoundException extends ResourceNotFoundException
 {
   public RouteNotFoundException(String message)
   {
-    super(message);
+    super(message, null, Settings.debug);
   }
 
   public RouteNotFoundException(String message, Throwable cause)
   {
-    super(message, cause);
+    super(message, cause, Settings.debug);
   }
 }
@@ -0,0 +1,211 @@
+package snap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import snap.Settings.EvictionPolicy;
+import snap.http.HttpMethod;
+
+/**
+ * An immutable snapshot of the routes in routes.conf together with the
+ * indexes to search them. The router publishes the current table through a
+ * single volatile reference. A request keeps using the table of the route it
+ * matched, also when the routes are reloaded while it runs.
+ *
+ * @author Jaap Geurts
+ *
+ */
+final class RouteTable
+{
+  final static Logger log = LoggerFactory.getLogger(RouteTable.class);
+
+  // The Allow header for each bitmask of HttpMethod ordinals
+  private static final String[] ALLOW_HEADERS;
+
+  static
+  {
+    // OPTIONS is always answered by the router
+    HttpMethod[] all = HttpMethod.values();
+    ALLOW_HEADERS = new String[1 << all.length];
+    for (int mask = 1; mask < ALLOW_HEADERS.length; mask++)
+    {
+      StringBuilder builder = new StringBuilder();
+      for (HttpMethod m : all)
+      {
+        if ((mask & (1 << m.ordinal())) != 0 || m == HttpMethod.OPTIONS)
+        {
+          if (builder.length() > 0)
+            builder.append(", ");
+          builder.append(m.toString());
+        }
+      }
+      ALLOW_HEADERS[mask] = builder.toString();
+    }
+  }
+
+  /**
+   * Builds the route trie for all routes and one for each HttpMethod with only
+   * the routes that accept that method.
+   *
+   * @param routes
+   *          The route matchers in routes.conf order. The matchers become part
+   *          of this table and can't be added to another one.
+   * @param definitions
+   *          The routes.conf line of each route by alias. Used to reuse routes
+   *          that didn't change when the table is reloaded.
+   */
+  RouteTable(List<RouteMatcher> routes, Map<String, String> definitions)
+  {
+    mRouteList = Collections.unmodifiableList(new ArrayList<>(routes));
+    mDefinitions = Collections.unmodifiableMap(new HashMap<>(definitions));
+
+    Map<String, RouteMatcher> routeMap = new HashMap<>();
+    int size = mRouteList.size();
+    mMethodMasks = new int[size];
+    for (int i = 0; i < size; i++)
+    {
+      RouteMatcher matcher = mRouteList.get(i);
+      matcher.setRouteTable(this, i);
+      routeMap.put(matcher.getAlias(), matcher);
+
+      HttpMethod[] methods = matcher.getRoute().getHttpMethods();
+      if (methods == null || methods.length == 0)
+      {
+        log.warn("Route '" + matcher.getAlias() + "' does not allow any HTTP methods");
+        continue;
+      }
+      for (HttpMethod m : methods)
+        mMethodMasks[i] |= 1 << m.ordinal();
+    }
+    mRouteMap = Collections.unmodifiableMap(routeMap);
+
+    mRouteTrie = new RouteTrie(mRouteList);
+    mMethodTries = new EnumMap<>(HttpMethod.class);
+    for (HttpMethod method : HttpMethod.values())
+    {
+      boolean[] include = new boolean[size];
+      boolean any = false;
+      for (int i = 0; i < size; i++)
+      {
+        include[i] = (mMethodMasks[i] & (1 << method.ordinal())) != 0;
+        any |= include[i];
+      }
+      if (any)
+        mMethodTries.put(method, new RouteTrie(mRouteList, include));
+    }
+
+    // caches belong to a table so a new table invalidates them
+    if (Settings.routeCacheSize > 0)
+      mMatchCache = new RouteMatchCache(Settings.routeCacheSize, Settings.routeCachePolicy);
+    else
+      mMatchCache = null;
+
+    if (Settings.linkMemoSize > 0)
+      mLinkMemo = new BoundedCache<>(Settings.linkMemoSize, EvictionPolicy.LRU);
+    else
+      mLinkMemo = null;
+  }
+
+  /**
+   * Find the first route that accepts the method and matches the path. A miss
+   * is returned as a match that is not found instead of an exception.
+   *
+   * @param method
+   *          The HTTP method
+   * @param path
+   *          The decoded path
+   * @param start
+   *          The position of the first route to consider
+   * @return the match. Not found when no route accepts the method and path
+   */
+  RouteMatch lookup(HttpMethod method, String path, int start)
+  {
+    byte[] p = path.getBytes(StandardCharsets.UTF_8);
+
+    // only search the routes that accept this method
+    RouteTrie methodTrie = mMethodTries.get(method);
+    if (methodTrie != null)
+    {
+      for (int index : methodTrie.candidates(path))
+      {
+        if (index < start)
+          continue;
+        RouteMatcher matcher = mRouteList.get(index);
+        Map<String, String> params = matcher.matchParameters(p);
+        if (params != null)
+          return new RouteMatch(matcher, params);
+      }
+    }
+
+    // Nothing found for this method. Collect the methods of the routes that
+    // do match the path to tell the 404 from a 405
+    int allowed = 0;
+    for (int index : mRouteTrie.candidates(path))
+    {
+      if (index >= start && mMethodMasks[index] != 0 && mRouteList.get(index).match(p))
+        allowed |= mMethodMasks[index];
+    }
+    if (allowed == 0)
+      return RouteMatch.NOT_FOUND;
+    return RouteMatch.methodNotAllowed(ALLOW_HEADERS[allowed]);
+  }
+
+  /**
+   * Returns true if the matcher is part of this table
+   *
+   * @param matcher
+   *          The matcher to check
+   * @return true if this table contains the matcher
+   */
+  boolean contains(RouteMatcher matcher)
+  {
+    int index = matcher.getIndex();
+    return index >= 0 && index < mRouteList.size() && mRouteList.get(index) == matcher;
+  }
+
+  RouteMatcher getRouteMatcher(String alias)
+  {
+    return mRouteMap.get(alias);
+  }
+
+  List<RouteMatcher> getRoutes()
+  {
+    return mRouteList;
+  }
+
+  String getDefinition(String alias)
+  {
+    return mDefinitions.get(alias);
+  }
+
+  RouteMatchCache getMatchCache()
+  {
+    return mMatchCache;
+  }
+
+  BoundedCache<List<Object>, String> getLinkMemo()
+  {
+    return mLinkMemo;
+  }
+
+  private final List<RouteMatcher> mRouteList;
+  private final Map<String, RouteMatcher> mRouteMap;
+  private final Map<String, String> mDefinitions;
+
+  private final RouteTrie mRouteTrie;
+  private final EnumMap<HttpMethod, RouteTrie> mMethodTries;
+  // bitmask of HttpMethod ordinals accepted by each route
+  private final int[] mMethodMasks;
+
+  private final RouteMatchCache mMatchCache;
+  // links by alias and params. Optional, see 'snap.router.link.memo.size'
+  private final BoundedCache<List<Object>, String> mLinkMemo;
+}
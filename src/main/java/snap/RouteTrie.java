@@ -0,0 +1,223 @@
+package snap;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A radix trie keyed on the literal prefix of each route's URL regex. A lookup
+ * walks the request path down the trie and returns the positions of all routes
+ * whose literal prefix is a prefix of the path. Only those candidates need to
+ * run their regex. Routes without a usable literal prefix (not anchored with
+ * '^' or with a top level alternation) live in the root and are always a
+ * candidate.
+ *
+ * Candidates are returned in routes.conf order so the router can keep first
+ * match wins semantics.
+ *
+ * @author Jaap Geurts
+ *
+ */
+class RouteTrie
+{
+  private static final int[] NO_ROUTES = new int[0];
+  private static final Node[] NO_CHILDREN = new Node[0];
+
+  private static class Node
+  {
+    Node(String edge)
+    {
+      mEdge = edge;
+    }
+
+    // the label of the edge leading into this node
+    String mEdge;
+    // sorted on the first char of the edge
+    Node[] mChildren = NO_CHILDREN;
+    // positions of the routes whose literal prefix ends at this node
+    int[] mRoutes = NO_ROUTES;
+
+    Node findChild(char c)
+    {
+      int low = 0, high = mChildren.length - 1;
+      while (low <= high)
+      {
+        int mid = (low + high) >>> 1;
+        char m = mChildren[mid].mEdge.charAt(0);
+        if (m < c)
+          low = mid + 1;
+        else if (m > c)
+          high = mid - 1;
+        else
+          return mChildren[mid];
+      }
+      return null;
+    }
+
+    void addChild(Node child)
+    {
+      char c = child.mEdge.charAt(0);
+      int i = 0;
+      while (i < mChildren.length && mChildren[i].mEdge.charAt(0) < c)
+        i++;
+      Node[] children = new Node[mChildren.length + 1];
+      System.arraycopy(mChildren, 0, children, 0, i);
+      children[i] = child;
+      System.arraycopy(mChildren, i, children, i + 1, mChildren.length - i);
+      mChildren = children;
+    }
+
+    void replaceChild(Node oldChild, Node newChild)
+    {
+      for (int i = 0; i < mChildren.length; i++)
+        if (mChildren[i] == oldChild)
+          mChildren[i] = newChild;
+    }
+
+    void addRoute(int index)
+    {
+      mRoutes = Arrays.copyOf(mRoutes, mRoutes.length + 1);
+      mRoutes[mRoutes.length - 1] = index;
+    }
+  }
+
+  /**
+   * Build a trie for the routes in the list. The position of a route in the
+   * list is the value returned by candidates()
+   *
+   * @param routes
+   *          The routes in routes.conf order
+   */
+  RouteTrie(List<RouteMatcher> routes)
+  {
+    mRoot = new Node("");
+    mAllRoutes = new int[routes.size()];
+    for (int i = 0; i < routes.size(); i++)
+    {
+      String prefix = routes.get(i).getLiteralPrefix();
+      insert(prefix == null ? "" : prefix, i);
+      mAllRoutes[i] = i;
+    }
+  }
+
+  /**
+   * Build a trie for a subset of the routes. Each route is stored under its
+   * position in the complete route list.
+   *
+   * @param routes
+   *          The complete list of routes in routes.conf order
+   * @param include
+   *          Which routes of the list to include
+   */
+  RouteTrie(List<RouteMatcher> routes, boolean[] include)
+  {
+    mRoot = new Node("");
+    int count = 0;
+    int[] all = new int[routes.size()];
+    for (int i = 0; i < routes.size(); i++)
+    {
+      if (!include[i])
+        continue;
+      String prefix = routes.get(i).getLiteralPrefix();
+      insert(prefix == null ? "" : prefix, i);
+      all[count++] = i;
+    }
+    mAllRoutes = Arrays.copyOf(all, count);
+  }
+
+  /**
+   * Returns the positions of all routes that could match the path, in
+   * ascending order.
+   *
+   * @param path
+   *          The decoded request path
+   * @return The candidate positions. Do not modify the returned array.
+   */
+  int[] candidates(String path)
+  {
+    // Joni uses Ruby syntax where '^' matches at the start of every line. A
+    // path with an (encoded) newline could match past the literal prefix so
+    // let every route try it.
+    if (path.indexOf('\n') != -1)
+      return mAllRoutes;
+
+    Node node = mRoot;
+    int[] result = node.mRoutes;
+    int count = result.length;
+    boolean shared = true;
+    int pos = 0;
+    while (pos < path.length())
+    {
+      Node child = node.findChild(path.charAt(pos));
+      if (child == null || !path.startsWith(child.mEdge, pos))
+        break;
+      pos += child.mEdge.length();
+      node = child;
+      if (node.mRoutes.length == 0)
+        continue;
+
+      if (count == 0)
+      {
+        result = node.mRoutes;
+        count = result.length;
+        continue;
+      }
+      if (shared)
+      {
+        result = Arrays.copyOf(result, count + node.mRoutes.length);
+        shared = false;
+      }
+      else if (count + node.mRoutes.length > result.length)
+        result = Arrays.copyOf(result, count + node.mRoutes.length);
+      System.arraycopy(node.mRoutes, 0, result, count, node.mRoutes.length);
+      count += node.mRoutes.length;
+    }
+
+    if (shared)
+      return result;
+
+    // The routes in each node are ordered but nodes overlap in routes.conf
+    // order
+    Arrays.sort(result, 0, count);
+    return count == result.length ? result : Arrays.copyOf(result, count);
+  }
+
+  private void insert(String key, int index)
+  {
+    Node node = mRoot;
+    int pos = 0;
+    while (pos < key.length())
+    {
+      Node child = node.findChild(key.charAt(pos));
+      if (child == null)
+      {
+        Node leaf = new Node(key.substring(pos));
+        leaf.addRoute(index);
+        node.addChild(leaf);
+        return;
+      }
+
+      // find the common length of the edge and the remaining key
+      String edge = child.mEdge;
+      int common = 0;
+      int max = Math.min(edge.length(), key.length() - pos);
+      while (common < max && edge.charAt(common) == key.charAt(pos + common))
+        common++;
+
+      if (common < edge.length())
+      {
+        // split the edge
+        Node split = new Node(edge.substring(0, common));
+        child.mEdge = edge.substring(common);
+        split.addChild(child);
+        node.replaceChild(child, split);
+        child = split;
+      }
+      pos += common;
+      node = child;
+    }
+    node.addRoute(index);
+  }
+
+  private final Node mRoot;
+  private final int[] mAllRoutes;
+}
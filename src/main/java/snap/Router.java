@@ -3,11 +3,19 @@ package snap;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -39,8 +47,6 @@ public class Router
    */
   private Router()
   {
-    mRouteList = new ArrayList<>();
-    mRouteMap = new HashMap<>();
   }
 
   /**
@@ -55,71 +61,210 @@ public class Router
   public void init(String contextPath) throws FileNotFoundException
   {
     mContextPath = contextPath;
-    BufferedReader in = new BufferedReader(
-        new InputStreamReader(getClass().getClassLoader().getResourceAsStream(Settings.routesFile),
-            StandardCharsets.UTF_8));
-    int i = 1;
+    mRouteTable = loadRouteTable(false);
+
+    if (Settings.watchRoutesFile)
+      watchRoutesFile();
+  }
+
+  /**
+   * Reloads the routes file and replaces the routes atomically. The new routes
+   * are built and validated first. When the routes file contains errors the
+   * current routes stay in use. Requests that are running keep using the
+   * routes they started with. Routes whose line in the routes file didn't
+   * change are reused, including any RouteListener set on them.
+   *
+   * @throws FileNotFoundException
+   *           Thrown if the route can't find the route file
+   * @throws SnapException
+   *           Thrown if the routes file contains errors.
+   */
+  public synchronized void reload() throws FileNotFoundException
+  {
+    RouteTable table = loadRouteTable(true);
+    mRouteTable = table;
+    log.info("Routes reloaded from " + Settings.routesFile + ". " + table.getRoutes().size() + " routes");
+  }
+
+  /**
+   * Stops watching the routes file. Called by the framework when the servlet
+   * is destroyed.
+   */
+  public void destroy()
+  {
+    if (mRoutesWatcher != null)
+      mRoutesWatcher.close();
+    mRoutesWatcher = null;
+    StaticRoute.closeAssetCache();
+    AssetManifest.closeAll();
+  }
+
+  /**
+   * Reads the routes file and builds a new route table
+   *
+   * @param strict
+   *          if true any error fails the whole table. Otherwise the routes that
+   *          have errors are logged and skipped and routes with a duplicate
+   *          alias are all kept, as the first load always did.
+   * @return the new route table
+   */
+  private RouteTable loadRouteTable(boolean strict) throws FileNotFoundException
+  {
+    InputStream stream = getClass().getClassLoader().getResourceAsStream(Settings.routesFile);
+    if (stream == null)
+      throw new FileNotFoundException("Routes file not found: " + Settings.routesFile);
+
+    RouteTable previous = mRouteTable;
+    List<RouteMatcher> routeList = new ArrayList<>();
+    Map<String, String> definitions = new HashMap<>();
+    List<String> errors = new ArrayList<>();
+
+    BufferedReader in = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+    int i = 0;
     try
     {
-      // todo: on failure attempt to read the next line
-      while (in.ready())
+      String line;
+      while ((line = in.readLine()) != null)
       {
-        String line = in.readLine();
+        i++;
         // comment line: skip it.
-        if (line == null || line.isEmpty() || line.charAt(0) == '#')
+        if (line.isEmpty() || line.charAt(0) == '#')
           continue;
 
         String[] parts = line.split("\\s+");
+        if (parts.length < 4)
+        {
+          errors.add("Line " + i + ": expected 'TYPE url alias target'");
+          continue;
+        }
 
         String alias = parts[2];
-        Route route = null;
+        String definition = parts[0] + " " + parts[1] + " " + parts[3];
+        if (definitions.containsKey(alias))
+        {
+          errors.add("Line " + i + ": duplicate route alias " + alias);
+          // the first load keeps both routes, like earlier versions did
+          if (strict)
+            continue;
+        }
 
         try
         {
-          if ("ACTION".equals(parts[0]))
-            route = new ActionRoute();
-          else if ("STATIC".equals(parts[0]))
-            route = new StaticRoute();
-          else if ("CUSTOM".equals(parts[0]))
-          {
-            String className = parts[3];
-            if (className.charAt(0) == '.')
-              className = Settings.packagePrefix + className;
+          // reuse the route when its definition didn't change
+          Route route = null;
+          if (previous != null && definition.equals(previous.getDefinition(alias)))
+            route = previous.getRouteMatcher(alias).getRoute();
+          else
+            route = createRoute(alias, parts);
 
-            route = (Route)Class.forName(className).newInstance();
-          }
           if (route != null)
           {
-            route.init(mContextPath, alias, parts[1], parts[3]);
-            RouteMatcher routeMatcher = new RouteMatcher(contextPath, alias, parts[1], route);
-            mRouteList.add(routeMatcher);
-            mRouteMap.put(alias, routeMatcher);
+            RouteMatcher routeMatcher = new RouteMatcher(mContextPath, alias, parts[1], route);
+            routeList.add(routeMatcher);
+            definitions.put(alias, definition);
           }
+          else
+            errors.add("Line " + i + ": unknown route type " + parts[0]);
         }
-        catch (SnapException | InstantiationException | IllegalAccessException | ClassNotFoundException e)
+        catch (RuntimeException | InstantiationException | IllegalAccessException | ClassNotFoundException e)
         {
-          log.warn("Error creating route " + alias, e);
+          if (strict)
+            log.error("Error creating route " + alias, e);
+          else
+            log.warn("Error creating route " + alias, e);
+          errors.add("Line " + i + ": error creating route " + alias + ": " + e.getMessage());
         }
-
-        i++;
       }
     }
     catch (IOException e)
     {
       log.error("An error happened during parsing route.conf at line: " + i, e);
+      errors.add("Line " + i + ": " + e.getMessage());
     }
     finally
     {
-      if (in != null)
+      try
+      {
+        in.close();
+      }
+      catch (IOException ioe)
+      {
+      }
+    }
+
+    if (!errors.isEmpty())
+    {
+      String message = "Invalid routes file " + Settings.routesFile + ":\n" + String.join("\n", errors);
+      if (strict)
+        throw new SnapException(message);
+      log.warn(message);
+    }
+
+    return new RouteTable(routeList, definitions);
+  }
+
+  private Route createRoute(String alias, String[] parts)
+      throws InstantiationException, IllegalAccessException, ClassNotFoundException
+  {
+    Route route = null;
+    if ("ACTION".equals(parts[0]))
+      route = new ActionRoute();
+    else if ("STATIC".equals(parts[0]))
+      route = new StaticRoute();
+    else if ("CUSTOM".equals(parts[0]))
+    {
+      String className = parts[3];
+      if (className.charAt(0) == '.')
+        className = Settings.packagePrefix + className;
+
+      route = (Route)Class.forName(className).newInstance();
+    }
+    if (route != null)
+      route.init(mContextPath, alias, parts[1], parts[3]);
+    return route;
+  }
+
+  /**
+   * Watch the routes file for changes and reload it when it changes. Only
+   * possible when the routes file is a file on disk (exploded deployment).
+   */
+  private void watchRoutesFile()
+  {
+    URL url = getClass().getClassLoader().getResource(Settings.routesFile);
+    if (url == null || !"file".equals(url.getProtocol()))
+    {
+      log.info("Routes file " + Settings.routesFile + " is not a file on disk and can't be watched");
+      return;
+    }
+
+    try
+    {
+      Path file = Paths.get(url.toURI());
+      mRoutesLastModified = Files.getLastModifiedTime(file).toMillis();
+      mRoutesWatcher = new FileWatcher("snap-routes-watcher");
+      mRoutesWatcher.watch(file.getParent(), changed -> {
+        if (!changed.equals(file) && !changed.equals(file.getParent()))
+          return;
         try
         {
-          in.close();
+          // editors often write a file in several steps
+          long modified = Files.getLastModifiedTime(file).toMillis();
+          if (modified == mRoutesLastModified)
+            return;
+          mRoutesLastModified = modified;
+          reload();
         }
-        catch (IOException ioe)
+        catch (IOException | SnapException e)
         {
+          log.error("Routes file changed but can't be loaded. Keeping the current routes.", e);
         }
+      });
+      log.info("Watching routes file " + file + " for changes");
+    }
+    catch (IOException | URISyntaxException e)
+    {
+      log.warn("Can't watch routes file " + Settings.routesFile, e);
     }
-
   }
 
   /**
@@ -138,7 +283,85 @@ public class Router
    */
   public RouteMatcher findRouteMatcherForPath(HttpMethod method, String path)
   {
-    return internalFindRouteMatcherForPath(method, path, 0);
+    return findRouteMatchForPath(method, path).getMatcher();
+  }
+
+  /**
+   * Finds a route in the list for the specified method and path. Returns the
+   * first match together with the URL parameters captured while matching.
+   *
+   * @param method
+   *          The HTTP method
+   * @param path
+   *          The requested URL path
+   * @return the match for the method and path
+   * @throws RouteNotFoundException
+   *           when the method and path don't match any route rules
+   * @throws HttpMethodException
+   *           when rules were found but none with the requested http method.
+   *           getAllow() returns the methods that are accepted.
+   */
+  public RouteMatch findRouteMatchForPath(HttpMethod method, String path)
+  {
+    return requireFound(lookupRouteMatch(method, path), method, path);
+  }
+
+  private static RouteMatch requireFound(RouteMatch match, HttpMethod method, String path)
+  {
+    if (match.isFound())
+      return match;
+    throw missException(match, method, path);
+  }
+
+  /**
+   * Returns the exception that describes a routing miss.
+   *
+   * @param miss
+   *          The miss returned by lookupRouteMatch()
+   * @param method
+   *          The HTTP method
+   * @param path
+   *          The requested URL path
+   * @return a RouteNotFoundException or a HttpMethodException
+   */
+  static SnapException missException(RouteMatch miss, HttpMethod method, String path)
+  {
+    if (miss.getAllow() == null)
+      return new RouteNotFoundException("Can't find route for Method: " + method.toString() + " path: " + path);
+
+    return new HttpMethodException("Path " + path + " matches routes, but none accepts method "
+        + method.toString(), miss.getAllow());
+  }
+
+  /**
+   * Finds a route in the list for the specified method and path like
+   * findRouteMatchForPath(), but doesn't throw when there is no match. Use it
+   * when misses are common.
+   *
+   * @param method
+   *          The HTTP method
+   * @param path
+   *          The requested URL path
+   * @return the match for the method and path. When no route matched
+   *         isFound() returns false and getAllow() returns the methods the path
+   *         accepts, if any.
+   */
+  public RouteMatch lookupRouteMatch(HttpMethod method, String path)
+  {
+    RouteTable table = mRouteTable;
+    RouteMatchCache cache = table.getMatchCache();
+    if (cache == null)
+      return table.lookup(method, path, 0);
+
+    RouteMatch match = cache.get(method, path);
+    if (match != null)
+      return match;
+
+    // only matches are cached. Misses would let clients fill the cache
+    match = table.lookup(method, path, 0);
+    if (match.isFound())
+      match = cache.put(method, path, match);
+    return match;
   }
 
   /**
@@ -155,48 +378,28 @@ public class Router
    */
   public RouteMatcher findNextRouteMatcherForPath(HttpMethod method, String path, RouteMatcher matcher)
   {
-    // find the current matcher.
-    int start = -1;
-    for (int i = 0; i < mRouteList.size(); i++)
-    {
-      RouteMatcher m = mRouteList.get(i);
-      if (m.equals(matcher))
-      {
-        start = i + 1;
-        break;
-      }
-    }
-    if (start == -1)
-      throw new SnapException("Route matcher not found for matcher: " + matcher.toString());
-    return internalFindRouteMatcherForPath(method, path, start);
+    return findNextRouteMatchForPath(method, path, matcher).getMatcher();
   }
 
-  private RouteMatcher internalFindRouteMatcherForPath(HttpMethod method, String path, int start)
+  /**
+   * Finds a route in the list for the method and path, but starts at rule after
+   * the rule of the matcher. The search uses the routes the matcher belongs to,
+   * also when the routes were reloaded since.
+   *
+   * @param method
+   *          the method for which to find a path
+   * @param path
+   *          the path as sent by the http client
+   * @param matcher
+   *          the current matcher
+   * @return the match found or throw exception if not found
+   */
+  public RouteMatch findNextRouteMatchForPath(HttpMethod method, String path, RouteMatcher matcher)
   {
-    RouteMatcher foundRouteMatcher = null;
-    for (int i = start; i < mRouteList.size(); i++)
-    {
-      RouteMatcher matcher = mRouteList.get(i);
-      if (matcher.match(path))
-      {
-        foundRouteMatcher = matcher;
-        break;
-      }
-    }
-    if (foundRouteMatcher == null)
-      throw new RouteNotFoundException(
-          "Can't find route for Method: " + method.toString() + " path: " + path);
-
-    HttpMethod[] methods = foundRouteMatcher.getRoute().getHttpMethods();
-    if (methods == null)
-      throw new SnapException("Route '" + foundRouteMatcher.getAlias() + "' does not allow any HTTP methods");
-
-    for (HttpMethod m : methods)
-      if (method == m)
-        return foundRouteMatcher;
-
-    throw new HttpMethodException("Route " + foundRouteMatcher.getAlias() + " matches path " + path
-        + ", but has incorrect method " + method.toString());
+    RouteTable table = matcher.getRouteTable();
+    if (table == null || !table.contains(matcher))
+      throw new SnapException("Route matcher not found for matcher: " + matcher.toString());
+    return requireFound(table.lookup(method, path, matcher.getIndex() + 1), method, path);
   }
 
   /**
@@ -260,8 +463,45 @@ public class Router
    */
   public String linkForRoute(String alias, Object... params)
   {
-    RouteMatcher routeMatcher = getRouteMatcher(alias);
-    return routeMatcher.getLink(params);
+    RouteTable table = mRouteTable;
+    BoundedCache<List<Object>, String> memo = table.getLinkMemo();
+    List<Object> key = memo != null ? linkMemoKey(alias, params) : null;
+    if (key != null)
+    {
+      String link = memo.get(key);
+      if (link != null)
+        return link;
+    }
+
+    RouteMatcher routeMatcher = getRouteMatcher(table, alias);
+    String link = routeMatcher.getLink(params);
+    // fingerprinted links change with the file
+    Route route = routeMatcher.getRoute();
+    if (key != null && !(route instanceof StaticRoute && ((StaticRoute)route).isFingerprinted()))
+      memo.put(key, link);
+    return link;
+  }
+
+  /**
+   * Returns the key for the link memo. Only links with immutable params can be
+   * memoized because the link depends on their toString() value.
+   *
+   * @return the key or null if the link can't be memoized
+   */
+  private static List<Object> linkMemoKey(String alias, Object[] params)
+  {
+    int count = params == null ? 0 : params.length;
+    Object[] key = new Object[count + 1];
+    key[0] = alias;
+    for (int i = 0; i < count; i++)
+    {
+      Object p = params[i];
+      if (!(p instanceof String || p instanceof Long || p instanceof Integer || p instanceof Short
+          || p instanceof Byte || p instanceof Character || p instanceof Boolean || p instanceof Enum))
+        return null;
+      key[i + 1] = p;
+    }
+    return Arrays.asList(key);
   }
 
   /***
@@ -280,7 +520,7 @@ public class Router
    */
   public String linkForRoute(String alias, Map<String, Object> getParams, Object... params)
   {
-    RouteMatcher routeMatcher = getRouteMatcher(alias);
+    RouteMatcher routeMatcher = getRouteMatcher(mRouteTable, alias);
     return routeMatcher.getLink(getParams, params);
   }
 
@@ -294,7 +534,7 @@ public class Router
    */
   public Route getRoute(String routeAlias)
   {
-    RouteMatcher route = mRouteMap.get(routeAlias);
+    RouteMatcher route = mRouteTable.getRouteMatcher(routeAlias);
     if (route == null)
       throw new RouteNotFoundException("Can't redirect: Unknown route: " + routeAlias);
     return route.getRoute();
@@ -303,18 +543,31 @@ public class Router
   /**
    * Returns the route matcher for a specific route alias
    *
+   * @param table
+   *          the route table to search
    * @param routeAlias
    *          the name by which this route is known
    * @return The matcher
    */
-  private RouteMatcher getRouteMatcher(String routeAlias)
+  private RouteMatcher getRouteMatcher(RouteTable table, String routeAlias)
   {
-    RouteMatcher routeMatcher = mRouteMap.get(routeAlias);
+    RouteMatcher routeMatcher = table.getRouteMatcher(routeAlias);
     if (routeMatcher == null)
       throw new RouteNotFoundException("Can't find route matcher for alias: " + routeAlias);
     return routeMatcher;
   }
 
+  /**
+   * Returns the cache of resolved routes. Use it to read the hit and miss
+   * counters.
+   *
+   * @return The cache or null if 'snap.router.cache.size' is not set
+   */
+  public RouteMatchCache getMatchCache()
+  {
+    return mRouteTable.getMatchCache();
+  }
+
   /**
    * Sets the context path of this router as defined by the web.xml file. Not
    * meant to be called by users.
@@ -327,8 +580,10 @@ public class Router
     mContextPath = contextPath;
   }
 
-  private ArrayList<RouteMatcher> mRouteList;
-  private HashMap<String, RouteMatcher> mRouteMap;
+  // the current routes. Replaced as a whole when the routes are reloaded
+  private volatile RouteTable mRouteTable;
+  private FileWatcher mRoutesWatcher;
+  private volatile long mRoutesLastModified;
   private String mContextPath;
 
   private static Router mRouter = null;
@@ -17,19 +17,53 @@ public class Settings
     COOKIE, SESSION, SUBDOMAIN, CUSTOM
   };
 
+  public enum EvictionPolicy {
+    LRU, FIFO
+  };
+
+  public enum SessionMode {
+    SERVLET, COOKIE
+  };
+
+  public enum ControllerMode {
+    SINGLETON, PER_REQUEST, POOLED
+  };
+
   static String routesFile = "routes.conf";
+  static boolean watchRoutesFile = false;
   static String packagePrefix;
   static String webAppClass = null;
   static String redirectUrl = "/";
   static boolean threadSafeController = false;
+  static ControllerMode controllerMode = null;
+  static int controllerPoolSize = 16;
+  public static long asyncTimeout = 30000;
+  static boolean virtualThreads = false;
+  static boolean prerenderedErrors = false;
+  static long staticCacheSize = 0;
+  static int staticCacheMaxFileSize = 64 * 1024;
+  static int staticCacheEntries = 10000;
+  static boolean staticCompression = true;
+  static int staticMaxRanges = 16;
+  static boolean staticCachePublic = true;
+  static boolean staticFingerprint = false;
   static boolean redirectEnabled = false;
   static String defaultLanguage = "en-US";
   static URI siteRootUri;
+  static int routeCacheSize = 0;
+  static EvictionPolicy routeCachePolicy = EvictionPolicy.LRU;
+  static int linkMemoSize = 0;
+  static int userCacheSize = 0;
+  static long userCacheTtl = 60000;
+  static int credentialCacheSize = 0;
+  static long credentialCacheTtl = 30000;
 
   // These should not be public (they are public for the parent package
   public static boolean debug = true;
   public static String emailTemplatePath;
   public static LocaleMode localeMode = LocaleMode.COOKIE;
+  public static SessionMode sessionMode = SessionMode.SERVLET;
+  public static long jsonMaxSize = 1024 * 1024;
 
   public static String rootPath;
 
@@ -50,10 +84,49 @@ public class Settings
           if (t != null)
             routesFile = t;
 
+          t = p.getProperty("snap.router.routes.watch");
+          if (t != null)
+            watchRoutesFile = Boolean.parseBoolean(t.trim());
+
           t = p.getProperty("snap.router.packageprefix");
           if (t != null)
             packagePrefix = t;
 
+          routeCacheSize = parseInt(p, "snap.router.cache.size", routeCacheSize);
+
+          t = p.getProperty("snap.router.cache.policy");
+          if (t != null)
+          {
+            try
+            {
+              routeCachePolicy = EvictionPolicy.valueOf(t.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException e)
+            {
+              log.warn("Invalid value for 'snap.router.cache.policy'. legal values are 'lru' or 'fifo'. Defaulting to 'lru'");
+            }
+          }
+
+          linkMemoSize = parseInt(p, "snap.router.link.memo.size", linkMemoSize);
+          userCacheSize = parseInt(p, "snap.user.cache.size", userCacheSize);
+          userCacheTtl = parseLong(p, "snap.user.cache.ttl", userCacheTtl);
+
+          t = p.getProperty("snap.session.mode");
+          if (t != null)
+          {
+            try
+            {
+              sessionMode = SessionMode.valueOf(t.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException e)
+            {
+              log.warn("Invalid value for 'snap.session.mode'. legal values are 'servlet' or 'cookie'. Defaulting to 'servlet'");
+            }
+          }
+
+          credentialCacheSize = parseInt(p, "snap.auth.cache.size", credentialCacheSize);
+          credentialCacheTtl = parseLong(p, "snap.auth.cache.ttl", credentialCacheTtl);
+
           webAppClass = p.getProperty("snap.applicationclass");
 
           t = p.getProperty("snap.login.redirect.url");
@@ -86,6 +159,52 @@ public class Settings
           if (t != null)
             threadSafeController = Boolean.valueOf(t);
 
+          t = p.getProperty("snap.controller.mode");
+          if (t != null)
+          {
+            try
+            {
+              controllerMode = ControllerMode.valueOf(t.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException e)
+            {
+              log.warn("Invalid value for 'snap.controller.mode'. legal values are 'singleton', 'per_request' or 'pooled'. Using 'snap.controller.threadsafe'");
+            }
+          }
+
+          controllerPoolSize = parseInt(p, "snap.controller.pool.size", controllerPoolSize);
+          asyncTimeout = parseLong(p, "snap.async.timeout", asyncTimeout);
+
+          t = p.getProperty("snap.dispatcher.virtualthreads");
+          if (t != null)
+            virtualThreads = Boolean.parseBoolean(t.trim());
+
+          staticCacheSize = parseLong(p, "snap.static.cache.size", staticCacheSize);
+          staticCacheMaxFileSize = parseInt(p, "snap.static.cache.maxfilesize", staticCacheMaxFileSize);
+          // the cache needs room for at least one file
+          staticCacheEntries = (int)parseLong(p, "snap.static.cache.entries", staticCacheEntries, 1,
+              Integer.MAX_VALUE);
+
+          t = p.getProperty("snap.static.compression");
+          if (t != null)
+            staticCompression = Boolean.parseBoolean(t.trim());
+
+          staticMaxRanges = parseInt(p, "snap.static.ranges.max", staticMaxRanges);
+
+          t = p.getProperty("snap.static.cache.public");
+          if (t != null)
+            staticCachePublic = Boolean.parseBoolean(t.trim());
+
+          t = p.getProperty("snap.static.fingerprint");
+          if (t != null)
+            staticFingerprint = Boolean.parseBoolean(t.trim());
+
+          t = p.getProperty("snap.error.prerendered");
+          if (t != null)
+            prerenderedErrors = Boolean.parseBoolean(t.trim());
+
+          jsonMaxSize = parseLong(p, "snap.request.json.maxsize", jsonMaxSize);
+
           t = p.getProperty("snap.site.debug");
           if (t != null)
             debug = Boolean.parseBoolean(t);
@@ -120,6 +239,40 @@ public class Settings
     {
       log.error("Can't read settings.", e);
     }
+
+    // without an explicit mode keep the meaning of snap.controller.threadsafe
+    if (controllerMode == null)
+      controllerMode = threadSafeController ? ControllerMode.PER_REQUEST : ControllerMode.SINGLETON;
+  }
+
+  private static int parseInt(Properties p, String key, int dflt)
+  {
+    return (int)parseLong(p, key, dflt, Integer.MIN_VALUE, Integer.MAX_VALUE);
+  }
+
+  private static long parseLong(Properties p, String key, long dflt)
+  {
+    return parseLong(p, key, dflt, Long.MIN_VALUE, Long.MAX_VALUE);
+  }
+
+  private static long parseLong(Properties p, String key, long dflt, long min, long max)
+  {
+    String t = p.getProperty(key);
+    if (t == null)
+      return dflt;
+
+    try
+    {
+      long value = Long.parseLong(t.trim());
+      if (value >= min && value <= max)
+        return value;
+    }
+    catch (NumberFormatException e)
+    {
+      // logged below
+    }
+    log.warn("Invalid value for '" + key + "': '" + t + "'. Defaulting to '" + dflt + "'");
+    return dflt;
   }
 
   public static int getInt(String key)
@@ -11,4 +11,21 @@ public class SnapException extends RuntimeException
   {
     super(message, cause);
   }
+
+  /**
+   * Constructor for exceptions that signal an expected outcome (like a 404)
+   * rather than a bug. Filling in the stack trace is the most expensive part of
+   * creating an exception and such exceptions don't need one.
+   *
+   * @param message
+   *          The message
+   * @param cause
+   *          The cause or null
+   * @param stackTrace
+   *          whether to record the stack trace
+   */
+  protected SnapException(String message, Throwable cause, boolean stackTrace)
+  {
+    super(message, cause, false, stackTrace);
+  }
 }
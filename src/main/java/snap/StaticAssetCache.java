@@ -0,0 +1,345 @@
+package snap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import snap.Settings.EvictionPolicy;
+
+/**
+ * Keeps what static routes know about the files they serve: the resolved
+ * file, its size, modification time, mime type and preformatted headers. The
+ * contents of small files are kept as well, within a byte budget. When the
+ * budget or the maximum number of files is exceeded, files that weren't used
+ * recently are evicted. It is a BoundedCache weighed by the size of the
+ * contents, so reads don't take a lock.
+ *
+ * Compressed variants of a file are kept as separate assets next to it: a
+ * precompressed .br or .gz file or, for small files, the file compressed
+ * once when it was first requested.
+ *
+ * Cached files are invalidated when they change on disk through a FileWatcher
+ * on their directory. When the file system can't be watched each hit checks
+ * the size and modification time of the file instead.
+ *
+ * Configure it in snap.properties with:
+ *
+ * <pre>
+ * snap.static.cache.size = 33554432     (bytes of file contents. 0 disables the cache, the default)
+ * snap.static.cache.maxfilesize = 65536 (bytes. larger files are only described, not kept)
+ * snap.static.cache.entries = 10000     (files)
+ * </pre>
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class StaticAssetCache
+{
+  final static Logger log = LoggerFactory.getLogger(StaticAssetCache.class);
+
+  /**
+   * A static file and what is needed to send it.
+   */
+  static class Asset
+  {
+    Asset(File file, String canonicalPath, long length, long lastModified, String mimetype,
+        String lastModifiedHeader, byte[] content, String etag)
+    {
+      this(file, canonicalPath, length, length, lastModified, mimetype, lastModifiedHeader, content, null,
+          etag);
+    }
+
+    /**
+     * A precompressed file next to the source file
+     */
+    Asset(Asset source, File file, String canonicalPath, long length, long lastModified, byte[] content,
+        String encoding)
+    {
+      this(file, canonicalPath, length, length, lastModified, source.mimetype, source.lastModifiedHeader,
+          content, encoding, variantTag(source.etag, encoding));
+    }
+
+    /**
+     * A file that was compressed in memory
+     */
+    Asset(Asset source, byte[] content, String encoding)
+    {
+      this(source.file, source.canonicalPath, content.length, source.fileLength, source.lastModified,
+          source.mimetype, source.lastModifiedHeader, content, encoding, variantTag(source.etag, encoding));
+    }
+
+    private Asset(File file, String canonicalPath, long length, long fileLength, long lastModified,
+        String mimetype, String lastModifiedHeader, byte[] content, String encoding, String etag)
+    {
+      this.file = file;
+      this.canonicalPath = canonicalPath;
+      this.length = length;
+      this.fileLength = fileLength;
+      this.lastModified = lastModified;
+      this.mimetype = mimetype;
+      this.lastModifiedHeader = lastModifiedHeader;
+      this.content = content;
+      this.encoding = encoding;
+      this.etag = etag;
+    }
+
+    /**
+     * Each encoding of a file is a different representation and needs its own
+     * entity tag.
+     */
+    private static String variantTag(String etag, String encoding)
+    {
+      if (etag == null)
+        return null;
+      return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    /**
+     * Returns true when the file on disk is not the file this asset describes
+     * anymore.
+     */
+    boolean isStale()
+    {
+      return file.lastModified() != lastModified || file.length() != fileLength;
+    }
+
+    final File file;
+    final String canonicalPath;
+    // the number of bytes to send
+    final long length;
+    // the size of the file on disk
+    final long fileLength;
+    // milliseconds
+    final long lastModified;
+    final String mimetype;
+    final String lastModifiedHeader;
+    // null if the file isn't kept in memory
+    final byte[] content;
+    // the Content-Encoding or null for identity
+    final String encoding;
+    // strong entity tag including the quotes or null if the hash is unknown
+    final String etag;
+  }
+
+  StaticAssetCache(long maxBytes, int maxFileSize, int maxEntries)
+  {
+    mMaxFileSize = maxFileSize;
+    mAssets = new BoundedCache<>(maxEntries, maxBytes, (key, asset) -> size(asset), EvictionPolicy.LRU);
+
+    FileWatcher watcher = null;
+    try
+    {
+      watcher = new FileWatcher("snap-static-watcher");
+    }
+    catch (IOException | UnsupportedOperationException e)
+    {
+      log.warn("Can't watch static files for changes. Checking the files on every request", e);
+    }
+    mWatcher = watcher;
+  }
+
+  /**
+   * Get a cached asset. Doesn't take a lock.
+   *
+   * @param key
+   *          The key of the asset
+   * @return the asset or null if it is not cached
+   */
+  Asset get(String key)
+  {
+    Asset asset = mAssets.get(key);
+    if (asset != null && mWatcher == null && asset.isStale())
+    {
+      // counted as a hit by the cache, but it is a miss
+      mStaleHits.increment();
+      if (mAssets.remove(key, asset))
+        mInvalidations.increment();
+      return null;
+    }
+    return asset;
+  }
+
+  /**
+   * Returns true if the contents of a file of this size are kept in memory.
+   *
+   * @param length
+   *          The size of the file
+   * @return whether to read the file into memory
+   */
+  boolean isCacheable(long length)
+  {
+    return length <= mMaxFileSize && length <= mAssets.getMaxWeight();
+  }
+
+  /**
+   * Add an asset. Evicts assets that weren't used recently when the cache is
+   * full.
+   *
+   * @param key
+   *          The key of the asset
+   * @param asset
+   *          The asset
+   */
+  void put(String key, Asset asset)
+  {
+    watch(asset.file);
+    mAssets.put(key, asset);
+
+    // changed before the watch was in place
+    if (asset.isStale())
+      mAssets.remove(key, asset);
+  }
+
+  /**
+   * Remove an asset
+   *
+   * @param key
+   *          The key of the asset
+   */
+  void remove(String key)
+  {
+    mAssets.remove(key);
+  }
+
+  /**
+   * Remove all assets
+   */
+  public void clear()
+  {
+    mAssets.clear();
+  }
+
+  /**
+   * Stops watching the files
+   */
+  void close()
+  {
+    if (mWatcher != null)
+      mWatcher.close();
+  }
+
+  private void watch(File file)
+  {
+    if (mWatcher == null)
+      return;
+
+    Path directory = file.toPath().toAbsolutePath().getParent();
+    if (directory == null || !mWatched.add(directory))
+      return;
+
+    try
+    {
+      mWatcher.watch(directory, this::invalidate);
+    }
+    catch (IOException e)
+    {
+      log.warn("Can't watch directory: " + directory, e);
+      mWatched.remove(directory);
+    }
+  }
+
+  private void invalidate(Path changed)
+  {
+    // a file changed or, when events were lost, the whole directory
+    boolean directory = Files.isDirectory(changed);
+    int removed = mAssets.removeIf((key, asset) -> {
+      Path path = asset.file.toPath().toAbsolutePath();
+      return path.equals(changed) || (directory && changed.equals(path.getParent()));
+    });
+    if (removed > 0)
+    {
+      mInvalidations.add(removed);
+      log.debug("Static files changed: " + changed);
+    }
+  }
+
+  private static long size(Asset asset)
+  {
+    return asset.content != null ? asset.content.length : 0;
+  }
+
+  /**
+   * Returns the number of requests served from the cache.
+   *
+   * @return the count
+   */
+  public long getHits()
+  {
+    return mAssets.getHits() - mStaleHits.sum();
+  }
+
+  /**
+   * Returns the number of requests that were not found in the cache.
+   *
+   * @return the count
+   */
+  public long getMisses()
+  {
+    return mAssets.getMisses() + mStaleHits.sum();
+  }
+
+  /**
+   * Returns the number of files removed to stay within the budget.
+   *
+   * @return the count
+   */
+  public long getEvictions()
+  {
+    return mAssets.getEvictions();
+  }
+
+  /**
+   * Returns the number of files removed because they changed.
+   *
+   * @return the count
+   */
+  public long getInvalidations()
+  {
+    return mInvalidations.sum();
+  }
+
+  /**
+   * Returns the number of bytes of file contents in the cache.
+   *
+   * @return the number of bytes
+   */
+  public long getBytes()
+  {
+    return mAssets.getWeight();
+  }
+
+  /**
+   * Returns the number of files in the cache.
+   *
+   * @return the count
+   */
+  public int size()
+  {
+    return mAssets.size();
+  }
+
+  @Override
+  public String toString()
+  {
+    return getClass().getSimpleName() + " files: " + size() + "/" + mAssets.getMaxSize() + ", bytes: "
+        + getBytes() + "/" + mAssets.getMaxWeight() + ", hits: " + getHits() + ", misses: " + getMisses() + ", evictions: "
+        + getEvictions() + ", invalidations: " + getInvalidations();
+  }
+
+  private final int mMaxFileSize;
+  // weighed by the size of the contents
+  private final BoundedCache<String, Asset> mAssets;
+  private final FileWatcher mWatcher;
+  private final Set<Path> mWatched = ConcurrentHashMap.newKeySet();
+
+  // stale assets the cache counted as hits
+  private final LongAdder mStaleHits = new LongAdder();
+  private final LongAdder mInvalidations = new LongAdder();
+}
@@ -1,30 +1,39 @@
 package snap;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.time.DateTimeException;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.UUID;
-import java.util.regex.Matcher;
+import java.util.Set;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import snap.StaticAssetCache.Asset;
 import snap.http.HttpMethod;
 import snap.http.RequestContext;
 import snap.http.RequestResult;
@@ -48,6 +57,29 @@ public class StaticRoute implements Route
   }
 
   private static final int TRANSFER_BUFFER_SIZE = 10240;
+  // about the size of the header of a part of a multipart/byteranges body
+  private static final int RANGE_COALESCE_GAP = 80;
+
+  // Content encodings in order of preference and the extension of their
+  // precompressed files
+  private static final String BROTLI = "br";
+  private static final String GZIP = "gzip";
+  private static final String[] ENCODINGS = { BROTLI, GZIP };
+  private static final String[] EXTENSIONS = { ".br", ".gz" };
+
+  // compressible types that don't start with text/ or end with +xml or +json
+  private static final Set<String> COMPRESSIBLE_TYPES = new HashSet<>(Arrays.asList("application/javascript",
+      "application/x-javascript", "application/json", "application/xml", "application/wasm",
+      "application/vnd.ms-fontobject", "font/ttf", "font/otf", "image/x-icon", "image/bmp"));
+
+  // Request attributes a container sets when it can send files itself
+  // (sendfile) and the attributes that tell it which part of which file to
+  // send. Supported by Tomcat and containers that follow it.
+  private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
   final Logger log = LoggerFactory.getLogger(StaticRoute.class);
   final DateTimeFormatter mHttpDateFormat = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss z",
       Locale.US);
@@ -57,8 +89,12 @@ public class StaticRoute implements Route
     mLocation = directory;
     mContextPath = contextPath;
     mPath = url;
+    mPattern = Pattern.compile(url);
     // Only allow GET, HEAD method for static media
     mHttpMethods = new HttpMethod[] { HttpMethod.GET, HttpMethod.HEAD };
+
+    if (Settings.staticFingerprint)
+      mManifest = createManifest();
   }
 
   @Override
@@ -123,10 +159,48 @@ public class StaticRoute implements Route
     if (mPath.charAt(end - 1) == '$')
       end--;
     String path = mPath.substring(begin, end);
+    String fileName = params[0].toString();
+    if (mManifest != null)
+      fileName = mManifest.getFingerprintedName(fileName);
     if (mContextPath == null || "".equals(mContextPath))
-      return path + params[0].toString();
+      return path + fileName;
     else
-      return mContextPath + path + params[0].toString();
+      return mContextPath + path + fileName;
+  }
+
+  /**
+   * Returns true if links to this route contain the content hash of the file.
+   * Such links change when the file changes.
+   *
+   * @return whether the links are fingerprinted
+   */
+  public boolean isFingerprinted()
+  {
+    return mManifest != null;
+  }
+
+  /**
+   * Hashes the files in the directory of the route. Returns null when the
+   * route points to a single file or the directory isn't on disk.
+   */
+  private AssetManifest createManifest()
+  {
+    File directory = new File(mLocation);
+    if (!directory.isAbsolute())
+    {
+      WebApplication application = WebApplication.getInstance();
+      ServletContext servletContext = application != null ? application.getServletContext() : null;
+      String path = servletContext != null ? servletContext.getRealPath(mLocation) : null;
+      if (path == null)
+      {
+        log.warn("Static route " + mPath + " is not on disk. Links won't be fingerprinted");
+        return null;
+      }
+      directory = new File(path);
+    }
+    if (!directory.isDirectory())
+      return null;
+    return AssetManifest.forDirectory(directory.toPath());
   }
 
   private void processRequest(RequestContext context) throws IOException
@@ -135,50 +209,46 @@ public class StaticRoute implements Route
     if (context.getMethod() == HttpMethod.HEAD)
       shouldSendData = false;
 
-    // TODO: add gzip compression
-
     // Fetch the actual file and serve it directly
     // remove the path in the routes.conf from the request url path segments.
     // The remainder is the file name
-    Pattern p = Pattern.compile(mPath);
-    Matcher m = p.matcher(context.getPath());
-    String fileName = m.replaceAll("");
-
-    // Get a File object pointing to the correct file.
-    // will throw a resource not found exception if the file doesn't exit
-    File file = getFile(context, fileName);
+    String fileName = mPattern.matcher(context.getPath()).replaceAll("");
 
-    // Now that we know the actual file, if the client sent the
-    // "If-Modified-Since" header
-    // only send the file a newer version is available.
-    boolean fileIsNewerThanRequested = true; // by default send the file
-    // this may happen the modified since header data parsing fails
-    Instant fileLastModified = Instant.ofEpochSecond(file.lastModified());
-    String modifiedSince = context.getRequest().getHeader("If-Modified-Since");
-    if (modifiedSince != null)
+    // a fingerprinted name (app.3f9c2a1b0d.js) of the current version of a
+    // file refers to that version only and can be cached forever
+    boolean immutable = false;
+    if (mManifest != null)
     {
-      try
+      String original = mManifest.resolve(fileName);
+      if (original != null)
       {
-        ZonedDateTime cachedFileDate = ZonedDateTime.parse(modifiedSince, mHttpDateFormat);
-        // reset the file time to the same timezone as the cachedFileDate
-        ZonedDateTime zdt = ZonedDateTime.ofInstant(fileLastModified, cachedFileDate.getZone());
-
-        // the file is older so don't send it (by default always send)
-        if (!zdt.isAfter(cachedFileDate))
-          fileIsNewerThanRequested = false;
-      }
-      catch (DateTimeException | NumberFormatException e)
-      {
-        log.warn("Can't parse If-Modified-Since date: \"" + modifiedSince + "\" Sending file anyway.");
+        fileName = original;
+        immutable = true;
       }
     }
 
-    if (!fileIsNewerThanRequested)
+    // Get the file and what's needed to send it. Will throw a resource not
+    // found exception if the file doesn't exit
+    String key = mLocation + '|' + fileName;
+    Asset asset = getAsset(context, key, fileName);
+    File file = asset.file;
+
+    HttpServletResponse response = context.getResponse();
+
+    // send a compressed variant when the client accepts it. Ranges and the
+    // entity tag apply to the bytes that are sent
+    Asset body = Settings.staticCompression ? selectEncoding(context, asset, key) : asset;
+
+    // the response depends on the Accept-Encoding header when files can be
+    // sent compressed. The not modified response needs the same cache headers
+    if (Settings.staticCompression)
+      response.setHeader("Vary", "Accept-Encoding");
+    setCacheHeaders(response, asset, body, immutable);
+
+    if (!isModified(context, asset, body))
     {
-      // file is not newer than client version
-      HttpServletResponse response = context.getResponse();
+      // the client has the current version
       response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-      // TODO: send ETag and expires
       return;
     }
 
@@ -186,96 +256,95 @@ public class StaticRoute implements Route
 
     String contentDisposition = "inline";
 
-    // Set the mimetype first
-    String mimetype = context.getRequest().getServletContext().getMimeType(file.getCanonicalPath());
-    if (mimetype == null)
-      mimetype = "application/octet-stream";
-
-    if (mimetype.startsWith("text")) // assume all text is served as UTF-8
-    {
-      mimetype += "; charset=UTF-8";
-    }
-    else if (mimetype.startsWith("image"))
+    String mimetype = asset.mimetype;
+    if (mimetype.startsWith("image"))
     {
       String accept = context.getRequest().getHeader("Accept");
       contentDisposition = accept != null && accepts(accept, mimetype) ? "inline" : "attachment";
     }
 
-    HttpServletResponse response = context.getResponse();
+    if (body.encoding != null)
+      response.setHeader("Content-Encoding", body.encoding);
 
-    // figure out the range we have to return
+    // figure out the range we have to return. When the client's copy is
+    // outdated (If-Range) the whole file is sent
     List<Range> ranges = null;
-    String boundaryToken = UUID.randomUUID().toString();
     String rangeHeader = context.getRequest().getHeader("Range");
-    if (rangeHeader != null)
+    if (rangeHeader != null && isRangeCurrent(context, asset, body))
     {
       if ((!rangeHeader.matches("^bytes=\\d*-\\d*(,\\d*-\\d*)*$"))
-          || ((ranges = parseRanges(rangeHeader, file.length())) == null))
+          || ((ranges = parseRanges(rangeHeader, body.length)) == null))
       {
-        response.setHeader("Content-Range", "bytes */");
+        response.setHeader("Content-Range", "bytes */" + body.length);
         response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
         return;
       }
+      // too many ranges costs more than it saves. send the whole file
+      if (ranges.size() > Settings.staticMaxRanges)
+        ranges = null;
     }
 
-    // have the client recheck the cache in 1 week (60*60*24*7)
-    response.setHeader("Cache-Control", "private, no-transform, max-age=604800");
-    // even though Expires is deprecated and replaced by max-age, use it for
-    // compatibility
-    response.setHeader("Expires", mHttpDateFormat.format(ZonedDateTime.now(ZoneId.of("GMT")).plusDays(7)));
     response.setHeader("Accept-Ranges", "bytes");
-    response.setHeader("Last-Modified",
-        mHttpDateFormat.format(ZonedDateTime.ofInstant(fileLastModified, ZoneId.of("GMT"))));
     response.setHeader("Content-Disposition", contentDisposition + ";filename=\"" + file.getName() + "\"");
     response.setBufferSize(TRANSFER_BUFFER_SIZE);
 
-    RandomAccessFile srcFile = null;
+    FileChannel srcFile = null;
     ServletOutputStream os = null;
     try
     {
-      // open the file
-      srcFile = new RandomAccessFile(file, "r");
-      os = response.getOutputStream();
-
-      if (ranges == null)
-      {
-        response.setContentLengthLong(file.length());
-        response.setContentType(mimetype);
-        response.setStatus(HttpServletResponse.SC_OK);
-        if (shouldSendData)
-          transferData(srcFile, os, 0, file.length());
-      }
-      else if (ranges.size() == 1)
+      if (ranges == null || ranges.size() == 1)
       {
-        Range range = ranges.get(0);
+        Range range = ranges == null ? new Range(0, body.length - 1) : ranges.get(0);
         response.setContentLengthLong(range.length);
         response.setContentType(mimetype);
-        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
-        response.setHeader("Content-Range", "bytes " + range.start + "-" + range.end + "/" + file.length());
+        if (ranges == null)
+        {
+          response.setStatus(HttpServletResponse.SC_OK);
+        }
+        else
+        {
+          response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+          response.setHeader("Content-Range", "bytes " + range.start + "-" + range.end + "/" + body.length);
+        }
 
-        if (shouldSendData)
-          transferData(srcFile, os, range.start, range.length);
+        // small files are sent from memory. let the container send other
+        // files when it can
+        if (shouldSendData && body.content != null)
+        {
+          os = response.getOutputStream();
+          os.write(body.content, (int)range.start, (int)range.length);
+        }
+        else if (shouldSendData && range.length > 0 && !sendFile(context.getRequest(), body, range))
+        {
+          srcFile = FileChannel.open(body.file.toPath(), StandardOpenOption.READ);
+          os = response.getOutputStream();
+          MultiPartFile.transfer(srcFile, Channels.newChannel(os), range.start, range.length);
+        }
       }
-      else if (ranges.size() > 1)
+      else
       {
+        // send as multipart. The part headers are built up front, so the
+        // length of the whole body is known
+        List<Pair<Long, Long>> parts = new ArrayList<>(ranges.size());
+        for (Range range : ranges)
+          parts.add(new Pair<>(range.start, range.end));
+        MultiPartFile multiPartFile = new MultiPartFile(body.file, body.length, parts, mimetype);
 
-        // send as multipart.
-        // generate random boundary token
-        final String BOUNDARY_TOKEN = UUID.randomUUID().toString();
         response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
-        response.setContentType("multipart/byteranges; boundary=" + boundaryToken);
+        response.setContentType(multiPartFile.getMultiPartContentType());
+        response.setContentLengthLong(multiPartFile.getContentLength());
         if (shouldSendData)
         {
-          for (Range range : ranges)
+          os = response.getOutputStream();
+          if (body.content != null)
+          {
+            multiPartFile.writeTo(os, body.content);
+          }
+          else
           {
-            os.println();
-            os.println("--" + BOUNDARY_TOKEN);
-            os.println("Content-Type: " + mimetype);
-            os.println("Content-Range: bytes " + range.start + "-" + range.end + "/" + file.length());
-            transferData(srcFile, os, range.start, range.length);
+            srcFile = FileChannel.open(body.file.toPath(), StandardOpenOption.READ);
+            multiPartFile.writeTo(Channels.newChannel(os), srcFile);
           }
-          os.println();
-          os.println("--" + BOUNDARY_TOKEN + "--");
         }
       }
     }
@@ -285,6 +354,8 @@ public class StaticRoute implements Route
       {
         // test to see if this IOException happened because the remote
         // side closed the connection
+        if (os == null)
+          throw ioe;
         os.flush();
         os = null;
         throw ioe;
@@ -311,6 +382,109 @@ public class StaticRoute implements Route
     }
   }
 
+  /**
+   * Sets the headers that tell clients and shared caches how long they can
+   * keep the file.
+   */
+  private void setCacheHeaders(HttpServletResponse response, Asset asset, Asset body, boolean immutable)
+  {
+    if (immutable)
+    {
+      // the content of a fingerprinted name never changes
+      response.setHeader("Cache-Control", "public, no-transform, max-age=31536000, immutable");
+    }
+    else
+    {
+      // have the client recheck the cache in 1 week (60*60*24*7)
+      response.setHeader("Cache-Control",
+          (Settings.staticCachePublic ? "public" : "private") + ", no-transform, max-age=604800");
+    }
+    // even though Expires is deprecated and replaced by max-age, use it for
+    // compatibility
+    response.setHeader("Expires", getExpiresHeader(immutable));
+    response.setHeader("Last-Modified", asset.lastModifiedHeader);
+    if (body.etag != null)
+      response.setHeader("ETag", body.etag);
+  }
+
+  /**
+   * Returns false if the client's copy is current according to the
+   * If-None-Match or, when that is absent, the If-Modified-Since header.
+   */
+  private boolean isModified(RequestContext context, Asset asset, Asset body)
+  {
+    String noneMatch = context.getRequest().getHeader("If-None-Match");
+    if (noneMatch != null)
+      return !matchesEntityTag(noneMatch, body.etag);
+
+    String modifiedSince = context.getRequest().getHeader("If-Modified-Since");
+    if (modifiedSince == null)
+      return true;
+
+    try
+    {
+      Instant fileLastModified = Instant.ofEpochMilli(asset.lastModified).truncatedTo(ChronoUnit.SECONDS);
+      ZonedDateTime cachedFileDate = ZonedDateTime.parse(modifiedSince, mHttpDateFormat);
+      // the file is not newer than the client's version
+      return Instant.from(cachedFileDate).isBefore(fileLastModified);
+    }
+    catch (DateTimeException | NumberFormatException e)
+    {
+      log.warn("Can't parse If-Modified-Since date: \"" + modifiedSince + "\" Sending file anyway.");
+      return true;
+    }
+  }
+
+  /**
+   * Returns true if a range may be sent: when there is no If-Range header or
+   * it matches the current version of the file.
+   */
+  private boolean isRangeCurrent(RequestContext context, Asset asset, Asset body)
+  {
+    String ifRange = context.getRequest().getHeader("If-Range");
+    if (ifRange == null)
+      return true;
+
+    ifRange = ifRange.trim();
+    // strong comparison. a weak tag never matches
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+      return ifRange.equals(body.etag);
+    return ifRange.equals(asset.lastModifiedHeader);
+  }
+
+  /**
+   * Weak comparison of the entity tags in an If-None-Match header with the
+   * tag of the file.
+   */
+  private static boolean matchesEntityTag(String header, String etag)
+  {
+    if ("*".equals(header.trim()))
+      return true;
+    if (etag == null)
+      return false;
+
+    for (String tag : header.split(","))
+    {
+      tag = tag.trim();
+      if (tag.startsWith("W/"))
+        tag = tag.substring(2);
+      if (tag.equals(etag))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the entity tag of a file: the content hash when it is known,
+   * otherwise derived from the size and modification time of the file.
+   */
+  private static String entityTag(String hash, long length, long lastModified)
+  {
+    if (hash != null)
+      return '"' + hash + '"';
+    return '"' + Long.toHexString(length) + '-' + Long.toHexString(lastModified) + '"';
+  }
+
   private List<Range> parseRanges(String rangeHeader, long filesize)
   {
 
@@ -329,58 +503,323 @@ public class StaticRoute implements Route
     for (String range : parts)
     {
       long first = -1, last = -1;
-      String[] beginend = range.split("-");
+      String[] beginend = range.split("-", -1);
       String begin = beginend[0];
-      if (beginend.length == 2)
-      {
-        String end = beginend[1];
-        if (end.length() > 0)
-          last = Long.parseLong(end);
-      }
+      String end = beginend[1];
+      // "-" has neither a first byte nor a suffix length
+      if (begin.isEmpty() && end.isEmpty())
+        return null;
+      if (end.length() > 0)
+        last = Long.parseLong(end);
       if (begin.length() > 0)
         first = Long.parseLong(begin);
       if (first == -1)
       {
-        first = filesize - last;
+        first = Math.max(0, filesize - last);
         last = filesize - 1;
       }
-      else if (last == -1)
+      else if (last == -1 || last >= filesize)
       {
         last = filesize - 1;
       }
+      // skip ranges that are outside of the file
+      if (first < 0 || first > last)
+        continue;
       list.add(new Range(first, last));
     }
-    return list;
+    if (list.isEmpty())
+      return null;
+
+    // merge ranges that overlap or are so close that a separate part costs
+    // more than sending the bytes in between
+    list.sort((a, b) -> Long.compare(a.start, b.start));
+    List<Range> merged = new ArrayList<>(list.size());
+    Range current = list.get(0);
+    for (int i = 1; i < list.size(); i++)
+    {
+      Range next = list.get(i);
+      if (next.start <= current.end + 1 + RANGE_COALESCE_GAP)
+        current = new Range(current.start, Math.max(current.end, next.end));
+      else
+      {
+        merged.add(current);
+        current = next;
+      }
+    }
+    merged.add(current);
+    return merged;
   }
 
-  private void transferData(RandomAccessFile file, OutputStream out, long start, long length)
-      throws IOException
+  /**
+   * Returns the file for the file name and what's needed to send it, from the
+   * static asset cache when it's enabled.
+   */
+  private Asset getAsset(RequestContext context, String key, String fileName) throws IOException
   {
-    byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
-    int len;
+    StaticAssetCache cache = getAssetCache();
+    if (cache != null)
+    {
+      Asset asset = cache.get(key);
+      if (asset != null)
+        return asset;
+    }
+
+    File file = getFile(context, fileName);
+    long lastModified = file.lastModified();
+    long length = file.length();
+
+    // Set the mimetype first
+    String canonicalPath = file.getCanonicalPath();
+    String mimetype = context.getRequest().getServletContext().getMimeType(canonicalPath);
+    if (mimetype == null)
+      mimetype = "application/octet-stream";
+
+    if (mimetype.startsWith("text")) // assume all text is served as UTF-8
+      mimetype += "; charset=UTF-8";
+
+    String lastModifiedHeader = mHttpDateFormat
+        .format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneId.of("GMT")));
+
+    // the manifest only knows the hash of the version of the file it has seen
+    String hash = mManifest != null ? mManifest.getHash(fileName, lastModified, length) : null;
 
-    if (length == file.length()) // send the whole file
+    if (cache == null)
+      return new Asset(file, canonicalPath, length, lastModified, mimetype, lastModifiedHeader, null,
+          entityTag(hash, length, lastModified));
+
+    byte[] content = null;
+    if (cache.isCacheable(length))
     {
-      while ((len = file.read(buffer)) > 0)
-        out.write(buffer, 0, len);
+      content = Files.readAllBytes(file.toPath());
+      if (content.length != length)
+      {
+        // changed while reading. don't keep it
+        return new Asset(file, canonicalPath, length, lastModified, mimetype, lastModifiedHeader, null,
+            null);
+      }
+      hash = AssetManifest.hash(content);
     }
-    else
+    Asset asset = new Asset(file, canonicalPath, length, lastModified, mimetype, lastModifiedHeader, content,
+        entityTag(hash, length, lastModified));
+    cache.put(key, asset);
+    return asset;
+  }
+
+  /**
+   * Returns the variant of the asset to send for the Accept-Encoding header of
+   * the request. Brotli is only sent when there is a precompressed .br file,
+   * gzip from a .gz file or by compressing small files once.
+   *
+   * @return the compressed variant or the asset itself
+   */
+  private Asset selectEncoding(RequestContext context, Asset asset, String key) throws IOException
+  {
+    String acceptEncoding = context.getRequest().getHeader("Accept-Encoding");
+    if (acceptEncoding == null || asset.length == 0)
+      return asset;
+
+    for (int i = 0; i < ENCODINGS.length; i++)
     {
-      file.seek(start);
-      while ((len = file.read(buffer)) > 0)
+      if (acceptsEncoding(acceptEncoding, ENCODINGS[i]))
       {
-        length -= len;
-        if (length < 0)
-        { // we read more than we should have
-          out.write(buffer, 0, len + (int)length);
-          break;
-        }
-        else
+        Asset variant = getVariant(asset, key, ENCODINGS[i], EXTENSIONS[i]);
+        if (variant != null)
+          return variant;
+      }
+    }
+    return asset;
+  }
+
+  /**
+   * Returns the asset compressed with the encoding, or null if there is no
+   * such variant. Files that don't have a variant are remembered in the cache
+   * too, so images don't cost a lookup of their .gz and .br file on every
+   * request.
+   */
+  private Asset getVariant(Asset asset, String key, String encoding, String extension) throws IOException
+  {
+    StaticAssetCache cache = getAssetCache();
+    String variantKey = key + '|' + encoding;
+    if (cache != null)
+    {
+      Asset variant = cache.get(variantKey);
+      if (variant != null && variant.encoding == null)
+        return null;
+      // a precompressed file that is older than the file itself is not used
+      if (variant != null && variant.lastModified >= asset.lastModified)
+        return variant;
+    }
+
+    File sibling = new File(asset.file.getPath() + extension);
+    long lastModified = sibling.lastModified(); // 0 if it doesn't exist
+    Asset variant = null;
+    if (lastModified >= asset.lastModified && sibling.isFile()
+        && sibling.getCanonicalPath().equals(asset.canonicalPath + extension))
+    {
+      long length = sibling.length();
+      byte[] content = null;
+      if (cache != null && cache.isCacheable(length))
+      {
+        content = Files.readAllBytes(sibling.toPath());
+        if (content.length != length)
+          // changed while reading. don't keep it
+          return null;
+      }
+      variant = new Asset(asset, sibling, sibling.getCanonicalPath(), length, lastModified, content, encoding);
+    }
+    else if (GZIP.equals(encoding) && asset.content != null && isCompressible(asset.mimetype))
+    {
+      // only files that are kept in memory are compressed. The cache keeps
+      // the result
+      byte[] compressed = compress(asset.content);
+      if (compressed.length < asset.length)
+        variant = new Asset(asset, compressed, encoding);
+    }
+
+    if (cache != null)
+    {
+      // remember that there is no variant. Invalidated when the precompressed
+      // file is created
+      cache.put(variantKey, variant != null ? variant
+          : new Asset(sibling, null, 0, 0, asset.mimetype, null, null, null));
+    }
+    return variant;
+  }
+
+  /**
+   * Returns true if the Accept-Encoding header accepts the encoding.
+   */
+  private static boolean acceptsEncoding(String acceptEncoding, String encoding)
+  {
+    boolean wildcard = false;
+    for (String part : acceptEncoding.split(","))
+    {
+      String[] params = part.split(";");
+      String coding = params[0].trim();
+      boolean accepted = true;
+      for (int i = 1; i < params.length; i++)
+      {
+        String param = params[i].trim();
+        if (param.startsWith("q="))
+          accepted = parseQuality(param.substring(2)) > 0;
+      }
+      if (coding.equalsIgnoreCase(encoding))
+        return accepted;
+      if ("*".equals(coding))
+        wildcard = accepted;
+    }
+    return wildcard;
+  }
+
+  private static double parseQuality(String q)
+  {
+    try
+    {
+      return Double.parseDouble(q.trim());
+    }
+    catch (NumberFormatException e)
+    {
+      return 0;
+    }
+  }
+
+  private static boolean isCompressible(String mimetype)
+  {
+    int semicolon = mimetype.indexOf(';');
+    String type = (semicolon < 0 ? mimetype : mimetype.substring(0, semicolon)).trim().toLowerCase(Locale.US);
+    return type.startsWith("text/") || type.endsWith("+xml") || type.endsWith("+json")
+        || COMPRESSIBLE_TYPES.contains(type);
+  }
+
+  private static byte[] compress(byte[] content) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+    // compressed once, so take the best compression
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)
+    {
+      {
+        def.setLevel(Deflater.BEST_COMPRESSION);
+      }
+    })
+    {
+      gzip.write(content);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns the static asset cache or null if it is disabled.
+   *
+   * @return the cache shared by all static routes
+   */
+  public static StaticAssetCache getAssetCache()
+  {
+    if (Settings.staticCacheSize <= 0)
+      return null;
+
+    StaticAssetCache cache = mAssetCache;
+    if (cache == null)
+    {
+      synchronized (StaticRoute.class)
+      {
+        cache = mAssetCache;
+        if (cache == null)
         {
-          out.write(buffer, 0, len);
+          cache = new StaticAssetCache(Settings.staticCacheSize, Settings.staticCacheMaxFileSize,
+              Settings.staticCacheEntries);
+          mAssetCache = cache;
         }
       }
     }
+    return cache;
+  }
+
+  /**
+   * Stops the static asset cache. Called when the router is destroyed.
+   */
+  static synchronized void closeAssetCache()
+  {
+    if (mAssetCache != null)
+      mAssetCache.close();
+    mAssetCache = null;
+  }
+
+  /**
+   * Returns the Expires header for files sent now: in a week or, for
+   * fingerprinted names, in a year. Formatted at most once per second.
+   */
+  private static String getExpiresHeader(boolean immutable)
+  {
+    long second = System.currentTimeMillis() / 1000;
+    Expires expires = immutable ? mImmutableExpires : mExpires;
+    if (expires == null || expires.second != second)
+    {
+      ZonedDateTime now = ZonedDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.of("GMT"));
+      expires = new Expires(second, mExpiresFormat.format(immutable ? now.plusYears(1) : now.plusDays(7)));
+      if (immutable)
+        mImmutableExpires = expires;
+      else
+        mExpires = expires;
+    }
+    return expires.value;
+  }
+
+  /**
+   * Asks the container to send (part of) the file with sendfile. The response
+   * headers must be set and the response must not be committed.
+   *
+   * @return false if the container doesn't support sendfile
+   */
+  private boolean sendFile(HttpServletRequest request, Asset asset, Range range)
+  {
+    if (!Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT)))
+      return false;
+
+    request.setAttribute(SENDFILE_FILENAME, asset.canonicalPath);
+    request.setAttribute(SENDFILE_START, range.start);
+    // exclusive
+    request.setAttribute(SENDFILE_END, range.end + 1);
+    return true;
   }
 
   private File getFile(RequestContext context, String fileName) throws IOException
@@ -414,7 +853,7 @@ public class StaticRoute implements Route
       String actualPath = context.getRequest().getServletContext().getRealPath(computedPath);
       if (actualPath == null)
       {
-        throw new ResourceNotFoundException("File \"" + fileName + "\" not found on local disk");
+        throw notFound("File \"" + fileName + "\" not found on local disk");
       }
       file = new File(actualPath);
       permittedPath = new File(context.getRequest().getServletContext().getRealPath(mLocation))
@@ -426,33 +865,42 @@ public class StaticRoute implements Route
     if (!canonicalPath.startsWith(permittedPath))
     {
       log.warn("Requested file " + file.getPath() + " is not under permitted folder: " + permittedPath);
-      throw new ResourceNotFoundException("File \"" + file.getAbsolutePath() + "\" not found on local disk");
+      throw notFound("File \"" + file.getAbsolutePath() + "\" not found on local disk");
     }
 
     if (!file.exists())
     {
       String message = "File not found: " + file.getAbsolutePath();
       log.info(message);
-      throw new ResourceNotFoundException(message);
+      throw notFound(message);
     }
 
     if (file.isDirectory())
     {
       String message = "Attempt to access directory \"" + file.getAbsolutePath() + "\" as file.";
       log.info(message);
-      throw new ResourceNotFoundException(message);
+      throw notFound(message);
     }
 
     if (!file.canRead())
     {
       String message = "File can't be read: " + file.getAbsolutePath();
       log.info(message);
-      throw new ResourceNotFoundException(message);
+      throw notFound(message);
     }
 
     return file;
   }
 
+  /**
+   * A file that doesn't exist is a common miss (scanners, old links). The stack
+   * trace is only recorded when snap.site.debug is on.
+   */
+  private static ResourceNotFoundException notFound(String message)
+  {
+    return new ResourceNotFoundException(message, null, Settings.debug);
+  }
+
   // TODO: rewrite this code
   private static boolean accepts(String acceptHeader, String toAccept)
   {
@@ -463,9 +911,29 @@ public class StaticRoute implements Route
         || Arrays.binarySearch(acceptValues, "*/*") > -1;
   }
 
+  private static class Expires
+  {
+    Expires(long second, String value)
+    {
+      this.second = second;
+      this.value = value;
+    }
+
+    final long second;
+    final String value;
+  }
+
+  private static volatile StaticAssetCache mAssetCache;
+  private static volatile Expires mExpires;
+  private static volatile Expires mImmutableExpires;
+  private static final DateTimeFormatter mExpiresFormat = DateTimeFormatter
+      .ofPattern("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+
   private HttpMethod[] mHttpMethods;
+  private Pattern mPattern;
   private String mContextPath;
   private String mPath;
   private String mLocation;
   private RouteListener mRouteListener;
+  private AssetManifest mManifest;
 }
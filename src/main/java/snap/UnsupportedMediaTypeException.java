@@ -0,0 +1,21 @@
+package snap;
+
+/**
+ * Thrown when a request body has a content type the action can't read. The
+ * client receives 415 Unsupported Media Type.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class UnsupportedMediaTypeException extends SnapException
+{
+  public UnsupportedMediaTypeException(String message)
+  {
+    super(message);
+  }
+
+  public UnsupportedMediaTypeException(String message, Throwable cause)
+  {
+    super(message, cause);
+  }
+}
@@ -1,5 +1,7 @@
 package snap;
 
+import java.util.BitSet;
+
 /**
  * Implement this interface to store the user object in the system so that
  * the @LoginRequired annotation is supported
@@ -27,4 +29,30 @@ public interface User
    */
   boolean hasPermission(String right);
 
+  /**
+   * Implement this to check roles with bit sets. Get the bits of the roles of
+   * the user from WebApplication.getRoleRegistry().bitsOf(roles) and keep them
+   * with the user. Return null to check roles with hasRole(), the default.
+   *
+   * @return The bits of the roles of this user or null
+   */
+  default BitSet getRoleBits()
+  {
+    return null;
+  }
+
+  /**
+   * Implement this to check permissions with bit sets. Get the bits of the
+   * permissions of the user from
+   * WebApplication.getPermissionRegistry().bitsOf(permissions) and keep them
+   * with the user. Return null to check permissions with hasPermission(), the
+   * default.
+   *
+   * @return The bits of the permissions of this user or null
+   */
+  default BitSet getPermissionBits()
+  {
+    return null;
+  }
+
 }
@@ -0,0 +1,188 @@
+package snap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import snap.Settings.EvictionPolicy;
+
+/**
+ * Keeps users loaded with WebApplication.getUser() between requests. Entries
+ * expire after a fixed time and the cache holds at most a fixed number of
+ * users. Users that don't exist (null) are not cached.
+ *
+ * Configure it in snap.properties with:
+ *
+ * <pre>
+ * snap.user.cache.size = 1000  (0 disables the cache, the default)
+ * snap.user.cache.ttl = 60000  (milliseconds)
+ * </pre>
+ *
+ * Call WebApplication.invalidateUser() when the roles or permissions of a user
+ * change. The entry of a user is removed when the user logs in or out.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class UserCache
+{
+  private static class Entry
+  {
+    Entry(User user, long expires)
+    {
+      this.user = user;
+      this.expires = expires;
+    }
+
+    final User user;
+    final long expires;
+  }
+
+  /**
+   * Construct a cache
+   *
+   * @param maxSize
+   *          The maximum number of users
+   * @param ttl
+   *          How long a user is kept in milliseconds
+   */
+  public UserCache(int maxSize, long ttl)
+  {
+    if (ttl < 1)
+      throw new IllegalArgumentException("Time to live must be at least 1 ms");
+    mCache = new BoundedCache<>(maxSize, EvictionPolicy.LRU);
+    mTtl = TimeUnit.MILLISECONDS.toNanos(ttl);
+  }
+
+  /**
+   * Get the user by id
+   *
+   * @param userid
+   *          The id of the user
+   * @return The user or null if not cached or expired
+   */
+  public User get(Long userid)
+  {
+    Entry entry = mCache.get(userid);
+    if (entry == null)
+      return null;
+
+    if (System.nanoTime() - entry.expires >= 0)
+    {
+      mCache.remove(userid);
+      mExpirations.increment();
+      return null;
+    }
+    return entry.user;
+  }
+
+  /**
+   * Store a user
+   *
+   * @param userid
+   *          The id of the user
+   * @param user
+   *          The user. Null values are ignored
+   */
+  public void put(Long userid, User user)
+  {
+    if (user != null)
+      mCache.put(userid, new Entry(user, System.nanoTime() + mTtl));
+  }
+
+  /**
+   * Remove a user from the cache. The next lookup loads it again.
+   *
+   * @param userid
+   *          The id of the user
+   */
+  public void invalidate(Long userid)
+  {
+    if (mCache.remove(userid) != null)
+      mInvalidations.increment();
+  }
+
+  /**
+   * Remove all users from the cache.
+   */
+  public void invalidateAll()
+  {
+    mCache.clear();
+    mInvalidations.increment();
+  }
+
+  /**
+   * Returns the number of lookups that were found in the cache. Includes
+   * lookups of expired users.
+   *
+   * @return the count
+   */
+  public long getHits()
+  {
+    return mCache.getHits();
+  }
+
+  /**
+   * Returns the number of lookups that were not found in the cache.
+   *
+   * @return the count
+   */
+  public long getMisses()
+  {
+    return mCache.getMisses();
+  }
+
+  /**
+   * Returns the number of users removed to keep the cache within its size.
+   *
+   * @return the count
+   */
+  public long getEvictions()
+  {
+    return mCache.getEvictions();
+  }
+
+  /**
+   * Returns the number of users that were found expired.
+   *
+   * @return the count
+   */
+  public long getExpirations()
+  {
+    return mExpirations.sum();
+  }
+
+  /**
+   * Returns the number of explicit invalidations.
+   *
+   * @return the count
+   */
+  public long getInvalidations()
+  {
+    return mInvalidations.sum();
+  }
+
+  /**
+   * Returns the number of users in the cache.
+   *
+   * @return the count
+   */
+  public int size()
+  {
+    return mCache.size();
+  }
+
+  @Override
+  public String toString()
+  {
+    return getClass().getSimpleName() + " size: " + size() + "/" + mCache.getMaxSize() + ", hits: "
+        + getHits() + ", misses: " + getMisses() + ", evictions: " + getEvictions() + ", expirations: "
+        + getExpirations() + ", invalidations: " + getInvalidations();
+  }
+
+  private final BoundedCache<Long, Entry> mCache;
+  // in nanoseconds
+  private final long mTtl;
+
+  private final LongAdder mExpirations = new LongAdder();
+  private final LongAdder mInvalidations = new LongAdder();
+}
@@ -0,0 +1,141 @@
+package snap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads users for one request in batches. Ids that will be needed are queued
+ * with want(). The first get() loads all queued ids, and the requested one,
+ * with a single call to WebApplication.loadUsers(). Loaded users (and ids
+ * without a user) are kept for the rest of the request.
+ *
+ * A page that lists content by many users queues the ids of the authors while
+ * building the list and gets each author while rendering:
+ *
+ * <pre>
+ * UserLoader users = context.getUserLoader();
+ * for (Post post : posts)
+ *   users.want(post.getAuthorId());
+ * ...
+ * User author = users.get(post.getAuthorId()); // one query for all authors
+ * </pre>
+ *
+ * Get the loader of a request with RequestContext.getUserLoader(). It is not
+ * thread safe.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class UserLoader
+{
+  /**
+   * Construct a loader
+   *
+   * @param application
+   *          The application that loads the users
+   */
+  public UserLoader(WebApplication application)
+  {
+    mApplication = application;
+  }
+
+  /**
+   * Queue an id to be loaded with the next batch.
+   *
+   * @param userid
+   *          The id of the user. Null is ignored
+   */
+  public void want(Long userid)
+  {
+    if (userid != null && !mUsers.containsKey(userid))
+      mPending.add(userid);
+  }
+
+  /**
+   * Queue ids to be loaded with the next batch.
+   *
+   * @param userids
+   *          The ids of the users
+   */
+  public void want(Collection<Long> userids)
+  {
+    for (Long userid : userids)
+      want(userid);
+  }
+
+  /**
+   * Get a user. Loads the user and all queued users if it isn't loaded yet.
+   *
+   * @param userid
+   *          The id of the user
+   * @return The user or null if there is no user by this id
+   */
+  public User get(Long userid)
+  {
+    if (userid == null)
+      return null;
+
+    if (!mUsers.containsKey(userid))
+    {
+      mPending.add(userid);
+      load();
+    }
+    return mUsers.get(userid);
+  }
+
+  /**
+   * Get users. Loads the users and all queued users that aren't loaded yet in
+   * one batch.
+   *
+   * @param userids
+   *          The ids of the users
+   * @return The users found by id. Ids without a user are not in the map
+   */
+  public Map<Long, User> getAll(Collection<Long> userids)
+  {
+    want(userids);
+    if (!mPending.isEmpty())
+      load();
+
+    Map<Long, User> users = new HashMap<>();
+    for (Long userid : userids)
+    {
+      User user = mUsers.get(userid);
+      if (user != null)
+        users.put(userid, user);
+    }
+    return users;
+  }
+
+  /**
+   * Forget a loaded user so that it is loaded again.
+   *
+   * @param userid
+   *          The id of the user
+   */
+  public void forget(Long userid)
+  {
+    mUsers.remove(userid);
+  }
+
+  private void load()
+  {
+    List<Long> batch = new ArrayList<>(mPending);
+    mPending.clear();
+
+    Map<Long, User> loaded = mApplication.loadUsers(batch);
+    // remember the ids that have no user as well
+    for (Long userid : batch)
+      mUsers.put(userid, loaded.get(userid));
+  }
+
+  private final WebApplication mApplication;
+  private final Set<Long> mPending = new LinkedHashSet<>();
+  // loaded users. The value is null for ids that have no user
+  private final Map<Long, User> mUsers = new HashMap<>();
+}
@@ -4,12 +4,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.annotation.Annotation;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -20,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 import snap.annotations.AnnotationHandler;
 import snap.annotations.LoginRequired;
@@ -29,6 +33,7 @@ import snap.annotations.PermissionRequiredHandler;
 import snap.annotations.RoleRequired;
 import snap.annotations.RoleRequiredHandler;
 import snap.http.Authenticator;
+import snap.http.CredentialCache;
 import snap.http.RequestContext;
 import snap.views.NullView;
 import snap.views.View;
@@ -47,7 +52,11 @@ public abstract class WebApplication
   {
     mWebApplication = this;
     mAuthenticators = new ArrayList<>();
-    mControllerAnnotationHandlers = new HashMap<>();
+    mControllerAnnotationHandlers = new ConcurrentHashMap<>();
+    if (Settings.userCacheSize > 0)
+      mUserCache = new UserCache(Settings.userCacheSize, Settings.userCacheTtl);
+    if (Settings.credentialCacheSize > 0)
+      mCredentialCache = new CredentialCache(Settings.credentialCacheSize, Settings.credentialCacheTtl);
   }
 
   public void init(ServletConfig config)
@@ -139,6 +148,139 @@ public abstract class WebApplication
     return null;
   }
 
+  /**
+   * Return the user objects for a number of ids from your persistance store.
+   * Override this to load them with a single query. The default implementation
+   * calls getUser() for each id.
+   *
+   * @param userids
+   *          The IDs of the users to fetch
+   * @return the users found by id. Ids without a user may be left out
+   */
+  public Map<Long, User> getUsers(Collection<Long> userids)
+  {
+    Map<Long, User> users = new HashMap<>();
+    for (Long userid : userids)
+    {
+      User user = getUser(userid);
+      if (user != null)
+        users.put(userid, user);
+    }
+    return users;
+  }
+
+  /**
+   * Returns the users from the user cache and loads the others with a single
+   * call to getUsers().
+   *
+   * @param userids
+   *          The IDs of the users to fetch
+   * @return the users found by id. Ids without a user are not in the map
+   */
+  public Map<Long, User> loadUsers(Collection<Long> userids)
+  {
+    if (mUserCache == null)
+      return getUsers(userids);
+
+    Map<Long, User> users = new HashMap<>();
+    List<Long> missing = new ArrayList<>();
+    for (Long userid : userids)
+    {
+      User user = mUserCache.get(userid);
+      if (user != null)
+        users.put(userid, user);
+      else
+        missing.add(userid);
+    }
+    if (!missing.isEmpty())
+    {
+      Map<Long, User> loaded = getUsers(missing);
+      for (Map.Entry<Long, User> entry : loaded.entrySet())
+      {
+        mUserCache.put(entry.getKey(), entry.getValue());
+        if (entry.getValue() != null)
+          users.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return users;
+  }
+
+  /**
+   * Returns the user from the user cache or loads it with getUser() when the
+   * cache is disabled or doesn't have it.
+   *
+   * @param userid
+   *          The ID of the user to fetch
+   * @return the User or NULL
+   */
+  public User loadUser(Long userid)
+  {
+    if (mUserCache == null)
+      return getUser(userid);
+
+    User user = mUserCache.get(userid);
+    if (user == null)
+    {
+      user = getUser(userid);
+      mUserCache.put(userid, user);
+    }
+    return user;
+  }
+
+  /**
+   * Remove a user from the user cache. Call this when the user changes, for
+   * instance when roles or permissions are granted or revoked.
+   *
+   * @param userid
+   *          The ID of the user
+   */
+  public void invalidateUser(Long userid)
+  {
+    if (mUserCache != null && userid != null)
+      mUserCache.invalidate(userid);
+  }
+
+  /**
+   * Remove all users from the user cache.
+   */
+  public void invalidateUsers()
+  {
+    if (mUserCache != null)
+      mUserCache.invalidateAll();
+  }
+
+  /**
+   * Returns the registry that gives each role a bit index. Used by
+   * User.getRoleBits() and @RoleRequired.
+   *
+   * @return the role registry
+   */
+  public GrantRegistry getRoleRegistry()
+  {
+    return mRoleRegistry;
+  }
+
+  /**
+   * Returns the registry that gives each permission a bit index. Used by
+   * User.getPermissionBits() and @PermissionRequired.
+   *
+   * @return the permission registry
+   */
+  public GrantRegistry getPermissionRegistry()
+  {
+    return mPermissionRegistry;
+  }
+
+  /**
+   * Returns the user cache. Use it to read its statistics.
+   *
+   * @return the cache or null if it is disabled
+   */
+  public UserCache getUserCache()
+  {
+    return mUserCache;
+  }
+
   /**
    * Returns the language string for this request. You get the language from
    * your persistence store. The context is sent with this request so you can
@@ -159,9 +301,70 @@ public abstract class WebApplication
    * @param authenticator
    *          The authenticator to add
    */
-  public void registerAuthenticator(Authenticator authenticator)
+  public synchronized void registerAuthenticator(Authenticator authenticator)
   {
     mAuthenticators.add(authenticator);
+
+    // index the authenticators by scheme. Authenticators without a scheme are
+    // asked for every scheme
+    Map<String, List<Authenticator>> byScheme = new HashMap<>();
+    List<Authenticator> anyScheme = new ArrayList<>();
+    for (Authenticator a : mAuthenticators)
+    {
+      if (a.getScheme() != null)
+        byScheme.putIfAbsent(a.getScheme().toLowerCase(), new ArrayList<>());
+    }
+    for (Authenticator a : mAuthenticators)
+    {
+      if (a.getScheme() == null)
+      {
+        anyScheme.add(a);
+        byScheme.values().forEach(list -> list.add(a));
+      }
+      else
+        byScheme.get(a.getScheme().toLowerCase()).add(a);
+    }
+    mAuthenticatorsByScheme = byScheme;
+    mAnySchemeAuthenticators = anyScheme;
+  }
+
+  /**
+   * Returns the authenticators for the scheme of an Authorization header, in
+   * the order they were registered.
+   *
+   * @param header
+   *          The Authorization header
+   * @return the authenticators that handle the scheme of the header
+   */
+  public List<Authenticator> getAuthenticators(String header)
+  {
+    int end = header.indexOf(' ');
+    String scheme = (end < 0 ? header : header.substring(0, end)).toLowerCase();
+    List<Authenticator> authenticators = mAuthenticatorsByScheme.get(scheme);
+    return authenticators != null ? authenticators : mAnySchemeAuthenticators;
+  }
+
+  /**
+   * Returns the cache of verified credentials
+   *
+   * @return the cache or null if it is disabled
+   */
+  public CredentialCache getCredentialCache()
+  {
+    return mCredentialCache;
+  }
+
+  /**
+   * Forget the verified credentials of a user. Call this when the password of
+   * a user changes or a token is withdrawn.
+   *
+   * @param userid
+   *          The ID of the user
+   */
+  public void revokeCredentials(Long userid)
+  {
+    if (mCredentialCache != null && userid != null)
+      mCredentialCache.revokeUser(userid);
   }
 
   /**
@@ -183,9 +386,11 @@ public abstract class WebApplication
    * @param handler
    *          The handler that executes when the annotation is processed
    */
-  public void registerAnnotation(Class<? extends Annotation> annotation, AnnotationHandler handler)
+  public synchronized void registerAnnotation(Class<? extends Annotation> annotation, AnnotationHandler handler)
   {
     mControllerAnnotationHandlers.put(annotation, handler);
+    // routes rebuild their annotation handler chain when this changes
+    mAnnotationsVersion++;
   }
 
   public Map<Class<? extends Annotation>, AnnotationHandler> getAnnotations()
@@ -193,6 +398,36 @@ public abstract class WebApplication
     return mControllerAnnotationHandlers;
   }
 
+  /**
+   * Register a converter for controller action arguments of a type. Converters
+   * must be registered in init(), before the routes are loaded. A converter
+   * for a type snap supports replaces the one provided by snap.
+   *
+   * @param type
+   *          The argument type
+   * @param converter
+   *          Converts the request value to the type
+   */
+  public <T> void registerConverter(Class<T> type, ParamConverter<? extends T> converter)
+  {
+    mConverters.put(type, converter);
+  }
+
+  public Map<Class<?>, ParamConverter<?>> getConverters()
+  {
+    return mConverters;
+  }
+
+  /**
+   * Returns a number that changes every time an annotation is registered.
+   *
+   * @return the version of the registered annotations
+   */
+  public int getAnnotationsVersion()
+  {
+    return mAnnotationsVersion;
+  }
+
   public void destroy()
   {
 
@@ -232,18 +467,49 @@ public abstract class WebApplication
 
   /**
    * Returns the default Jackson JSON mapper. This is used by the Snap!'s
-   * JsonView TODO: make this a factory method that can return any kind of json
-   * mapper
+   * JsonView and to read JSON request bodies. The mapper is created once and
+   * shared; override createJsonMapper() to configure it.
    *
    * @return the Jackson JSON mapper
    */
   public ObjectMapper getJsonMapper()
   {
-    ObjectMapper mapper = new ObjectMapper();
-
+    ObjectMapper mapper = mJsonMapper;
+    if (mapper == null)
+    {
+      mapper = createJsonMapper();
+      mJsonMapper = mapper;
+    }
     return mapper;
   }
 
+  /**
+   * Returns the shared reader for JSON request bodies. Controllers use it
+   * through the @Body argument annotation.
+   *
+   * @return the Jackson JSON reader
+   */
+  public ObjectReader getJsonReader()
+  {
+    ObjectReader reader = mJsonReader;
+    if (reader == null)
+    {
+      reader = getJsonMapper().reader();
+      mJsonReader = reader;
+    }
+    return reader;
+  }
+
+  /**
+   * Creates the JSON mapper returned by getJsonMapper(). Called once.
+   *
+   * @return a new Jackson JSON mapper
+   */
+  protected ObjectMapper createJsonMapper()
+  {
+    return new ObjectMapper();
+  }
+
   /**
    * Returns a resource bundle for this application
    *
@@ -287,6 +553,38 @@ public abstract class WebApplication
     mRequestContext.set(context);
   }
 
+  /**
+   * Wraps an executor so that its tasks run with the RequestContext of the
+   * thread that submits them. Use it to continue an asynchronous controller
+   * action on another thread.
+   *
+   * @param executor
+   *          The executor that runs the tasks
+   * @return An executor that sets the RequestContext around each task
+   */
+  public Executor withRequestContext(Executor executor)
+  {
+    return task -> {
+      RequestContext context = getRequestContext();
+      executor.execute(() -> {
+        RequestContext previous = getRequestContext();
+        if (context != null)
+          setRequestContext(context);
+        try
+        {
+          task.run();
+        }
+        finally
+        {
+          if (previous == null)
+            removeRequestContext();
+          else
+            setRequestContext(previous);
+        }
+      });
+    };
+  }
+
   /**
    * Removes the current RequestContext and frees resources. For internal use
    * only!
@@ -371,8 +669,18 @@ public abstract class WebApplication
   private RequestListener mRequestListener;
 
   private List<Authenticator> mAuthenticators;
+  private volatile Map<String, List<Authenticator>> mAuthenticatorsByScheme = new HashMap<>();
+  private volatile List<Authenticator> mAnySchemeAuthenticators = new ArrayList<>();
+  private CredentialCache mCredentialCache;
   private static Properties mWebAppProperties = null;
 
   private Map<Class<? extends Annotation>, AnnotationHandler> mControllerAnnotationHandlers;
+  private volatile int mAnnotationsVersion;
+  private volatile ObjectMapper mJsonMapper;
+  private volatile ObjectReader mJsonReader;
+  private Map<Class<?>, ParamConverter<?>> mConverters = new ConcurrentHashMap<>();
+  private UserCache mUserCache;
+  private final GrantRegistry mRoleRegistry = new GrantRegistry();
+  private final GrantRegistry mPermissionRegistry = new GrantRegistry();
 
 }
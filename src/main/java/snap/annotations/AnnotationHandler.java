@@ -21,4 +21,21 @@ public interface AnnotationHandler
    *          The current request context.
    */
   void execute(Object controller, Method method, Annotation annotation, RequestContext context);
+
+  /**
+   * Returns the handler to execute for one annotated route. Called once when
+   * the route resolves its annotation handlers. Override it to compute what
+   * the handler needs from the annotation up front. The default returns this
+   * handler.
+   *
+   * @param method
+   *          The controller method that's annotated
+   * @param annotation
+   *          The annotation on the controller class or method
+   * @return the handler for the annotation
+   */
+  default AnnotationHandler prepare(Method method, Annotation annotation)
+  {
+    return this;
+  }
 }
@@ -0,0 +1,29 @@
+package snap.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Binds a controller action argument to the JSON request body. The body is
+ * deserialized while it is read with the reader of
+ * WebApplication.getJsonReader(). A body that is not JSON fails the request
+ * with 415 Unsupported Media Type, one larger than 'snap.request.json.maxsize'
+ * with 413 Request Entity Too Large and invalid JSON with 400 Bad Request.
+ *
+ * @author Jaap Geurts
+ *
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface Body
+{
+  /**
+   * Whether the request fails with 400 Bad Request when there is no body.
+   * Otherwise the argument is null.
+   *
+   * @return true if required
+   */
+  boolean required() default false;
+}
@@ -9,8 +9,22 @@ import org.slf4j.LoggerFactory;
 import snap.AuthenticationException;
 import snap.WebApplication;
 import snap.http.Authenticator;
+import snap.http.CredentialCache;
 import snap.http.RequestContext;
 
+/**
+ * Requires an authenticated user. Whether an action needs it (@LoginRequired on
+ * the method, or on the controller without @IgnoreLoginRequired on the method)
+ * is decided once when the route builds its annotation handler chain.
+ *
+ * Requests without a logged in user are authenticated with the Authorization
+ * header by the authenticators registered for its scheme. Verified headers are
+ * remembered in the credential cache when it is enabled, no longer than the
+ * authenticator says the credentials are valid.
+ *
+ * @author Jaap Geurts
+ *
+ */
 public class LoginRequiredHandler implements AnnotationHandler
 {
   final Logger log = LoggerFactory.getLogger(LoginRequiredHandler.class);
@@ -19,33 +33,45 @@ public class LoginRequiredHandler implements AnnotationHandler
   public void execute(Object controller, Method method, Annotation annotation,
       RequestContext context)
   {
-    
-    if ((!controller.getClass().isAnnotationPresent(LoginRequired.class)
-        || method.isAnnotationPresent(IgnoreLoginRequired.class))
-        && !method.isAnnotationPresent(LoginRequired.class))
-      return;
-
     if (context.getAuthenticatedUser() == null)
     {
       boolean isAuthenticated = false;
       String authHeader = context.getHeader("Authorization");
       if (authHeader != null)
       {
-        boolean authMethodMatched = false;
-        // attempt authenticate via a registered authenticator
-        for (Authenticator authenticator : WebApplication.getInstance().getAuthenticators())
+        WebApplication application = WebApplication.getInstance();
+        CredentialCache cache = application.getCredentialCache();
+        Long userid = cache != null ? cache.get(authHeader) : null;
+        if (userid != null)
+        {
+          // verified recently
+          context.setAuthenticatedUser(userid);
+          isAuthenticated = true;
+        }
+        else
         {
-          if (authenticator.matchAuthenticationHeader(authHeader))
+          boolean authMethodMatched = false;
+          // attempt authenticate via a registered authenticator
+          for (Authenticator authenticator : application.getAuthenticators(authHeader))
           {
-            authMethodMatched = true;
-            isAuthenticated = authenticator.authenticate(context, authHeader);
-            if (isAuthenticated)
-              break;
+            if (authenticator.matchAuthenticationHeader(authHeader))
+            {
+              authMethodMatched = true;
+              isAuthenticated = authenticator.authenticate(context, authHeader);
+              if (isAuthenticated)
+              {
+                // trusted no longer than the credentials are valid
+                if (cache != null)
+                  cache.put(authHeader, context.getAuthenticatedUserId(),
+                      authenticator.getCredentialExpiry(context, authHeader));
+                break;
+              }
+            }
           }
-        }
 
-        if (!authMethodMatched)
-          log.info("No suitable authenticator for authentication method: " + authHeader);
+          if (!authMethodMatched)
+            log.info("No suitable authenticator for authentication method: " + authHeader);
+        }
       }
       else
       {
@@ -3,15 +3,44 @@ package snap.annotations;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.BitSet;
 
 import snap.AuthenticationException;
 import snap.AuthorizationException;
 import snap.User;
+import snap.WebApplication;
 import snap.http.RequestContext;
 
+/**
+ * Requires the authenticated user to have at least one of the permissions of
+ * the @PermissionRequired annotation. Users that return their permission bits
+ * from User.getPermissionBits() are checked against the bits of the required
+ * permissions, which are computed once per route. Other users are checked with
+ * hasPermission().
+ *
+ * @author Jaap Geurts
+ *
+ */
 public class PermissionRequiredHandler implements AnnotationHandler
 {
 
+  public PermissionRequiredHandler()
+  {
+    mRequired = null;
+  }
+
+  private PermissionRequiredHandler(BitSet required)
+  {
+    mRequired = required;
+  }
+
+  @Override
+  public AnnotationHandler prepare(Method method, Annotation annotation)
+  {
+    String[] rights = ((PermissionRequired)annotation).permissions();
+    return new PermissionRequiredHandler(WebApplication.getInstance().getPermissionRegistry().bitsOf(rights));
+  }
+
   @Override
   public void execute(Object controller, Method method, Annotation annotation, RequestContext context)
   {
@@ -21,10 +50,23 @@ public class PermissionRequiredHandler implements AnnotationHandler
           "Not allowed to access URL: " + context.getRequest().getPathInfo() + ". User not Authenticated");
 
     String[] rights = ((PermissionRequired)annotation).permissions();
-    boolean hasRight = Arrays.stream(rights).anyMatch(permission -> user.hasPermission(permission));
+    BitSet granted = user.getPermissionBits();
+    boolean hasRight;
+    if (granted != null)
+    {
+      BitSet required = mRequired;
+      if (required == null)
+        required = WebApplication.getInstance().getPermissionRegistry().bitsOf(rights);
+      hasRight = granted.intersects(required);
+    }
+    else
+      hasRight = Arrays.stream(rights).anyMatch(permission -> user.hasPermission(permission));
+
     if (!hasRight)
       throw new AuthorizationException(
           "Not allowed to access URL: " + context.getRequest().getPathInfo() + ". User not Authorized");
   }
 
+  // the bits of the required permissions. null when not prepared for a route
+  private final BitSet mRequired;
 }
@@ -3,15 +3,43 @@ package snap.annotations;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.BitSet;
 
 import snap.AuthenticationException;
 import snap.AuthorizationException;
 import snap.User;
+import snap.WebApplication;
 import snap.http.RequestContext;
 
+/**
+ * Requires the authenticated user to have at least one of the roles of
+ * the @RoleRequired annotation. Users that return their role bits from
+ * User.getRoleBits() are checked against the bits of the required roles, which
+ * are computed once per route. Other users are checked with hasRole().
+ *
+ * @author Jaap Geurts
+ *
+ */
 public class RoleRequiredHandler implements AnnotationHandler
 {
 
+  public RoleRequiredHandler()
+  {
+    mRequired = null;
+  }
+
+  private RoleRequiredHandler(BitSet required)
+  {
+    mRequired = required;
+  }
+
+  @Override
+  public AnnotationHandler prepare(Method method, Annotation annotation)
+  {
+    String[] roles = ((RoleRequired)annotation).roles();
+    return new RoleRequiredHandler(WebApplication.getInstance().getRoleRegistry().bitsOf(roles));
+  }
+
   @Override
   public void execute(Object controller, Method method, Annotation annotation, RequestContext context)
   {
@@ -21,11 +49,23 @@ public class RoleRequiredHandler implements AnnotationHandler
           "Not allowed to access URL: " + context.getRequest().getPathInfo() + ". User not Authenticated");
 
     String[] roles = ((RoleRequired)annotation).roles();
-    boolean hasRole = Arrays.stream(roles).anyMatch(role -> user.hasRole(role));
+    BitSet granted = user.getRoleBits();
+    boolean hasRole;
+    if (granted != null)
+    {
+      BitSet required = mRequired;
+      if (required == null)
+        required = WebApplication.getInstance().getRoleRegistry().bitsOf(roles);
+      hasRole = granted.intersects(required);
+    }
+    else
+      hasRole = Arrays.stream(roles).anyMatch(role -> user.hasRole(role));
 
     if (!hasRole)
       throw new AuthorizationException(
           "Not allowed to access URL: " + context.getRequest().getPathInfo() + ". User not Authorized");
   }
 
+  // the bits of the required roles. null when not prepared for a route
+  private final BitSet mRequired;
 }
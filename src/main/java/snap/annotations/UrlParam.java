@@ -0,0 +1,36 @@
+package snap.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Binds a controller action argument to a named group in the url regex of the
+ * route. Arguments without annotation are bound this way too. The value is
+ * converted to the type of the argument. When the value can't be converted the
+ * request fails with 400 Bad Request.
+ *
+ * @author Jaap Geurts
+ *
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface UrlParam
+{
+  /**
+   * The name of the group. Defaults to the name of the argument (requires compiling
+   * with -parameters)
+   *
+   * @return the name
+   */
+  String value() default "";
+
+  /**
+   * Whether the request fails with 400 Bad Request when the group is missing.
+   * Otherwise the argument is null. Primitive arguments are always required.
+   *
+   * @return true if required
+   */
+  boolean required() default false;
+}
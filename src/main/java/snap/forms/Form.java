@@ -1,6 +1,7 @@
 package snap.forms;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
@@ -27,11 +28,19 @@ import javax.validation.ValidatorFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
 import snap.Helpers;
+import snap.ParameterBindingException;
 import snap.Settings;
 import snap.SnapException;
+import snap.WebApplication;
 import snap.forms.internal.FileField;
 import snap.forms.internal.FormFieldBase;
+import snap.http.JsonBody;
 import snap.http.RequestContext;
 
 /**
@@ -112,6 +121,11 @@ public abstract class Form
 
     Map<String, Part> allParts = new HashMap<>();
     String contentType = mContext.getRequest().getContentType();
+    if (JsonBody.isJson(contentType))
+    {
+      assignJsonFieldValues();
+      return;
+    }
     if (contentType != null)
     {
       contentType = contentType.split(";")[0];
@@ -183,6 +197,98 @@ public abstract class Form
     }
   }
 
+  /**
+   * Populates this form from a JSON object body. Values are assigned while the
+   * body is parsed. Members of nested objects are assigned to the fields of
+   * nested forms ("address": {"city": ..} to the field address.city). Arrays
+   * are assigned as multiple values. null is treated as not submitted.
+   */
+  private void assignJsonFieldValues()
+  {
+    Set<String> assigned = new HashSet<>();
+    Set<String> remaining = new HashSet<>();
+    try
+    {
+      InputStream in = JsonBody.open(mContext);
+      if (in != null)
+      {
+        JsonFactory factory = WebApplication.getInstance().getJsonMapper().getFactory();
+        try (JsonParser parser = factory.createParser(in))
+        {
+          if (parser.nextToken() != JsonToken.START_OBJECT)
+            throw new ParameterBindingException("Expected a JSON object in the request body");
+          assignJsonObject(parser, "", assigned, remaining);
+        }
+      }
+    }
+    catch (JsonProcessingException e)
+    {
+      throw JsonBody.invalidBody(e);
+    }
+    catch (IOException e)
+    {
+      throw new SnapException("Can't read the request body", e);
+    }
+
+    for (String varName : mFieldMap.keySet())
+    {
+      if (!assigned.contains(varName))
+        log.info("No variable value submitted for field: " + varName);
+    }
+    if (!remaining.isEmpty())
+    {
+      String fieldsRemaining = remaining.stream().collect(Collectors.joining(","));
+      log.warn("More variables submitted than expected\n  These variables were submitted but not found in the form: "
+          + fieldsRemaining);
+    }
+  }
+
+  private void assignJsonObject(JsonParser parser, String prefix, Set<String> assigned, Set<String> remaining)
+      throws IOException
+  {
+    while (parser.nextToken() == JsonToken.FIELD_NAME)
+    {
+      String varName = prefix + parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if (token == JsonToken.START_OBJECT)
+      {
+        assignJsonObject(parser, varName + ".", assigned, remaining);
+        continue;
+      }
+      if (token == JsonToken.VALUE_NULL)
+        continue;
+
+      FormField field = mFieldMap.get(varName);
+      if (field == null || field instanceof FileField)
+      {
+        remaining.add(varName);
+        parser.skipChildren();
+        continue;
+      }
+
+      String[] values;
+      if (token == JsonToken.START_ARRAY)
+      {
+        List<String> list = new ArrayList<>();
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY)
+        {
+          if (token.isScalarValue() && token != JsonToken.VALUE_NULL)
+            list.add(parser.getText());
+          else
+            parser.skipChildren();
+        }
+        values = list.toArray(new String[list.size()]);
+        if (values.length == 0)
+          continue;
+      }
+      else
+        values = new String[] { parser.getText() };
+
+      ((FormFieldBase)field).setFieldValue(values);
+      assigned.add(varName);
+    }
+  }
+
   /**
    * Called when an error occured when assigning a value to a field. Most
    * usually these are type conversion errors
@@ -0,0 +1,100 @@
+package snap.http;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import snap.Settings;
+import snap.SnapException;
+
+/**
+ * The result of a route that completes later. The Dispatcher finishes the
+ * response when the stage completes.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class AsyncResult implements RequestResult
+{
+  public AsyncResult(CompletionStage<? extends RequestResult> stage)
+  {
+    mStage = stage;
+  }
+
+  public CompletionStage<? extends RequestResult> getStage()
+  {
+    return mStage;
+  }
+
+  /**
+   * Waits for the stage to complete, at most snap.async.timeout milliseconds.
+   *
+   * @return the result of the stage
+   * @throws TimeoutException
+   *           when the stage didn't complete in time
+   * @throws Throwable
+   *           the exception the stage completed with
+   */
+  public RequestResult await() throws Throwable
+  {
+    try
+    {
+      if (Settings.asyncTimeout <= 0)
+        return mStage.toCompletableFuture().get();
+      return mStage.toCompletableFuture().get(Settings.asyncTimeout, TimeUnit.MILLISECONDS);
+    }
+    catch (ExecutionException e)
+    {
+      throw unwrap(e);
+    }
+  }
+
+  /**
+   * Renders the result after waiting for it. Only used when the result can't
+   * be handled asynchronously.
+   */
+  @Override
+  public void handleResult(RequestContext context) throws IOException
+  {
+    RequestResult result;
+    try
+    {
+      result = await();
+    }
+    catch (TimeoutException e)
+    {
+      // the same answer as a timeout of an asynchronous request
+      result = new HttpError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Request timed out");
+    }
+    catch (IOException | RuntimeException | Error e)
+    {
+      throw e;
+    }
+    catch (Throwable t)
+    {
+      throw new SnapException("Asynchronous request failed", t);
+    }
+    result.handleResult(context);
+  }
+
+  /**
+   * Returns the exception a stage failed with.
+   *
+   * @param t
+   *          the exception as passed to a completion callback
+   * @return the cause when t is a CompletionException or ExecutionException
+   */
+  public static Throwable unwrap(Throwable t)
+  {
+    while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null)
+      t = t.getCause();
+    return t;
+  }
+
+  private final CompletionStage<? extends RequestResult> mStage;
+}
@@ -14,6 +14,19 @@ public interface Authenticator
    */
   boolean matchAuthenticationHeader(String header);
 
+  /**
+   * Returns the authentication scheme this authenticator handles, ie. "Basic"
+   * or "Bearer". Authenticators are looked up by the scheme of the
+   * Authorization header. Return null (the default) to be asked for every
+   * scheme.
+   *
+   * @return the scheme or null
+   */
+  default String getScheme()
+  {
+    return null;
+  }
+
   /**
    * Returns the string to be included in the authentication header
    *
@@ -31,4 +44,23 @@ public interface Authenticator
    * @return true when successful false otherwise
    */
   boolean authenticate(RequestContext context, String header);
+
+  /**
+   * Returns until when the header that was just authenticated may be trusted
+   * without calling authenticate() again. The credential cache keeps the
+   * header no longer than this and its own time to live. Override it when the
+   * credentials expire by themselves, like a token with an expiry time. The
+   * default has no limit other than the time to live of the cache.
+   *
+   * @param context
+   *          the request context
+   * @param header
+   *          The header as sent by the client.
+   * @return the time in milliseconds since the epoch, Long.MAX_VALUE for no
+   *         limit or 0 to not cache the header
+   */
+  default long getCredentialExpiry(RequestContext context, String header)
+  {
+    return Long.MAX_VALUE;
+  }
 }
@@ -18,6 +18,12 @@ public abstract class BasicAuthenticator implements Authenticator
     return header.startsWith("Basic");
   }
 
+  @Override
+  public String getScheme()
+  {
+    return "Basic";
+  }
+
   @Override
   public String getWWWAuthenticateHeader()
   {
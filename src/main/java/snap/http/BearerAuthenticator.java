@@ -13,6 +13,12 @@ public abstract class BearerAuthenticator implements Authenticator
     return header.startsWith("Bearer");
   }
 
+  @Override
+  public String getScheme()
+  {
+    return "Bearer";
+  }
+
   @Override
   public String getWWWAuthenticateHeader()
   {
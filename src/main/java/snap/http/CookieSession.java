@@ -0,0 +1,350 @@
+package snap.http;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import snap.Router;
+import snap.Settings;
+import snap.SnapException;
+
+/**
+ * Framework session state (authenticated user, CSRF token, language) kept in
+ * an encrypted cookie instead of the HttpSession. Used when snap.properties
+ * has 'snap.session.mode = cookie'. The servers don't share any session
+ * store, so any node can serve any request.
+ *
+ * The cookie is encrypted and authenticated with AES-GCM. Configure the keys
+ * as a comma separated list of base64 encoded 16 or 32 byte keys:
+ *
+ * <pre>
+ * snap.session.mode = cookie
+ * snap.session.cookie.keys = &lt;new key&gt;,&lt;previous key&gt;
+ * snap.session.cookie.name = snap_session  (default)
+ * snap.session.cookie.maxage = 86400       (seconds, default)
+ * </pre>
+ *
+ * The first key encrypts, all keys decrypt. To rotate, put a new key in front
+ * and remove the oldest key once the max age has passed. A cookie that was
+ * encrypted with an older key is written again with the first key. The
+ * cookie is only written when the state changed or when more than half of the
+ * max age has passed since it was issued. It then gets a new issue time, so
+ * the session of an active client doesn't expire, while a cookie that isn't
+ * used expires after the max age even if the client keeps it.
+ *
+ * The session lives in the cookie only, so the server can't revoke it.
+ * invalidate() removes the cookie from the client that sent the request, but a
+ * copy of the cookie that was captured earlier stays valid until it is older
+ * than the max age. Keep the max age short when that matters. The only way to
+ * invalidate all issued cookies at once is to rotate the keys: remove every
+ * key that encrypted them.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class CookieSession
+{
+  final static Logger log = LoggerFactory.getLogger(CookieSession.class);
+
+  private static final String ISSUED = "_iat";
+  private static final int IV_LENGTH = 12;
+  private static final int TAG_LENGTH = 128;
+
+  private static final List<SecretKeySpec> mKeys = loadKeys();
+  private static final String mCookieName = Settings.get("snap.session.cookie.name", "snap_session");
+  private static final int mMaxAge = Integer.parseInt(Settings.get("snap.session.cookie.maxage", "86400").trim());
+  private static final SecureRandom mRandom = new SecureRandom();
+
+  private CookieSession(Map<String, String> attributes, boolean dirty)
+  {
+    mAttributes = attributes;
+    mDirty = dirty;
+  }
+
+  /**
+   * Reads the session from the cookie of a request.
+   *
+   * @param context
+   *          The request context
+   * @return the session. Empty when there is no valid cookie
+   */
+  static CookieSession read(RequestContext context)
+  {
+    Cookie cookie = context.getCookie(mCookieName);
+    if (cookie == null || cookie.getValue() == null || cookie.getValue().isEmpty())
+      return new CookieSession(new LinkedHashMap<>(), false);
+
+    byte[] data;
+    try
+    {
+      data = Base64.getUrlDecoder().decode(cookie.getValue());
+    }
+    catch (IllegalArgumentException e)
+    {
+      log.debug("Session cookie is not valid base64");
+      return new CookieSession(new LinkedHashMap<>(), true);
+    }
+
+    for (int i = 0; i < mKeys.size(); i++)
+    {
+      String payload = decrypt(mKeys.get(i), data);
+      if (payload == null)
+        continue;
+
+      Map<String, String> attributes = parse(payload);
+      long age = System.currentTimeMillis() / 1000 - parseLong(attributes.remove(ISSUED));
+      if (mMaxAge >= 0 && age > mMaxAge)
+      {
+        log.debug("Session cookie expired");
+        return new CookieSession(new LinkedHashMap<>(), true);
+      }
+      // written with an older key, or half of its lifetime passed: write it
+      // again with the current key and a new issue time
+      return new CookieSession(attributes, i > 0 || mMaxAge > 0 && age > mMaxAge / 2);
+    }
+    log.debug("Session cookie can't be decrypted with any key");
+    return new CookieSession(new LinkedHashMap<>(), true);
+  }
+
+  /**
+   * Get an attribute
+   *
+   * @param name
+   *          The name of the attribute
+   * @return the value or null
+   */
+  public String getAttribute(String name)
+  {
+    return mAttributes.get(name);
+  }
+
+  /**
+   * Set an attribute. Values are kept as strings.
+   *
+   * @param name
+   *          The name of the attribute
+   * @param value
+   *          The value. null removes the attribute
+   */
+  public void setAttribute(String name, Object value)
+  {
+    if (value == null)
+    {
+      removeAttribute(name);
+      return;
+    }
+    String s = value.toString();
+    if (!s.equals(mAttributes.put(name, s)))
+      mDirty = true;
+  }
+
+  /**
+   * Remove an attribute
+   *
+   * @param name
+   *          The name of the attribute
+   */
+  public void removeAttribute(String name)
+  {
+    if (mAttributes.remove(name) != null)
+      mDirty = true;
+  }
+
+  /**
+   * Remove all attributes. The cookie is removed from the client.
+   */
+  public void invalidate()
+  {
+    if (!mAttributes.isEmpty())
+      mDirty = true;
+    mAttributes.clear();
+  }
+
+  /**
+   * Returns true when the session changed since it was read or saved
+   *
+   * @return whether the cookie must be written
+   */
+  public boolean isDirty()
+  {
+    return mDirty;
+  }
+
+  /**
+   * Write the cookie if the session changed. Must be called before the
+   * response is committed.
+   *
+   * @param response
+   *          The response to add the cookie to
+   */
+  void save(HttpServletResponse response)
+  {
+    if (!mDirty)
+      return;
+
+    if (response.isCommitted())
+    {
+      log.warn("Session changed after the response was committed. The change is lost");
+      return;
+    }
+
+    Cookie cookie;
+    if (mAttributes.isEmpty())
+    {
+      cookie = new Cookie(mCookieName, "");
+      cookie.setMaxAge(0);
+    }
+    else
+    {
+      StringBuilder payload = new StringBuilder();
+      payload.append(ISSUED).append('=').append(System.currentTimeMillis() / 1000);
+      for (Map.Entry<String, String> entry : mAttributes.entrySet())
+        payload.append('&').append(encode(entry.getKey())).append('=').append(encode(entry.getValue()));
+
+      cookie = new Cookie(mCookieName, Base64.getUrlEncoder().withoutPadding()
+          .encodeToString(encrypt(mKeys.get(0), payload.toString())));
+      cookie.setMaxAge(mMaxAge);
+    }
+    cookie.setPath("/");
+    cookie.setHttpOnly(true);
+    URI site = Router.getInstance().siteUri();
+    cookie.setSecure("https".equals(site.getScheme()));
+    String domain = Settings.get("snap.session.cookie.domain", site.getHost());
+    if (!"localhost".equals(domain) && !".localhost".equals(domain))
+      cookie.setDomain(domain);
+    response.addCookie(cookie);
+    mDirty = false;
+  }
+
+  private static byte[] encrypt(SecretKeySpec key, String payload)
+  {
+    try
+    {
+      byte[] iv = new byte[IV_LENGTH];
+      mRandom.nextBytes(iv);
+      Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+      byte[] encrypted = cipher.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+      return ByteBuffer.allocate(iv.length + encrypted.length).put(iv).put(encrypted).array();
+    }
+    catch (GeneralSecurityException e)
+    {
+      throw new SnapException("Can't encrypt the session cookie", e);
+    }
+  }
+
+  private static String decrypt(SecretKeySpec key, byte[] data)
+  {
+    if (data.length <= IV_LENGTH)
+      return null;
+    try
+    {
+      Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, data, 0, IV_LENGTH));
+      return new String(cipher.doFinal(data, IV_LENGTH, data.length - IV_LENGTH), StandardCharsets.UTF_8);
+    }
+    catch (GeneralSecurityException e)
+    {
+      // tampered or encrypted with another key
+      return null;
+    }
+  }
+
+  private static Map<String, String> parse(String payload)
+  {
+    Map<String, String> attributes = new LinkedHashMap<>();
+    for (String pair : payload.split("&"))
+    {
+      int eq = pair.indexOf('=');
+      if (eq > 0)
+        attributes.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+    }
+    return attributes;
+  }
+
+  private static long parseLong(String s)
+  {
+    try
+    {
+      return s != null ? Long.parseLong(s) : 0;
+    }
+    catch (NumberFormatException e)
+    {
+      return 0;
+    }
+  }
+
+  private static String encode(String s)
+  {
+    try
+    {
+      return URLEncoder.encode(s, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new SnapException("JVM Doesn't support UTF8", e);
+    }
+  }
+
+  private static String decode(String s)
+  {
+    try
+    {
+      return URLDecoder.decode(s, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new SnapException("JVM Doesn't support UTF8", e);
+    }
+  }
+
+  private static List<SecretKeySpec> loadKeys()
+  {
+    List<SecretKeySpec> keys = new ArrayList<>();
+    String setting = Settings.get("snap.session.cookie.keys");
+    if (setting != null)
+    {
+      for (String key : setting.split(","))
+      {
+        if (key.trim().isEmpty())
+          continue;
+        byte[] bytes = Base64.getDecoder().decode(key.trim());
+        if (bytes.length != 16 && bytes.length != 32)
+          throw new SnapException("Session cookie keys must be 16 or 32 bytes. Found: " + bytes.length);
+        keys.add(new SecretKeySpec(bytes, "AES"));
+      }
+    }
+    if (keys.isEmpty())
+    {
+      log.warn("'snap.session.cookie.keys' not set. Using a random key: sessions won't survive a restart "
+          + "and can't be shared between servers");
+      byte[] bytes = new byte[32];
+      new SecureRandom().nextBytes(bytes);
+      keys.add(new SecretKeySpec(bytes, "AES"));
+    }
+    return Collections.unmodifiableList(keys);
+  }
+
+  private final Map<String, String> mAttributes;
+  private boolean mDirty;
+}
@@ -0,0 +1,281 @@
+package snap.http;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import snap.BoundedCache;
+import snap.Settings.EvictionPolicy;
+import snap.SnapException;
+
+/**
+ * Remembers Authorization headers that were verified successfully, so a client
+ * that sends the same credentials again is not verified again until the entry
+ * expires. The headers themselves are not stored: entries are keyed by an HMAC
+ * of the header with a random key that only lives in memory.
+ *
+ * Configure it in snap.properties with:
+ *
+ * <pre>
+ * snap.auth.cache.size = 1000  (0 disables the cache, the default)
+ * snap.auth.cache.ttl = 30000  (milliseconds)
+ * </pre>
+ *
+ * An entry never outlives the credentials: authenticators of credentials that
+ * expire by themselves, like a JWT, cap its lifetime with
+ * Authenticator.getCredentialExpiry().
+ *
+ * Revoke the credentials of a user when the password changes or a token is
+ * withdrawn. See WebApplication.revokeCredentials().
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class CredentialCache
+{
+  private static final String HMAC = "HmacSHA256";
+
+  private static class Entry
+  {
+    Entry(Long userid, long created, long expires)
+    {
+      this.userid = userid;
+      this.created = created;
+      this.expires = expires;
+    }
+
+    final Long userid;
+    final long created;
+    final long expires;
+  }
+
+  /**
+   * Construct a cache
+   *
+   * @param maxSize
+   *          The maximum number of credentials
+   * @param ttl
+   *          How long verified credentials are trusted in milliseconds
+   */
+  public CredentialCache(int maxSize, long ttl)
+  {
+    if (ttl < 1)
+      throw new IllegalArgumentException("Time to live must be at least 1 ms");
+    mCache = new BoundedCache<>(maxSize, EvictionPolicy.LRU);
+    mTtl = TimeUnit.MILLISECONDS.toNanos(ttl);
+
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    mKey = new SecretKeySpec(key, HMAC);
+  }
+
+  /**
+   * Returns the user that the header was verified for.
+   *
+   * @param header
+   *          The Authorization header
+   * @return the user id or null if the header is not in the cache, expired or
+   *         revoked
+   */
+  public Long get(String header)
+  {
+    String key = keyOf(header);
+    Entry entry = mCache.get(key);
+    if (entry == null)
+      return null;
+
+    long now = System.nanoTime();
+    if (now - entry.expires >= 0)
+    {
+      mCache.remove(key);
+      mExpirations.increment();
+      return null;
+    }
+    Long revoked = mRevoked.get(entry.userid);
+    if (revoked != null && entry.created - revoked <= 0)
+    {
+      mCache.remove(key);
+      return null;
+    }
+    return entry.userid;
+  }
+
+  /**
+   * Remember that the header was verified for a user.
+   *
+   * @param header
+   *          The Authorization header
+   * @param userid
+   *          The authenticated user
+   */
+  public void put(String header, Long userid)
+  {
+    put(header, userid, Long.MAX_VALUE);
+  }
+
+  /**
+   * Remember that the header was verified for a user until the credentials
+   * expire or the time to live passed, whichever comes first.
+   *
+   * @param header
+   *          The Authorization header
+   * @param userid
+   *          The authenticated user
+   * @param expiresAt
+   *          When the credentials expire in milliseconds since the epoch.
+   *          Long.MAX_VALUE when they don't expire. See
+   *          Authenticator.getCredentialExpiry()
+   */
+  public void put(String header, Long userid, long expiresAt)
+  {
+    if (userid == null)
+      return;
+
+    long lifetime = mTtl;
+    if (expiresAt != Long.MAX_VALUE)
+    {
+      long left = expiresAt - System.currentTimeMillis();
+      if (left <= 0)
+        return;
+      lifetime = Math.min(lifetime, TimeUnit.MILLISECONDS.toNanos(left));
+    }
+    long now = System.nanoTime();
+    mCache.put(keyOf(header), new Entry(userid, now, now + lifetime));
+  }
+
+  /**
+   * Forget a header. It will be verified again when it is sent.
+   *
+   * @param header
+   *          The Authorization header
+   */
+  public void revoke(String header)
+  {
+    if (mCache.remove(keyOf(header)) != null)
+      mRevocations.increment();
+  }
+
+  /**
+   * Forget all headers that were verified for a user until now.
+   *
+   * @param userid
+   *          The user
+   */
+  public void revokeUser(Long userid)
+  {
+    long now = System.nanoTime();
+    // revocations older than the time to live don't match any entry anymore
+    mRevoked.values().removeIf(revoked -> now - revoked >= mTtl);
+    mRevoked.put(userid, now);
+    mRevocations.increment();
+  }
+
+  /**
+   * Forget all headers.
+   */
+  public void revokeAll()
+  {
+    mCache.clear();
+    mRevocations.increment();
+  }
+
+  private String keyOf(String header)
+  {
+    try
+    {
+      Mac mac = Mac.getInstance(HMAC);
+      mac.init(mKey);
+      return Base64.getEncoder().encodeToString(mac.doFinal(header.getBytes(StandardCharsets.UTF_8)));
+    }
+    catch (GeneralSecurityException e)
+    {
+      throw new SnapException("Can't hash credentials", e);
+    }
+  }
+
+  /**
+   * Returns the number of headers that were found in the cache.
+   *
+   * @return the count
+   */
+  public long getHits()
+  {
+    return mCache.getHits();
+  }
+
+  /**
+   * Returns the number of headers that were not found in the cache.
+   *
+   * @return the count
+   */
+  public long getMisses()
+  {
+    return mCache.getMisses();
+  }
+
+  /**
+   * Returns the number of entries removed to keep the cache within its size.
+   *
+   * @return the count
+   */
+  public long getEvictions()
+  {
+    return mCache.getEvictions();
+  }
+
+  /**
+   * Returns the number of headers that were found expired.
+   *
+   * @return the count
+   */
+  public long getExpirations()
+  {
+    return mExpirations.sum();
+  }
+
+  /**
+   * Returns the number of revocations.
+   *
+   * @return the count
+   */
+  public long getRevocations()
+  {
+    return mRevocations.sum();
+  }
+
+  /**
+   * Returns the number of entries in the cache.
+   *
+   * @return the count
+   */
+  public int size()
+  {
+    return mCache.size();
+  }
+
+  @Override
+  public String toString()
+  {
+    return getClass().getSimpleName() + " size: " + size() + "/" + mCache.getMaxSize() + ", hits: "
+        + getHits() + ", misses: " + getMisses() + ", evictions: " + getEvictions() + ", expirations: "
+        + getExpirations() + ", revocations: " + getRevocations();
+  }
+
+  private final BoundedCache<String, Entry> mCache;
+  // in nanoseconds
+  private final long mTtl;
+  private final SecretKeySpec mKey;
+  // time of the last revocation by user id
+  private final Map<Long, Long> mRevoked = new ConcurrentHashMap<>();
+
+  private final LongAdder mExpirations = new LongAdder();
+  private final LongAdder mRevocations = new LongAdder();
+}
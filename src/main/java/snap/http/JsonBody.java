@@ -0,0 +1,164 @@
+package snap.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import snap.ParameterBindingException;
+import snap.RequestEntityTooLargeException;
+import snap.Settings;
+import snap.SnapException;
+import snap.UnsupportedMediaTypeException;
+
+/**
+ * Opens the JSON body of a request for streaming. The content type and the
+ * declared length are checked before anything is read. The body is never
+ * buffered; a body sent without a length (chunked) is cut off when it exceeds
+ * the limit.
+ *
+ * The limit is set in snap.properties with 'snap.request.json.maxsize' (bytes,
+ * default 1 MB).
+ *
+ * @author Jaap Geurts
+ *
+ */
+public final class JsonBody
+{
+  private JsonBody()
+  {
+  }
+
+  /**
+   * Returns true if the content type is JSON (application/json or any
+   * application/*+json type).
+   *
+   * @param contentType
+   *          The content type of the request. May be null
+   * @return true if JSON
+   */
+  public static boolean isJson(String contentType)
+  {
+    if (contentType == null)
+      return false;
+    int end = contentType.indexOf(';');
+    String type = (end < 0 ? contentType : contentType.substring(0, end)).trim().toLowerCase();
+    return "application/json".equals(type) || (type.startsWith("application/") && type.endsWith("+json"));
+  }
+
+  /**
+   * Open the JSON body of the request.
+   *
+   * @param context
+   *          The request context
+   * @return A stream of the body or null when the request has no body
+   * @throws UnsupportedMediaTypeException
+   *           when the request has a body that is not JSON
+   * @throws RequestEntityTooLargeException
+   *           when the declared length is over the limit. When the body has no
+   *           declared length reading throws this exception when it passes the
+   *           limit
+   * @throws IOException
+   *           when the body can't be read
+   */
+  public static InputStream open(RequestContext context) throws IOException
+  {
+    long maxSize = Settings.jsonMaxSize;
+    long length = context.getRequest().getContentLengthLong();
+    if (length == 0)
+      return null;
+
+    String contentType = context.getRequest().getContentType();
+    if (!isJson(contentType))
+    {
+      // no body and no content type
+      if (length < 0 && contentType == null)
+        return null;
+      throw new UnsupportedMediaTypeException("Expected a JSON request body. Found: " + contentType);
+    }
+
+    if (length > maxSize)
+      throw new RequestEntityTooLargeException(
+          "Request body of " + length + " bytes is larger than the maximum of " + maxSize);
+
+    PushbackInputStream in = new PushbackInputStream(context.getRequest().getInputStream());
+    int first = in.read();
+    if (first < 0)
+      return null;
+    in.unread(first);
+    return new LimitedInputStream(in, maxSize);
+  }
+
+  /**
+   * Returns the exception to report a body that failed to parse. Jackson wraps
+   * the exception thrown when a body passes the limit while it is read.
+   *
+   * @param e
+   *          The parse exception
+   * @return the exception to throw
+   */
+  public static SnapException invalidBody(JsonProcessingException e)
+  {
+    for (Throwable t = e; t != null; t = t.getCause())
+    {
+      if (t instanceof RequestEntityTooLargeException)
+        return (RequestEntityTooLargeException)t;
+    }
+    return new ParameterBindingException("Invalid JSON request body: " + e.getOriginalMessage(), e);
+  }
+
+  /**
+   * Counts the bytes read and fails when the limit is passed.
+   */
+  private static class LimitedInputStream extends FilterInputStream
+  {
+    LimitedInputStream(InputStream in, long limit)
+    {
+      super(in);
+      mRemaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      int b = super.read();
+      if (b >= 0)
+        count(1);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      int n = super.read(b, off, len);
+      if (n > 0)
+        count(n);
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+      long skipped = super.skip(n);
+      count(skipped);
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+      return false;
+    }
+
+    private void count(long n)
+    {
+      mRemaining -= n;
+      if (mRemaining < 0)
+        throw new RequestEntityTooLargeException("Request body is larger than the maximum allowed");
+    }
+
+    private long mRemaining;
+  }
+}
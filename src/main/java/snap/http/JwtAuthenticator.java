@@ -0,0 +1,575 @@
+package snap.http;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import snap.BoundedCache;
+import snap.Settings.EvictionPolicy;
+
+/**
+ * Authenticates Bearer tokens that are signed JWTs (JWS compact form) without
+ * asking the application. The signature is verified with a key from a local
+ * JWKS file and the user id is taken from a claim ('sub' by default).
+ *
+ * Supported algorithms are HS256, HS384, HS512 (JWK kty 'oct'), RS256, RS384,
+ * RS512 (kty 'RSA') and ES256, ES384, ES512 (kty 'EC'). Tokens with alg 'none'
+ * or an algorithm that doesn't fit the key are rejected. The key is chosen by
+ * the 'kid' header, or is the only key of the right type when the token has no
+ * kid.
+ *
+ * The JWKS file is read again when it changed, checked at most once per reload
+ * interval. Verified tokens are cached by signature until they expire, so a
+ * client that sends the same token again is not verified again. The 'exp' and
+ * 'nbf' claims are checked with an allowed clock skew. The credential cache
+ * keeps a token no longer than its 'exp'.
+ *
+ * <pre>
+ * JwtAuthenticator jwt = new JwtAuthenticator(Paths.get("/etc/myapp/jwks.json"));
+ * jwt.setIssuer("https://auth.example.com");
+ * jwt.setAudience("myapp");
+ * registerAuthenticator(jwt);
+ * </pre>
+ *
+ * Configure it before registering it. Override getUserId() to map the claims
+ * to a user id differently.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public class JwtAuthenticator extends BearerAuthenticator
+{
+  final static Logger log = LoggerFactory.getLogger(JwtAuthenticator.class);
+
+  private static class Jwk
+  {
+    Jwk(String id, String type, Key key)
+    {
+      this.id = id;
+      this.type = type;
+      this.key = key;
+    }
+
+    final String id;
+    final String type;
+    final Key key;
+  }
+
+  private static class Keys
+  {
+    Keys(List<Jwk> keys, long modified)
+    {
+      this.keys = keys;
+      this.modified = modified;
+    }
+
+    final List<Jwk> keys;
+    final long modified;
+  }
+
+  private static class Verified
+  {
+    Verified(String signingInput, Long userid, long expires)
+    {
+      this.signingInput = signingInput;
+      this.userid = userid;
+      this.expires = expires;
+    }
+
+    final String signingInput;
+    final Long userid;
+    // seconds since the epoch. Long.MAX_VALUE when the token doesn't expire
+    final long expires;
+  }
+
+  /**
+   * Construct the authenticator
+   *
+   * @param jwksFile
+   *          The JSON Web Key Set file with the keys to verify tokens with
+   * @throws IOException
+   *           When the file can't be read or contains no usable keys
+   */
+  public JwtAuthenticator(Path jwksFile) throws IOException
+  {
+    mJwksFile = jwksFile;
+    mKeys = loadKeys();
+    mNextCheck = System.nanoTime() + mReloadInterval;
+    mVerified = new BoundedCache<>(mCacheSize, EvictionPolicy.LRU);
+  }
+
+  /**
+   * Set the claim that holds the user id. Defaults to 'sub'
+   *
+   * @param claim
+   *          The name of the claim
+   */
+  public void setUserClaim(String claim)
+  {
+    mUserClaim = claim;
+  }
+
+  /**
+   * Require the 'iss' claim to have this value. Not checked by default.
+   *
+   * @param issuer
+   *          The issuer or null to not check it
+   */
+  public void setIssuer(String issuer)
+  {
+    mIssuer = issuer;
+  }
+
+  /**
+   * Require the 'aud' claim to contain this value. Not checked by default.
+   *
+   * @param audience
+   *          The audience or null to not check it
+   */
+  public void setAudience(String audience)
+  {
+    mAudience = audience;
+  }
+
+  /**
+   * Set the clock difference allowed when checking 'exp' and 'nbf'. Defaults
+   * to 60 seconds.
+   *
+   * @param seconds
+   *          The allowed skew in seconds
+   */
+  public void setClockSkew(long seconds)
+  {
+    mClockSkew = seconds;
+  }
+
+  /**
+   * Set how often the JWKS file is checked for changes. Defaults to 60
+   * seconds.
+   *
+   * @param milliseconds
+   *          The interval in milliseconds
+   */
+  public void setReloadInterval(long milliseconds)
+  {
+    mReloadInterval = TimeUnit.MILLISECONDS.toNanos(milliseconds);
+  }
+
+  /**
+   * Set the maximum number of verified tokens to remember. Defaults to 10000.
+   *
+   * @param size
+   *          The number of tokens
+   */
+  public void setCacheSize(int size)
+  {
+    mCacheSize = size;
+    mVerified = new BoundedCache<>(size, EvictionPolicy.LRU);
+  }
+
+  @Override
+  public Long authenticateUser(RequestContext context, String token)
+  {
+    checkReload();
+
+    int first = token.indexOf('.');
+    int last = token.lastIndexOf('.');
+    if (first < 0 || token.indexOf('.', first + 1) != last)
+    {
+      log.debug("Bearer token is not a JWT");
+      return null;
+    }
+    String signingInput = token.substring(0, last);
+    String signature = token.substring(last + 1);
+    long now = System.currentTimeMillis() / 1000;
+
+    Verified verified = mVerified.get(signature);
+    if (verified != null && verified.signingInput.equals(signingInput))
+    {
+      if (now - mClockSkew < verified.expires)
+        return verified.userid;
+      mVerified.remove(signature);
+      log.debug("JWT expired");
+      return null;
+    }
+
+    try
+    {
+      JsonNode header = mMapper.readTree(decode(token.substring(0, first)));
+      if (!verifySignature(header, signingInput, decode(signature)))
+        return null;
+
+      JsonNode claims = mMapper.readTree(decode(token.substring(first + 1, last)));
+      if (!checkClaims(claims, now))
+        return null;
+
+      Long userid = getUserId(claims);
+      if (userid == null)
+      {
+        log.debug("JWT has no user id in claim: " + mUserClaim);
+        return null;
+      }
+      long expires = claims.has("exp") ? claims.get("exp").asLong() : Long.MAX_VALUE;
+      mVerified.put(signature, new Verified(signingInput, userid, expires));
+      return userid;
+    }
+    catch (IOException | IllegalArgumentException e)
+    {
+      log.debug("Malformed JWT: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Returns when the token that was just authenticated expires, so the
+   * credential cache doesn't accept it after its 'exp' claim.
+   */
+  @Override
+  public long getCredentialExpiry(RequestContext context, String header)
+  {
+    String token = header.trim();
+    token = token.substring(token.indexOf(' ') + 1);
+    int last = token.lastIndexOf('.');
+    Verified verified = last < 0 ? null : mVerified.get(token.substring(last + 1));
+    // not remembered, so it can't be checked: don't cache it
+    if (verified == null || !verified.signingInput.equals(token.substring(0, last)))
+      return 0;
+    if (verified.expires == Long.MAX_VALUE)
+      return Long.MAX_VALUE;
+    return (verified.expires + mClockSkew) * 1000;
+  }
+
+  /**
+   * Returns the user id from the verified claims of a token. Returns the value
+   * of the user claim as a number.
+   *
+   * @param claims
+   *          The claims of the token
+   * @return the user id or null when the claims don't identify a user
+   */
+  protected Long getUserId(JsonNode claims)
+  {
+    JsonNode value = claims.get(mUserClaim);
+    if (value == null || value.isNull())
+      return null;
+    if (value.canConvertToLong())
+      return value.asLong();
+    try
+    {
+      return Long.valueOf(value.asText());
+    }
+    catch (NumberFormatException e)
+    {
+      return null;
+    }
+  }
+
+  private boolean checkClaims(JsonNode claims, long now)
+  {
+    if (claims.has("exp") && now - mClockSkew >= claims.get("exp").asLong())
+    {
+      log.debug("JWT expired");
+      return false;
+    }
+    if (claims.has("nbf") && now + mClockSkew < claims.get("nbf").asLong())
+    {
+      log.debug("JWT not valid yet");
+      return false;
+    }
+    if (mIssuer != null && !mIssuer.equals(claims.path("iss").asText(null)))
+    {
+      log.debug("JWT issuer not accepted");
+      return false;
+    }
+    if (mAudience != null)
+    {
+      JsonNode audience = claims.path("aud");
+      boolean found = false;
+      if (audience.isArray())
+      {
+        for (JsonNode a : audience)
+          found |= mAudience.equals(a.asText());
+      }
+      else
+        found = mAudience.equals(audience.asText(null));
+      if (!found)
+      {
+        log.debug("JWT audience not accepted");
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean verifySignature(JsonNode header, String signingInput, byte[] signature)
+  {
+    String alg = header.path("alg").asText("");
+    if (alg.length() != 5)
+    {
+      log.debug("JWT algorithm not supported: " + alg);
+      return false;
+    }
+    String type;
+    switch (alg.substring(0, 2))
+    {
+      case "HS":
+        type = "oct";
+        break;
+      case "RS":
+        type = "RSA";
+        break;
+      case "ES":
+        type = "EC";
+        break;
+      default:
+        log.debug("JWT algorithm not supported: " + alg);
+        return false;
+    }
+    String bits = alg.substring(2);
+    if (!bits.equals("256") && !bits.equals("384") && !bits.equals("512"))
+    {
+      log.debug("JWT algorithm not supported: " + alg);
+      return false;
+    }
+
+    Jwk jwk = findKey(header.path("kid").asText(null), type);
+    if (jwk == null)
+    {
+      log.debug("No key to verify JWT with. alg: " + alg + " kid: " + header.path("kid").asText(null));
+      return false;
+    }
+
+    byte[] input = signingInput.getBytes(StandardCharsets.US_ASCII);
+    try
+    {
+      switch (type)
+      {
+        case "oct":
+          Mac mac = Mac.getInstance("HmacSHA" + bits);
+          mac.init(jwk.key);
+          return MessageDigest.isEqual(mac.doFinal(input), signature);
+        case "RSA":
+          Signature rsa = Signature.getInstance("SHA" + bits + "withRSA");
+          rsa.initVerify((PublicKey)jwk.key);
+          rsa.update(input);
+          return rsa.verify(signature);
+        default:
+          Signature ec = Signature.getInstance("SHA" + bits + "withECDSA");
+          ec.initVerify((PublicKey)jwk.key);
+          ec.update(input);
+          return ec.verify(toDer(signature, ((ECPublicKey)jwk.key).getParams()));
+      }
+    }
+    catch (GeneralSecurityException e)
+    {
+      log.debug("JWT signature can't be verified: " + e.getMessage());
+      return false;
+    }
+  }
+
+  private Jwk findKey(String id, String type)
+  {
+    Jwk found = null;
+    for (Jwk jwk : mKeys.keys)
+    {
+      if (!jwk.type.equals(type))
+        continue;
+      if (id != null)
+      {
+        if (id.equals(jwk.id))
+          return jwk;
+      }
+      else
+      {
+        // without a kid the key must be unambiguous
+        if (found != null)
+          return null;
+        found = jwk;
+      }
+    }
+    return found;
+  }
+
+  private void checkReload()
+  {
+    long now = System.nanoTime();
+    if (now - mNextCheck < 0)
+      return;
+
+    // one request checks the file. The others don't wait for it and use the
+    // current keys. Not a monitor, so virtual threads aren't pinned by the I/O
+    if (!mReloadLock.tryLock())
+      return;
+    try
+    {
+      if (now - mNextCheck < 0)
+        return;
+      mNextCheck = now + mReloadInterval;
+      if (Files.getLastModifiedTime(mJwksFile).toMillis() != mKeys.modified)
+      {
+        mKeys = loadKeys();
+        // tokens signed with removed keys must be verified again
+        mVerified.clear();
+        log.info("Reloaded JWT keys from: " + mJwksFile);
+      }
+    }
+    catch (IOException e)
+    {
+      log.error("Can't reload JWT keys from: " + mJwksFile + ". Keeping the current keys", e);
+    }
+    finally
+    {
+      mReloadLock.unlock();
+    }
+  }
+
+  private Keys loadKeys() throws IOException
+  {
+    long modified = Files.getLastModifiedTime(mJwksFile).toMillis();
+    JsonNode jwks = mMapper.readTree(Files.readAllBytes(mJwksFile));
+    List<Jwk> keys = new ArrayList<>();
+    for (JsonNode node : jwks.path("keys"))
+    {
+      String type = node.path("kty").asText("");
+      String id = node.path("kid").asText(null);
+      try
+      {
+        switch (type)
+        {
+          case "oct":
+            keys.add(new Jwk(id, type, new SecretKeySpec(decode(node.path("k").asText()), "HmacSHA256")));
+            break;
+          case "RSA":
+            RSAPublicKeySpec rsa = new RSAPublicKeySpec(unsigned(node.path("n").asText()),
+                unsigned(node.path("e").asText()));
+            keys.add(new Jwk(id, type, KeyFactory.getInstance("RSA").generatePublic(rsa)));
+            break;
+          case "EC":
+            AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+            parameters.init(new ECGenParameterSpec(curveName(node.path("crv").asText())));
+            ECPoint point = new ECPoint(unsigned(node.path("x").asText()), unsigned(node.path("y").asText()));
+            ECPublicKeySpec ec = new ECPublicKeySpec(point, parameters.getParameterSpec(ECParameterSpec.class));
+            keys.add(new Jwk(id, type, KeyFactory.getInstance("EC").generatePublic(ec)));
+            break;
+          default:
+            log.warn("Ignoring JWK of unsupported type: " + type + " kid: " + id);
+        }
+      }
+      catch (GeneralSecurityException | IllegalArgumentException e)
+      {
+        log.warn("Ignoring invalid JWK: " + id, e);
+      }
+    }
+    if (keys.isEmpty())
+      throw new IOException("No usable keys in JWKS file: " + mJwksFile);
+    return new Keys(Collections.unmodifiableList(keys), modified);
+  }
+
+  private static String curveName(String crv)
+  {
+    switch (crv)
+    {
+      case "P-256":
+        return "secp256r1";
+      case "P-384":
+        return "secp384r1";
+      case "P-521":
+        return "secp521r1";
+      default:
+        throw new IllegalArgumentException("Unsupported curve: " + crv);
+    }
+  }
+
+  private static byte[] decode(String base64url)
+  {
+    return Base64.getUrlDecoder().decode(base64url);
+  }
+
+  private static BigInteger unsigned(String base64url)
+  {
+    return new BigInteger(1, decode(base64url));
+  }
+
+  /**
+   * JWS carries ECDSA signatures as R and S concatenated, each as long as the
+   * curve size (RFC 7518). The JDK expects them DER encoded. R and S must be
+   * between 1 and the order of the curve: some JDKs accept zero values for any
+   * message.
+   */
+  private static byte[] toDer(byte[] signature, ECParameterSpec params) throws GeneralSecurityException
+  {
+    int half = (params.getCurve().getField().getFieldSize() + 7) / 8;
+    if (signature.length != 2 * half)
+      throw new GeneralSecurityException("Invalid ECDSA signature length: " + signature.length);
+    BigInteger rValue = new BigInteger(1, Arrays.copyOfRange(signature, 0, half));
+    BigInteger sValue = new BigInteger(1, Arrays.copyOfRange(signature, half, signature.length));
+    BigInteger order = params.getOrder();
+    if (rValue.signum() == 0 || sValue.signum() == 0 || rValue.compareTo(order) >= 0
+        || sValue.compareTo(order) >= 0)
+      throw new GeneralSecurityException("Invalid ECDSA signature values");
+    byte[] r = rValue.toByteArray();
+    byte[] s = sValue.toByteArray();
+
+    int length = 2 + r.length + 2 + s.length;
+    byte[] der = new byte[length + (length > 127 ? 3 : 2)];
+    int i = 0;
+    der[i++] = 0x30;
+    if (length > 127)
+      der[i++] = (byte)0x81;
+    der[i++] = (byte)length;
+    der[i++] = 0x02;
+    der[i++] = (byte)r.length;
+    System.arraycopy(r, 0, der, i, r.length);
+    i += r.length;
+    der[i++] = 0x02;
+    der[i++] = (byte)s.length;
+    System.arraycopy(s, 0, der, i, s.length);
+    return der;
+  }
+
+  private final Path mJwksFile;
+  private final ObjectMapper mMapper = new ObjectMapper();
+  private volatile Keys mKeys;
+  private volatile long mNextCheck;
+  private final ReentrantLock mReloadLock = new ReentrantLock();
+  private long mReloadInterval = TimeUnit.SECONDS.toNanos(60);
+
+  private BoundedCache<String, Verified> mVerified;
+  private int mCacheSize = 10000;
+
+  private String mUserClaim = "sub";
+  private String mIssuer;
+  private String mAudience;
+  private long mClockSkew = 60;
+}
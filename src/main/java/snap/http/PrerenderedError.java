@@ -0,0 +1,109 @@
+package snap.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An error response with a fixed body that is rendered once per status code
+ * and then cached. The body is read from the classpath resource
+ * 'snap-error-&lt;status&gt;.html' (e.g. snap-error-404.html) when present,
+ * otherwise a minimal page is generated.
+ *
+ * Unlike HttpError this result does not call WebApplication.handleError() and
+ * doesn't use the error pages of the servlet container. The dispatcher uses it
+ * for routing misses when 'snap.error.prerendered' is set in snap.properties.
+ *
+ * @author Jaap Geurts
+ *
+ */
+public final class PrerenderedError implements RequestResult
+{
+  final static Logger log = LoggerFactory.getLogger(PrerenderedError.class);
+
+  private PrerenderedError(int status, byte[] body)
+  {
+    mStatus = status;
+    mBody = body;
+  }
+
+  /**
+   * Returns the shared result for a status code.
+   *
+   * @param status
+   *          The HTTP status code
+   * @return the result
+   */
+  public static PrerenderedError forStatus(int status)
+  {
+    return mCache.computeIfAbsent(status, s -> new PrerenderedError(s, render(s)));
+  }
+
+  @Override
+  public void handleResult(RequestContext context) throws IOException
+  {
+    HttpServletResponse response = context.getResponse();
+    response.setStatus(mStatus);
+    response.setContentType("text/html; charset=UTF-8");
+    response.setContentLength(mBody.length);
+    if (context.getMethod() != HttpMethod.HEAD)
+      response.getOutputStream().write(mBody);
+  }
+
+  public int getStatus()
+  {
+    return mStatus;
+  }
+
+  private static byte[] render(int status)
+  {
+    String name = "snap-error-" + status + ".html";
+    ClassLoader loader = Thread.currentThread().getContextClassLoader();
+    try (InputStream in = loader.getResourceAsStream(name))
+    {
+      if (in != null)
+      {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[2048];
+        int len;
+        while ((len = in.read(buffer)) != -1)
+          out.write(buffer, 0, len);
+        return out.toByteArray();
+      }
+    }
+    catch (IOException e)
+    {
+      log.warn("Can't read error page: " + name + ". Using the default", e);
+    }
+
+    String title = status + " " + reason(status);
+    return ("<!DOCTYPE html>\n<html><head><title>" + title + "</title></head><body><h1>" + title
+        + "</h1></body></html>\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String reason(int status)
+  {
+    switch (status)
+    {
+      case HttpServletResponse.SC_NOT_FOUND:
+        return "Not Found";
+      case HttpServletResponse.SC_METHOD_NOT_ALLOWED:
+        return "Method Not Allowed";
+      default:
+        return "Error";
+    }
+  }
+
+  private static final Map<Integer, PrerenderedError> mCache = new ConcurrentHashMap<>();
+
+  private final int mStatus;
+  private final byte[] mBody;
+}
@@ -16,10 +16,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import snap.Route;
+import snap.RouteMatch;
 import snap.RouteMatcher;
 import snap.Router;
 import snap.Settings;
+import snap.Settings.SessionMode;
 import snap.User;
+import snap.UserLoader;
 import snap.WebApplication;
 
 /**
@@ -28,6 +31,13 @@ import snap.WebApplication;
  * parameters, Cookies and the current Authenticated User. It contains the
  * original HttpServletRequest and HttpServletResponse objects.
  *
+ * The session, the decoded path and query, the cookies, the locale and the
+ * authenticated user are looked up when first asked for and then kept for the
+ * rest of the request.
+ *
+ * With 'snap.session.mode = cookie' the framework keeps its session state in
+ * an encrypted cookie (see CookieSession) and never uses the HttpSession.
+ *
  * @author Jaap Geurts
  *
  */
@@ -46,6 +56,7 @@ public class RequestContext
 
   // set to 10 years
   private static final int LANGUAGE_COOKIE_EXPIRY = 10 * 365 * 24 * 60 * 60;
+  private static final Cookie[] NO_COOKIES = new Cookie[0];
 
   /**
    * Construct a RequestContext. You should never need to construct this object,
@@ -64,13 +75,6 @@ public class RequestContext
     mServletRequest = servletRequest;
     mServletResponse = servletResponse;
     mMethod = method;
-
-    mSession = mServletRequest.getSession(false);
-
-    if (mSession != null)
-    {
-      mAuthenticatedUser = (Long)mSession.getAttribute(SNAP_AUTHENTICATED_USER);
-    }
   }
 
   /**
@@ -146,11 +150,14 @@ public class RequestContext
    */
   public Cookie getCookie(String name)
   {
-    Cookie[] cookies = mServletRequest.getCookies();
-    if (cookies == null)
-      return null;
-
-    for (Cookie c : cookies)
+    // a request has few cookies. Scanning them is cheaper than building a map
+    if (mCookies == null)
+    {
+      Cookie[] cookies = mServletRequest.getCookies();
+      mCookies = cookies != null ? cookies : NO_COOKIES;
+    }
+    // the first cookie by a name wins
+    for (Cookie c : mCookies)
     {
       if (c.getName().equals(name))
         return c;
@@ -233,18 +240,9 @@ public class RequestContext
    */
   public String getPath()
   {
-    String uri = mServletRequest.getRequestURI();
-    try
-    {
-      return URLDecoder.decode(uri, "UTF-8");
-    }
-    catch (UnsupportedEncodingException e)
-    {
-      log.error("JVM Doesn't support UTF8", e);
-    }
-
-    // if we can't decode it, then just return it.
-    return uri;
+    if (mPath == null)
+      mPath = decode(mServletRequest.getRequestURI());
+    return mPath;
   }
 
   /**
@@ -254,20 +252,33 @@ public class RequestContext
    */
   public String getQuery()
   {
-    String query = mServletRequest.getQueryString();
-    if (query == null)
-      return null;
+    if (!mQueryDecoded)
+    {
+      String query = mServletRequest.getQueryString();
+      mQuery = query != null ? decode(query) : null;
+      mQueryDecoded = true;
+    }
+    return mQuery;
+  }
+
+  /**
+   * Decode a URL encoded string. Strings without escapes are returned as is.
+   */
+  private static String decode(String s)
+  {
+    if (s.indexOf('%') < 0 && s.indexOf('+') < 0)
+      return s;
 
     try
     {
-      return URLDecoder.decode(query, "UTF-8");
+      return URLDecoder.decode(s, "UTF-8");
     }
     catch (UnsupportedEncodingException e)
     {
       log.error("JVM Doesn't support UTF8", e);
     }
     // if we can't decode it, then just return it.
-    return query;
+    return s;
   }
 
   /**
@@ -290,10 +301,10 @@ public class RequestContext
    */
   public RequestResult chainNextRoute() throws Throwable
   {
-    RouteMatcher matcher = Router.getInstance().findNextRouteMatcherForPath(getMethod(), getPath(),
-                                                                            getRouteMatcher());
-    setRouteMatcher(matcher);
-    return matcher.handleRoute(this);
+    RouteMatch match = Router.getInstance().findNextRouteMatchForPath(getMethod(), getPath(),
+                                                                      getRouteMatcher());
+    setRouteMatch(match);
+    return match.getMatcher().handleRoute(this);
   }
 
   /**
@@ -330,6 +341,19 @@ public class RequestContext
 
   }
 
+  /**
+   * Used by the framework. Sets the route object for this request and the URL
+   * parameters that were captured when the route was matched.
+   *
+   * @param match
+   *          the route match for this request. Set by the framework.
+   */
+  public void setRouteMatch(RouteMatch match)
+  {
+    mRoute = match.getMatcher();
+    mUrlParams = match.getParameters();
+  }
+
   /**
    * Get the Framework Router.
    *
@@ -388,13 +412,25 @@ public class RequestContext
    *
    * @param userid
    *          The userid to store in the session. Set to null to remove the user
-   *          from the session
+   *          from the session and the user cache
    *
    */
   public void setAuthenticatedUser(Long userid)
   {
+    // logging out removes the user from the user cache
+    if (userid == null)
+    {
+      Long previous = getAuthenticatedUserId();
+      WebApplication.getInstance().invalidateUser(previous);
+      if (mUserLoader != null && previous != null)
+        mUserLoader.forget(previous);
+    }
+
     mAuthenticatedUser = userid;
-    if (mSession == null)
+    mUserResolved = true;
+    mUser = null;
+    mUserLoaded = false;
+    if (!hasSession())
     {
       log.warn("Attempt to set authenticated user without an active session");
       return;
@@ -402,16 +438,16 @@ public class RequestContext
 
     if (userid == null)
     {
-      mSession.removeAttribute(SNAP_AUTHENTICATED_USER);
-      mSession.removeAttribute(SNAP_CSRF_TOKEN);
-      mSession.invalidate();
+      removeSessionAttribute(SNAP_AUTHENTICATED_USER);
+      removeSessionAttribute(SNAP_CSRF_TOKEN);
+      invalidateSession();
       Cookie cookie = new Cookie(SNAP_CSRF_COOKIE_NAME, getServerCsrfToken());
       removeCookie(cookie);
     }
     else
     {
-      mSession.setAttribute(SNAP_AUTHENTICATED_USER, userid);
-      mSession.setAttribute(SNAP_CSRF_TOKEN, generateCsrfToken());
+      setSessionAttribute(SNAP_AUTHENTICATED_USER, userid);
+      setSessionAttribute(SNAP_CSRF_TOKEN, generateCsrfToken());
       Cookie cookie = new Cookie(SNAP_CSRF_COOKIE_NAME, getServerCsrfToken());
       cookie.setMaxAge(CSRF_COOKIE_EXPIRY);
       cookie.setPath("/");
@@ -423,15 +459,66 @@ public class RequestContext
   }
 
   /**
-   * Gets the authenticed User if any.
+   * Gets the authenticed User if any. The user is loaded once per request
+   * through WebApplication.loadUser().
    *
    * @return The user or null if no user is authenticated
    */
   public User getAuthenticatedUser()
   {
-    if (mAuthenticatedUser == null)
-      return null;
-    return WebApplication.getInstance().getUser(mAuthenticatedUser);
+    // also remember that the user couldn't be loaded (deleted user, stale
+    // session)
+    if (!mUserLoaded)
+    {
+      Long userid = getAuthenticatedUserId();
+      if (userid != null)
+        mUser = WebApplication.getInstance().loadUser(userid);
+      mUserLoaded = true;
+    }
+    return mUser;
+  }
+
+  /**
+   * Returns the loader that loads users for this request in batches. Use it
+   * when a page shows many users.
+   *
+   * @return the user loader of this request
+   */
+  public UserLoader getUserLoader()
+  {
+    if (mUserLoader == null)
+      mUserLoader = new UserLoader(WebApplication.getInstance());
+    return mUserLoader;
+  }
+
+  /**
+   * Gets the id of the authenticated user if any. Unlike
+   * getAuthenticatedUser() this doesn't load the user.
+   *
+   * @return The user id or null if no user is authenticated
+   */
+  public Long getAuthenticatedUserId()
+  {
+    if (!mUserResolved)
+    {
+      Object userid = getSessionAttribute(SNAP_AUTHENTICATED_USER);
+      if (userid instanceof Long)
+        mAuthenticatedUser = (Long)userid;
+      else if (userid != null)
+      {
+        // the cookie session keeps strings
+        try
+        {
+          mAuthenticatedUser = Long.valueOf(userid.toString());
+        }
+        catch (NumberFormatException e)
+        {
+          log.warn("Invalid authenticated user in session: " + userid);
+        }
+      }
+      mUserResolved = true;
+    }
+    return mAuthenticatedUser;
   }
 
   /**
@@ -458,6 +545,7 @@ public class RequestContext
   public void setLanguage(String language, boolean persist)
   {
     mLanguage = language;
+    mLocale = null;
 
     mPersistLanguage = persist;
 
@@ -468,9 +556,9 @@ public class RequestContext
     {
       case SESSION:
         if (language == null)
-          mSession.removeAttribute(SNAP_USER_LANGUAGE);
+          removeSessionAttribute(SNAP_USER_LANGUAGE);
         else
-          mSession.setAttribute(SNAP_USER_LANGUAGE, language);
+          setSessionAttribute(SNAP_USER_LANGUAGE, language);
         break;
       case COOKIE:
         Cookie cookie = new Cookie(SNAP_USER_LANGUAGE, "");
@@ -515,7 +603,7 @@ public class RequestContext
     switch(Settings.localeMode)
     {
       case SESSION:
-        mLanguage = (String)mSession.getAttribute(SNAP_USER_LANGUAGE);
+        mLanguage = (String)getSessionAttribute(SNAP_USER_LANGUAGE);
         break;
       case COOKIE:
         Cookie cookie = getCookie(SNAP_USER_LANGUAGE);
@@ -563,14 +651,14 @@ public class RequestContext
     {
       try
       {
-        return new Locale.Builder().setLanguageTag(language).build();
+        mLocale = new Locale.Builder().setLanguageTag(language).build();
       }
       catch (IllformedLocaleException ile)
       {
         log.error("Language: " + language + " not recognized", ile);
       }
     }
-    return null;
+    return mLocale;
   }
 
   /**
@@ -578,7 +666,11 @@ public class RequestContext
    */
   public void startSession()
   {
+    // a cookie session always exists
+    if (Settings.sessionMode == SessionMode.COOKIE)
+      return;
     mSession = mServletRequest.getSession();
+    mSessionResolved = true;
   }
 
   /**
@@ -586,9 +678,82 @@ public class RequestContext
    */
   public void endSession()
   {
-    HttpSession s = mServletRequest.getSession(false);
-    if (s != null)
-      s.invalidate();
+    invalidateSession();
+  }
+
+  /**
+   * Used by the framework. Writes the session cookie when the session is kept
+   * in a cookie and it changed or is due for a new issue time. Called before
+   * the result is sent.
+   */
+  public void saveSession()
+  {
+    if (mCookieSession != null)
+      mCookieSession.save(mServletResponse);
+  }
+
+  private boolean hasSession()
+  {
+    return Settings.sessionMode == SessionMode.COOKIE || getSession() != null;
+  }
+
+  private Object getSessionAttribute(String name)
+  {
+    if (Settings.sessionMode == SessionMode.COOKIE)
+      return getCookieSession().getAttribute(name);
+    HttpSession session = getSession();
+    return session != null ? session.getAttribute(name) : null;
+  }
+
+  private void setSessionAttribute(String name, Object value)
+  {
+    if (Settings.sessionMode == SessionMode.COOKIE)
+      getCookieSession().setAttribute(name, value);
+    else
+      getSession().setAttribute(name, value);
+  }
+
+  private void removeSessionAttribute(String name)
+  {
+    if (Settings.sessionMode == SessionMode.COOKIE)
+      getCookieSession().removeAttribute(name);
+    else
+      getSession().removeAttribute(name);
+  }
+
+  private void invalidateSession()
+  {
+    if (Settings.sessionMode == SessionMode.COOKIE)
+    {
+      getCookieSession().invalidate();
+      return;
+    }
+    HttpSession session = getSession();
+    if (session != null)
+      session.invalidate();
+    mSession = null;
+  }
+
+  private CookieSession getCookieSession()
+  {
+    if (mCookieSession == null)
+      mCookieSession = CookieSession.read(this);
+    return mCookieSession;
+  }
+
+  /**
+   * Returns the current session without creating one.
+   *
+   * @return the session or null if there is none
+   */
+  private HttpSession getSession()
+  {
+    if (!mSessionResolved)
+    {
+      mSession = mServletRequest.getSession(false);
+      mSessionResolved = true;
+    }
+    return mSession;
   }
 
   /**
@@ -714,9 +879,9 @@ public class RequestContext
    */
   public String getServerCsrfToken()
   {
-    HttpSession session = mServletRequest.getSession(false);
-    if (session != null && session.getAttribute(SNAP_CSRF_TOKEN) != null)
-      return (String)session.getAttribute(SNAP_CSRF_TOKEN);
+    Object token = getSessionAttribute(SNAP_CSRF_TOKEN);
+    if (token != null)
+      return (String)token;
     else
       log.debug("User not logged in. Not returning CSRF Token");
     return null;
@@ -727,9 +892,8 @@ public class RequestContext
    */
   public void resetCsrfToken()
   {
-    HttpSession session = mServletRequest.getSession(false);
-    if (session != null && session.getAttribute(SNAP_CSRF_TOKEN) != null)
-      session.setAttribute(SNAP_CSRF_TOKEN, generateCsrfToken());
+    if (getSessionAttribute(SNAP_CSRF_TOKEN) != null)
+      setSessionAttribute(SNAP_CSRF_TOKEN, generateCsrfToken());
     else
       log.warn("User not logged in. Not resetting CSRF Token");
   }
@@ -774,9 +938,20 @@ public class RequestContext
   private HttpMethod mMethod;
   private RouteMatcher mRoute;
   private Long mAuthenticatedUser;
+  private boolean mUserResolved = false;
+  private User mUser;
+  private boolean mUserLoaded = false;
+  private UserLoader mUserLoader;
   private Router mRouter;
 
   private HttpSession mSession;
+  private boolean mSessionResolved = false;
+  private CookieSession mCookieSession;
+
+  private String mPath;
+  private String mQuery;
+  private boolean mQueryDecoded = false;
+  private Cookie[] mCookies;
 
   private Locale mLocale = null;
 